@@ -13,13 +13,37 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 package com.synditcorp.ruleengine;
 
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
+import com.synditcorp.ruleengine.interfaces.AsyncRuleClassHandler;
 import com.synditcorp.ruleengine.interfaces.RuleClassHandler;
 
 public class CalcRuleProcessor {
 
+	private static final ConcurrentHashMap<String, RuleBulkhead> bulkheads = new ConcurrentHashMap<String, RuleBulkhead>();
+
+	/**
+	 * Limits the calls to the handler class with the bulkhead, or removes its limit if the bulkhead is null.  The limit applies to every document.
+	 */
+	public static void setBulkhead(String ruleClassHandler, RuleBulkhead bulkhead) {
+		if(bulkhead == null) bulkheads.remove(ruleClassHandler);
+		else bulkheads.put(ruleClassHandler, bulkhead);
+	}
+
+	/**
+	 * Returns the bulkhead of the handler class, or null if its calls are not limited
+	 */
+	public static RuleBulkhead getBulkhead(String ruleClassHandler) {
+		if(ruleClassHandler == null || bulkheads.isEmpty()) return null;
+		return bulkheads.get(ruleClassHandler);
+	}
+
 	/**
-	 * This method processes an expression using a rule handler class that implements RuleClassHandler.
+	 * This method processes an expression using a rule handler class that implements RuleClassHandler or AsyncRuleClassHandler.  An
+	 * AsyncRuleClassHandler is waited on when the handler doesn't also implement RuleClassHandler.  If the handler class has a bulkhead that
+	 * rejects the call, a RejectedExecutionException is thrown.
 	 * @param ruleClassHandler is the value from the "handlerClass" field of the BaseRule class
 	 * @param ruleExpression is the expression to evaluate
 	 * @param variables contains the variables needed by the expression
@@ -28,12 +52,81 @@ public class CalcRuleProcessor {
 	 */
 	public static Boolean processCalcRule(String ruleClassHandler, String ruleExpression, TreeMap<String, Object> variables) throws Exception {
 		
-		if(ruleClassHandler == null || ruleClassHandler == "") throw new Exception("No ruleClassHandler");
+		RuleBulkhead bulkhead = getBulkhead(ruleClassHandler);
+		if(bulkhead == null) return callHandler(ruleClassHandler, ruleExpression, variables);
+		
+		if(!bulkhead.acquire(false)) throw new RejectedExecutionException("The bulkhead for " + ruleClassHandler + " rejected the call.");
+		try {
+			return callHandler(ruleClassHandler, ruleExpression, variables);
+		} finally {
+			bulkhead.release();
+		}
+		
+	}
+	
+	private static Boolean callHandler(String ruleClassHandler, String ruleExpression, TreeMap<String, Object> variables) throws Exception {
+		
+		Object h = getHandler(ruleClassHandler);
+		if(h instanceof RuleClassHandler) return ((RuleClassHandler) h).processCalcRule(ruleExpression, variables);
+		if(h instanceof AsyncRuleClassHandler) {
+			CompletableFuture<Boolean> result = ((AsyncRuleClassHandler) h).processCalcRuleAsync(ruleExpression, variables);
+			if(result == null) throw new Exception(ruleClassHandler + " returned no future.");
+			return result.get();
+		}
+		
+		throw new Exception(ruleClassHandler + " does not implement RuleClassHandler or AsyncRuleClassHandler");
+		
+	}
+	
+	/**
+	 * This method starts processing an expression using a rule handler class that implements AsyncRuleClassHandler.  For a handler that only
+	 * implements RuleClassHandler, the expression is processed before returning and the future is already complete.  If the handler class has a 
+	 * bulkhead, the call waits for its turn no longer than the bulkhead's maxWait, keeps its turn until the future completes, and a 
+	 * RejectedExecutionException is thrown if the bulkhead rejects it.
+	 * @param ruleClassHandler is the value from the "handlerClass" field of the BaseRule class
+	 * @param ruleExpression is the expression to evaluate
+	 * @param variables contains the variables needed by the expression
+	 * @return a future that completes with the evaluation of the expression
+	 * @throws Exception
+	 */
+	public static CompletableFuture<Boolean> processCalcRuleAsync(String ruleClassHandler, String ruleExpression, TreeMap<String, Object> variables) throws Exception {
+		
+		Object h = getHandler(ruleClassHandler);
+		if(!(h instanceof AsyncRuleClassHandler)) return CompletableFuture.completedFuture(processCalcRule(ruleClassHandler, ruleExpression, variables));
+		
+		RuleBulkhead bulkhead = getBulkhead(ruleClassHandler);
+		if(bulkhead == null) return ((AsyncRuleClassHandler) h).processCalcRuleAsync(ruleExpression, variables);
 		
-		RuleClassHandler h = (RuleClassHandler) Class.forName(ruleClassHandler).getDeclaredConstructor().newInstance();
-		Boolean b =  h.processCalcRule(ruleExpression, variables);
+		if(!bulkhead.acquire(true)) throw new RejectedExecutionException("The bulkhead for " + ruleClassHandler + " rejected the call.");
+		CompletableFuture<Boolean> result;
+		try {
+			result = ((AsyncRuleClassHandler) h).processCalcRuleAsync(ruleExpression, variables);
+		} catch (Exception e) {
+			bulkhead.release();
+			throw e;
+		}
+		if(result == null) {
+			bulkhead.release();
+			throw new Exception(ruleClassHandler + " returned no future.");
+		}
+		result.whenComplete((r, e) -> bulkhead.release());
+		return result;
+		
+	}
+	
+	/**
+	 * Returns "true" if the handler class implements AsyncRuleClassHandler
+	 */
+	public static boolean isAsyncHandler(String ruleClassHandler) throws Exception {
+		if(ruleClassHandler == null || ruleClassHandler == "") return false;
+		return AsyncRuleClassHandler.class.isAssignableFrom(Class.forName(ruleClassHandler));
+	}
+	
+	private static Object getHandler(String ruleClassHandler) throws Exception {
+		
+		if(ruleClassHandler == null || ruleClassHandler == "") throw new Exception("No ruleClassHandler");
 		
-		return b;
+		return Class.forName(ruleClassHandler).getDeclaredConstructor().newInstance();
 		
 	}
 	
@@ -0,0 +1,45 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.synditcorp.ruleengine;
+
+import com.synditcorp.ruleengine.beans.BaseRule;
+import com.synditcorp.ruleengine.cache.PureRuleMemo;
+import com.synditcorp.ruleengine.handlers.ScoreExpression;
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+
+/**
+ * A RuleDefinition that also provides the state it worked out when the rules were loaded, as DefaultRuleDefinition does.  RuleEvaluator and the
+ * other classes of this package use it when the definition has it.  Other RuleDefinition implementations still work: their scores are compiled
+ * each time they are used, no results are memoized, and rules are given positions as they are evaluated.
+ */
+public interface CompiledRuleDefinition extends RuleDefinition {
+
+	public RuleIndex getRuleIndex();
+	public ScoreExpression getCompiledPassScore(Integer ruleNumber) throws Exception;
+	public ScoreExpression getCompiledFailScore(Integer ruleNumber) throws Exception;
+	public PureRuleMemo getPureRuleMemo();
+
+	/**
+	 * Returns the RuleHash of the rule's content.  DefaultRuleDefinition returns the hash worked out when the rules were loaded.
+	 */
+	public default long getRuleHash(Integer ruleNumber) throws Exception {
+		return RuleHash.of((BaseRule) getRule(ruleNumber));
+	}
+
+	/**
+	 * Returns the rules as they are loaded now, which later loads don't change.  RuleEvaluator evaluates against one snapshot from its first 
+	 * evaluation until it is reset, so its results are never indexed by one load's RuleIndex and looked up in another's rules.
+	 */
+	public default CompiledRuleDefinition getSnapshot() {
+		return this;
+	}
+
+}
@@ -11,18 +11,35 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 
 package com.synditcorp.ruleengine;
 
-import com.synditcorp.ruleengine.interfaces.RuleDefinition;
-
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.synditcorp.ruleengine.beans.AllRule;
 import com.synditcorp.ruleengine.beans.AndRule;
 import com.synditcorp.ruleengine.beans.CalcRule;
 import com.synditcorp.ruleengine.beans.OrRule;
+import com.synditcorp.ruleengine.beans.BaseRule;
 import com.synditcorp.ruleengine.beans.BaseRules;
 import com.synditcorp.ruleengine.beans.CompositeRule;
+import com.synditcorp.ruleengine.cache.PureRuleMemo;
+import com.synditcorp.ruleengine.handlers.ExpressionHandler;
+import com.synditcorp.ruleengine.handlers.ExpressionRuleHandler;
+import com.synditcorp.ruleengine.handlers.RegexHandler;
+import com.synditcorp.ruleengine.handlers.ScoreExpression;
 import com.synditcorp.ruleengine.interfaces.Rule;
 import com.synditcorp.ruleengine.interfaces.RuleParser;
 
@@ -30,14 +47,42 @@ import com.synditcorp.ruleengine.interfaces.RuleParser;
  * This class loads rule definitions from parsers that implement com.synditcorp.ruleengine.interfaces.RuleParser.  Methods of this class provide
  * access to base and composite rule field objects.  After loading the rules, this class is primarily to be used by the rule engine evaluator
  * and shouldn't be accessed directly.
+ * <p>
+ * Each load builds a new RuleSnapshot and publishes it only once every step has succeeded, so a load that fails leaves the previous rules in 
+ * place, and the getters never see part of one load and part of another.  See getSnapshot.
  */
-public class DefaultRuleDefinition implements RuleDefinition {
+public class DefaultRuleDefinition implements CompiledRuleDefinition {
+
+	/**
+	 * Compile expressions when the rules are loaded
+	 */
+	public static final int EAGER = 0;
+	/**
+	 * Compile each expression the first time it is run
+	 */
+	public static final int LAZY = 1;
+	/**
+	 * Compile expressions on background threads after the rules are loaded, rules reachable from the start rule first.  Expressions not compiled
+	 * yet are interpreted.
+	 */
+	public static final int BACKGROUND = 2;
+
+	private static final int COMPILATION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	private static Executor defaultCompilationExecutor;
+	private static final int PARALLEL_LOAD_THRESHOLD = 256;
 
-	private BaseRules baseRules;
-	private TreeMap<Integer, CalcRule> calcRules = new TreeMap<Integer, CalcRule>();
-	private TreeMap<Integer, OrRule> orRules = new TreeMap<Integer, OrRule>();
-	private TreeMap<Integer, AndRule> andRules = new TreeMap<Integer, AndRule>();
-	private TreeMap<Integer, AllRule> allRules = new TreeMap<Integer, AllRule>();
+	private interface RuleTask {
+		void run(int i) throws Exception;
+	}
+
+	private volatile RuleSnapshot rules = new RuleSnapshot();
+	private HashSet<String> expressions = new HashSet<String>();
+	private int pureRuleMemoSize = 10000;
+	private int compilationPolicy = EAGER;
+	private Executor compilationExecutor;
+	private ForkJoinPool loadPool;
+	private final AtomicInteger loads = new AtomicInteger();
+	private CompletableFuture<Void> compilation = CompletableFuture.completedFuture(null);
 	
 	public DefaultRuleDefinition() {
 		
@@ -48,7 +93,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getDocumentId() {
-		return baseRules.getDocumentId();
+		return rules.getDocumentId();
 	}
 	
 	/**
@@ -56,7 +101,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getDescription() {
-		return baseRules.getDescription();
+		return rules.getDescription();
 	}
 	
 	/**
@@ -64,7 +109,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getVersion() {
-		return baseRules.getVersion();
+		return rules.getVersion();
 	}
 	
 	/**
@@ -74,7 +119,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<String> getDocumentTags() {
-		return baseRules.getDocumentTags();
+		return rules.getDocumentTags();
 	}
 
 	/**
@@ -85,7 +130,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public Integer getStartRule() {
-		return baseRules.getStartRule();
+		return rules.getStartRule();
 	}
 	
 	
@@ -96,7 +141,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<String> getRuleTags(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getRuleTags();
+		return rules.getRuleTags(ruleNumber);
 	}
 
 	/**
@@ -104,24 +149,177 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public void loadRules(RuleParser parser) throws Exception {
+		load(parser.getRules(), false);
+	}
+
+	/**
+	 * Loads are one at a time.  The new snapshot is published with a single write once every step has succeeded; until then, and if a step 
+	 * fails, the getters and evaluators go on using the previous one.
+	 */
+	private synchronized void load(BaseRules baseRules, boolean incremental) throws Exception {
 		
-		this.baseRules = parser.getRules();
-		setManifest(this.baseRules);
+		RuleGraphValidator validator = new RuleGraphValidator(baseRules);
+		if(validator.hasErrors()) {
+			throw new Exception("Rule definition document " + baseRules.getDocumentId() + " version " + baseRules.getVersion() + " has errors: " 
+					+ String.join(" ", validator.getErrors()));
+		}
+		
+		RuleSnapshot previous = this.rules;
+		RuleSnapshot next = new RuleSnapshot();
+		next.baseRules = baseRules;
+		next.validationWarnings = validator.getWarnings();
+		shareStrings(baseRules);
+		setManifest(next);
+		setRuleHashes(next);
+		HashSet<Integer> unchanged = incremental ? getUnchangedRules(next, previous) : new HashSet<Integer>();
+		setRuleIndex(next);
+		setChangedRules(next, unchanged);
+		//reference the new expressions before releasing the previous ones, so unchanged expressions stay compiled
+		HashSet<String> referenced = addExpressionReferences(next);
+		boolean published = false;
+		try {
+			compileExpressions(next, unchanged);
+			compileScores(next, unchanged, previous);
+			setPureRuleMemo(next, unchanged, previous.pureRuleMemo);
+			setSchedule(next);
+			this.rules = next;
+			published = true;
+		} finally {
+			if(!published) {
+				for (String expression : referenced) ExpressionHandler.releaseReference(expression);
+			}
+		}
 		
+		HashSet<String> previousExpressions = expressions;
+		expressions = referenced;
+		for (String expression : previousExpressions) ExpressionHandler.releaseReference(expression);
+		startCompilation(next);
+		
+	}
+
+	/**
+	 * Returns the rules as they were last loaded.  The snapshot doesn't change when the rules are reloaded, so a caller that makes several 
+	 * lookups for one request should make them all on one snapshot.  RuleEvaluator does this from its first evaluation until it is reset.
+	 */
+	@Override
+	public CompiledRuleDefinition getSnapshot() {
+		return rules;
+	}
+
+	/**
+	 * Release the compiled expressions and literal regular expression patterns held for these rules in the caches that every definition shares
+	 * (see ExpressionHandler.releaseReference).  Those no other definition uses are removed.  RuleRegistry calls this when it unloads a document;
+	 * the rules can still be evaluated afterwards, but their expressions are interpreted until the rules are loaded again.
+	 */
+	public synchronized void release() {
+		loads.incrementAndGet(); // stops a background compilation
+		HashSet<String> released = expressions;
+		expressions = new HashSet<String>();
+		for (String expression : released) ExpressionHandler.releaseReference(expression);
+	}
+
+	/**
+	 * Returns a rough estimate of the bytes held for these rules in the shared caches of compiled expressions and patterns, see 
+	 * ExpressionHandler.getEstimatedSize.  Expressions shared with other definitions are counted by each of them.
+	 */
+	public synchronized long getExpressionSize() {
+		long size = 0;
+		for (String expression : expressions) size += ExpressionHandler.getEstimatedSize(expression);
+		return size;
 	}
 	
+	/**
+	 * Returns the warnings found when the rules were loaded, like rules that can't be reached from the start rule.  See RuleGraphValidator.
+	 */
+	public ArrayList<String> getValidationWarnings() {
+		return rules.validationWarnings;
+	}
+
+	/**
+	 * Returns the memo table of the calc rules marked pure.  A new table is made each time the rules are loaded.
+	 */
+	@Override
+	public PureRuleMemo getPureRuleMemo() {
+		return rules.getPureRuleMemo();
+	}
+
+	/**
+	 * Returns the RuleHash of the rule's content, worked out when the rules were loaded
+	 */
+	@Override
+	public long getRuleHash(Integer ruleNumber) throws Exception {
+		return rules.getRuleHash(ruleNumber);
+	}
+
+	/**
+	 * Returns the position of each rule in the runtime results.  A new index is made each time the rules are loaded.
+	 */
+	@Override
+	public RuleIndex getRuleIndex() {
+		return rules.getRuleIndex();
+	}
+
+	/**
+	 * Sets the number of results the memo table for pure calc rules can hold.  Zero turns memoization off.  This takes effect when the rules are next loaded.
+	 */
+	public void setPureRuleMemoSize(int pureRuleMemoSize) {
+		this.pureRuleMemoSize = pureRuleMemoSize;
+	}
+
+	/**
+	 * Sets when calc rule expressions and pass and fail scores are compiled: EAGER (the default), LAZY, or BACKGROUND.  EAGER makes loading 
+	 * slowest and the first requests fastest; LAZY makes loading fastest, but the first request to reach each rule pays for compiling it; 
+	 * BACKGROUND loads as fast as LAZY and interprets the expressions not compiled yet, which is slower than running them compiled but 
+	 * doesn't stall a request.  This takes effect when the rules are next loaded.
+	 */
+	public void setCompilationPolicy(int compilationPolicy) throws Exception {
+		if(compilationPolicy < EAGER || compilationPolicy > BACKGROUND) throw new Exception("Unknown compilation policy " + compilationPolicy);
+		this.compilationPolicy = compilationPolicy;
+	}
+
+	public int getCompilationPolicy() {
+		return compilationPolicy;
+	}
+
+	/**
+	 * Sets the threads that compile expressions under the BACKGROUND policy.  By default, a pool of daemon threads, half as many as there 
+	 * are processors, is shared by every definition.
+	 */
+	public void setCompilationExecutor(Executor compilationExecutor) {
+		this.compilationExecutor = compilationExecutor;
+	}
+
+	/**
+	 * Sets the pool that hashes rules and compiles their expressions when the rules are loaded.  By default ForkJoinPool.commonPool() is used.  
+	 * Documents of fewer than 256 rules are loaded on the calling thread.
+	 */
+	public void setLoadPool(ForkJoinPool loadPool) {
+		this.loadPool = loadPool;
+	}
+
+	/**
+	 * Returns a future that completes when the expressions of the last load have been compiled.  It is already complete unless the 
+	 * compilation policy is BACKGROUND.
+	 */
+	public CompletableFuture<Void> getCompilation() {
+		return compilation;
+	}
+
 	/**
 	 * Reload the rules engine rules objects using a parser that implements com.synditcorp.ruleengine.interfaces.RulesParser.  Previous
-	 * rule definitions are discarded.
+	 * rule definitions are discarded, but rules whose content hash (see RuleHash) is the same as before keep their compiled scores, expression
+	 * analysis, and memoized pure results, so only the rules that were added or changed are compiled.  See getChangedRules.
 	 */
 	@Override
 	public void reloadRules(RuleParser parser) throws Exception {
+		load(parser.getRules(), rules.baseRules != null);
+	}
 
-		if(this.baseRules != null) {
-			this.baseRules = null;
-		}
-		loadRules(parser);
-		
+	/**
+	 * Returns the numbers of the rules compiled by the last load or reload, i.e. every rule after a load and the added and changed rules after a reload.
+	 */
+	public TreeSet<Integer> getChangedRules() {
+		return rules.changedRules;
 	}
 	
 	/**
@@ -129,22 +327,33 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getPassAction(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getPassAction();	}
+		return rules.getPassAction(ruleNumber);
+	}
 
 	/**
 	 * Gets the failAction for a particular rule.  This returns the failAction set in the rules document.
 	 */
 	@Override
 	public String getFailAction(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getFailAction();	}
+		return rules.getFailAction(ruleNumber);
+	}
 
 	
 	/**
-	 * Gets the list of composite rule numbers for a particular composite rule's list that is set in the rules document.
+	 * Gets the list of composite rule numbers for a particular composite rule's list that is set in the rules document.  Rules that are not 
+	 * in force (see isInForce) are left out of the list.
 	 */
 	@Override
 	public ArrayList<Integer> getCompositeRulesList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositeRules();
+		return rules.getCompositeRulesList(ruleNumber);
+	}
+
+	/**
+	 * Gets the composite rule numbers for a particular composite rule, as getCompositeRulesList does, without making a list.  Don't change the array.
+	 */
+	@Override
+	public int[] getCompositeRulesArray(Integer ruleNumber) throws Exception {
+		return rules.getCompositeRulesArray(ruleNumber);
 	}
 	
 	/**
@@ -152,7 +361,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositePassScoreList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositePassScore();
+		return rules.getCompositePassScoreList(ruleNumber);
 	}
 
 	/**
@@ -160,7 +369,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositeFailScoreList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositeFailScore();
+		return rules.getCompositeFailScoreList(ruleNumber);
 	}
 
 	/**
@@ -168,7 +377,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositePassActionsList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositePassActions();
+		return rules.getCompositePassActionsList(ruleNumber);
 	}
 
 	/**
@@ -176,7 +385,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositeFailActionsList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositeFailActions();
+		return rules.getCompositeFailActionsList(ruleNumber);
 	}
 
 	/**
@@ -184,7 +393,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositePassFlagsList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositePassFlags();
+		return rules.getCompositePassFlagsList(ruleNumber);
 	}
 
 	/**
@@ -192,7 +401,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositeFailFlagsList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositeFailFlags();
+		return rules.getCompositeFailFlagsList(ruleNumber);
 	}
 
 	/**
@@ -200,7 +409,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositePassReasonsList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositePassReasons();
+		return rules.getCompositePassReasonsList(ruleNumber);
 	}
 
 	/**
@@ -208,7 +417,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositeFailReasonsList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositeFailReasons();
+		return rules.getCompositeFailReasonsList(ruleNumber);
 	}
 
 	/**
@@ -216,7 +425,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositePassKeysList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositePassKeys();
+		return rules.getCompositePassKeysList(ruleNumber);
 	}
 
 	/**
@@ -224,7 +433,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public ArrayList<Integer> getCompositeFailKeysList(Integer ruleNumber) throws Exception {
-		return ((CompositeRule) getRule(ruleNumber)).getCompositeFailKeys();
+		return rules.getCompositeFailKeysList(ruleNumber);
 	}
 
 	/**
@@ -232,7 +441,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public boolean isCalcRule(Integer ruleNumber) throws Exception {
-		return calcRules.containsKey(ruleNumber);
+		return rules.isCalcRule(ruleNumber);
 	}
 	
 	/**
@@ -240,7 +449,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public boolean isOrRule(Integer ruleNumber) throws Exception {
-		return orRules.containsKey(ruleNumber);
+		return rules.isOrRule(ruleNumber);
 	}
 	
 	/**
@@ -248,7 +457,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public boolean isAndRule(Integer ruleNumber) throws Exception {
-		return andRules.containsKey(ruleNumber);
+		return rules.isAndRule(ruleNumber);
 	}
 
 	/**
@@ -256,7 +465,15 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public boolean isAllRule(Integer ruleNumber) throws Exception {
-		return allRules.containsKey(ruleNumber);
+		return rules.isAllRule(ruleNumber);
+	}
+
+	/**
+	 * Returns "true" if the rule is in force now, based on its active, effectiveDate, and expirationDate fields
+	 */
+	@Override
+	public boolean isInForce(Integer ruleNumber) throws Exception {
+		return rules.isInForce(ruleNumber);
 	}
 
 	/**
@@ -264,7 +481,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getExpression(Integer ruleNumber) throws Exception {
-		return calcRules.get(ruleNumber).getExpression();
+		return rules.getExpression(ruleNumber);
 	}
 	
 	/**
@@ -272,7 +489,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getHandlerClass(Integer ruleNumber) throws Exception {
-		return calcRules.get(ruleNumber).getHandlerClass();
+		return rules.getHandlerClass(ruleNumber);
 	}
 	
 	/**
@@ -280,7 +497,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getPassKey(Integer ruleNumber)  throws Exception {
-		return getRule(ruleNumber).getPassKey();
+		return rules.getPassKey(ruleNumber);
 	}
 	
 	/**
@@ -288,7 +505,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getFailKey(Integer ruleNumber)  throws Exception {
-		return getRule(ruleNumber).getFailKey();
+		return rules.getFailKey(ruleNumber);
 	}
 
 	/**
@@ -296,7 +513,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getPassScore(Integer ruleNumber)  throws Exception {
-		return getRule(ruleNumber).getPassScore();
+		return rules.getPassScore(ruleNumber);
 	}
 	
 	/**
@@ -304,7 +521,23 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getFailScore(Integer ruleNumber)  throws Exception {
-		return getRule(ruleNumber).getFailScore();
+		return rules.getFailScore(ruleNumber);
+	}
+
+	/**
+	 * Returns the passScore expression for a particular rule as classified and compiled when the rules were loaded, or null if the rule has no passScore.
+	 */
+	@Override
+	public ScoreExpression getCompiledPassScore(Integer ruleNumber)  throws Exception {
+		return rules.getCompiledPassScore(ruleNumber);
+	}
+	
+	/**
+	 * Returns the failScore expression for a particular rule as classified and compiled when the rules were loaded, or null if the rule has no failScore.
+	 */
+	@Override
+	public ScoreExpression getCompiledFailScore(Integer ruleNumber)  throws Exception {
+		return rules.getCompiledFailScore(ruleNumber);
 	}
 
 	/**
@@ -312,7 +545,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getPassFlag(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getPassFlag();
+		return rules.getPassFlag(ruleNumber);
 	}
 
 	/**
@@ -320,7 +553,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getFailFlag(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getFailFlag();
+		return rules.getFailFlag(ruleNumber);
 	}
 
 	/**
@@ -328,7 +561,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getPassReason(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getPassReason();
+		return rules.getPassReason(ruleNumber);
 	}
 
 	/**
@@ -336,7 +569,7 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public String getFailReason(Integer ruleNumber) throws Exception {
-		return getRule(ruleNumber).getFailReason();
+		return rules.getFailReason(ruleNumber);
 	}
 
 	/**
@@ -344,58 +577,382 @@ public class DefaultRuleDefinition implements RuleDefinition {
 	 */
 	@Override
 	public Rule getRule(Integer ruleNumber) throws Exception {
+		return rules.getRule(ruleNumber);
+	}
+
+	private void setManifest(RuleSnapshot next) {
+		setBaseRulesToManifest(next);
+		setOrRulesToManifest(next);
+		setAndRulesToManifest(next);
+		setAllRulesToManifest(next);
+	}
+	
+	private void setRuleHashes(RuleSnapshot next) throws Exception {
+		final ArrayList<BaseRule> rules = getRuleList(next);
+		final long[] hashes = new long[rules.size()];
+		forEachRule(rules.size(), i -> hashes[i] = RuleHash.of(rules.get(i)));
+		for (int i = 0; i < hashes.length; i++) next.ruleHashes.put(rules.get(i).getRuleNumber(), hashes[i]);
+	}
+
+	/**
+	 * Returns the rules in the order they are kept: calc, or, and, then all rules, each by rule number.
+	 */
+	private static ArrayList<BaseRule> getRuleList(RuleSnapshot next) {
+		ArrayList<BaseRule> rules = new ArrayList<BaseRule>(next.calcRules.size() + next.orRules.size() + next.andRules.size() + next.allRules.size());
+		rules.addAll(next.calcRules.values());
+		rules.addAll(next.orRules.values());
+		rules.addAll(next.andRules.values());
+		rules.addAll(next.allRules.values());
+		return rules;
+	}
+
+	/**
+	 * Run the task for each index from 0 to count, in chunks on the load pool, and wait for them all.  Small documents are done on the calling 
+	 * thread.  If tasks throw, the exception of the lowest index is thrown, as a loop would.
+	 */
+	private void forEachRule(final int count, final RuleTask task) throws Exception {
+
+		ForkJoinPool pool = (loadPool != null) ? loadPool : ForkJoinPool.commonPool();
+		if(count < PARALLEL_LOAD_THRESHOLD || pool.getParallelism() < 2) {
+			for (int i = 0; i < count; i++) task.run(i);
+			return;
+		}
 
-		if(isCalcRule(ruleNumber)) {
-			return (Rule) calcRules.get(ruleNumber);
-		} else if(isAndRule(ruleNumber)) {
-			return (Rule) andRules.get(ruleNumber);
-		} else if(isOrRule(ruleNumber)) {
-			return (Rule) orRules.get(ruleNumber);
-		} else if(isAllRule(ruleNumber)) {
-			return (Rule) allRules.get(ruleNumber);
+		final int chunkSize = count / (pool.getParallelism() * 4) + 1;
+		final Exception[] failures = new Exception[(count + chunkSize - 1) / chunkSize];
+		ArrayList<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(failures.length);
+		for (int c = 0; c < failures.length; c++) {
+			final int chunk = c;
+			tasks.add(pool.submit(() -> {
+				int end = Math.min(count, (chunk + 1) * chunkSize);
+				for (int i = chunk * chunkSize; i < end; i++) {
+					try {
+						task.run(i);
+					} catch (Exception e) {
+						failures[chunk] = e;
+						return;
+					}
+				}
+			}));
+		}
+		for (ForkJoinTask<?> t : tasks) t.join();
+		for (Exception e : failures) {
+			if(e != null) throw e;
+		}
+
+	}
+
+	/**
+	 * Returns the numbers of the rules whose content hash is the same as in the previous load.
+	 */
+	private static HashSet<Integer> getUnchangedRules(RuleSnapshot next, RuleSnapshot previous) {
+		HashSet<Integer> unchanged = new HashSet<Integer>();
+		for (Map.Entry<Integer, Long> entry : next.ruleHashes.entrySet()) {
+			if(entry.getValue().equals(previous.ruleHashes.get(entry.getKey()))) unchanged.add(entry.getKey());
+		}
+		return unchanged;
+	}
+
+	private static void setChangedRules(RuleSnapshot next, HashSet<Integer> unchanged) {
+		next.changedRules.addAll(next.ruleHashes.keySet());
+		next.changedRules.removeAll(unchanged);
+	}
+
+	/**
+	 * Count a reference to the expression of each calc rule that uses the ExpressionRuleHandler, once per distinct expression, and return the
+	 * expressions referenced.
+	 */
+	private static HashSet<String> addExpressionReferences(RuleSnapshot next) {
+		HashSet<String> referenced = new HashSet<String>();
+		for (CalcRule calcRule : next.calcRules.values()) {
+			if(!ExpressionRuleHandler.class.getName().equals(calcRule.getHandlerClass())) continue;
+			if(calcRule.getExpression() != null && referenced.add(calcRule.getExpression())) ExpressionHandler.addReference(calcRule.getExpression());
+		}
+		return referenced;
+	}
+
+	/**
+	 * Compile the MVEL expressions of calc rules that use the ExpressionRuleHandler, which also precompiles their literal regular expressions.
+	 * Under the LAZY policy they are marked to be compiled on first use instead, and under BACKGROUND they are left to startCompilation; both 
+	 * still check the literal regular expressions, so an invalid one fails the load under every policy.  Unchanged rules are skipped only while 
+	 * their expression is still compiled; it may have been released, loaded under another policy, or not reached yet by a background compilation.
+	 */
+	private void compileExpressions(RuleSnapshot next, HashSet<Integer> unchanged) throws Exception {
+		final ArrayList<String> expressions = new ArrayList<String>();
+		for (CalcRule calcRule : next.calcRules.values()) {
+			if(!ExpressionRuleHandler.class.getName().equals(calcRule.getHandlerClass()) || calcRule.getExpression() == null) continue;
+			if(unchanged.contains(calcRule.getRuleNumber()) && ExpressionHandler.isCompiled(calcRule.getExpression())) continue;
+			expressions.add(calcRule.getExpression());
+		}
+		if(compilationPolicy == EAGER) {
+			forEachRule(expressions.size(), i -> ExpressionHandler.compileExpression(expressions.get(i)));
+			return;
+		}
+		forEachRule(expressions.size(), i -> RegexHandler.rewriteMatches(expressions.get(i)));
+		if(compilationPolicy == LAZY) for (String expression : expressions) ExpressionHandler.compileOnFirstUse(expression);
+	}
+
+	/**
+	 * Under the BACKGROUND policy, compile the expressions and scores of every rule on the compilation executor, in the order of getCompilationOrder.
+	 * A later load stops the compilation of an earlier one.
+	 */
+	private void startCompilation(RuleSnapshot next) {
+
+		final int load = loads.incrementAndGet();
+		if(compilationPolicy != BACKGROUND) {
+			compilation = CompletableFuture.completedFuture(null);
+			return;
 		}
 		
-		return null;
+		final ArrayList<Integer> order = getCompilationOrder(next);
+		final TreeMap<Integer, CalcRule> calcRules = next.calcRules;
+		final TreeMap<Integer, ScoreExpression> passScores = next.passScores;
+		final TreeMap<Integer, ScoreExpression> failScores = next.failScores;
+		final AtomicInteger position = new AtomicInteger();
+		
+		Runnable compiler = new Runnable() {
+			@Override
+			public void run() {
+				int i;
+				while (load == loads.get() && (i = position.getAndIncrement()) < order.size()) {
+					Integer ruleNumber = order.get(i);
+					CalcRule calcRule = calcRules.get(ruleNumber);
+					if(calcRule != null && ExpressionRuleHandler.class.getName().equals(calcRule.getHandlerClass())) {
+						try {
+							ExpressionHandler.compileExpression(calcRule.getExpression());
+						} catch (Exception e) {
+							// the interpreter reports the invalid regular expression when the rule is evaluated
+						}
+					}
+					ScoreExpression passScore = passScores.get(ruleNumber);
+					if(passScore != null) passScore.compile();
+					ScoreExpression failScore = failScores.get(ruleNumber);
+					if(failScore != null) failScore.compile();
+				}
+			}
+		};
+
+		Executor executor = (compilationExecutor != null) ? compilationExecutor : getDefaultCompilationExecutor();
+		CompletableFuture<?>[] compilers = new CompletableFuture<?>[COMPILATION_THREADS];
+		for (int i = 0; i < compilers.length; i++) compilers[i] = CompletableFuture.runAsync(compiler, executor);
+		compilation = CompletableFuture.allOf(compilers);
+
+	}
+
+	/**
+	 * Returns every rule number, those reachable from the start rule first, nearest first, then the rest in order.
+	 */
+	private static ArrayList<Integer> getCompilationOrder(RuleSnapshot next) {
+
+		LinkedHashSet<Integer> order = new LinkedHashSet<Integer>();
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		Integer startRule = next.baseRules.getStartRule();
+		if(startRule != null && next.ruleHashes.containsKey(startRule)) queue.add(startRule);
+		
+		while (!queue.isEmpty()) {
+			Integer ruleNumber = queue.poll();
+			if(!order.add(ruleNumber)) continue;
+			CompositeRule compositeRule = next.orRules.get(ruleNumber);
+			if(compositeRule == null) compositeRule = next.andRules.get(ruleNumber);
+			if(compositeRule == null) compositeRule = next.allRules.get(ruleNumber);
+			if(compositeRule == null || compositeRule.getCompositeRulesArray() == null) continue;
+			for (int compositeRuleNumber : compositeRule.getCompositeRulesArray()) {
+				Integer child = Math.abs(compositeRuleNumber);
+				if(next.ruleHashes.containsKey(child) && !order.contains(child)) queue.add(child);
+			}
+		}
+		order.addAll(new TreeSet<Integer>(next.ruleHashes.keySet()));
 		
+		return new ArrayList<Integer>(order);
+
 	}
 
-	private void setManifest(BaseRules rules) {
-		setBaseRulesToManifest(rules);
-		setOrRulesToManifest(rules);
-		setAndRulesToManifest(rules);
-		setAllRulesToManifest(rules);
+	private static synchronized Executor getDefaultCompilationExecutor() {
+		if(defaultCompilationExecutor == null) {
+			defaultCompilationExecutor = Executors.newFixedThreadPool(COMPILATION_THREADS, new ThreadFactory() {
+				private final AtomicInteger threads = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rule-compiler-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultCompilationExecutor;
+	}
+
+	/**
+	 * Classify and compile the passScore and failScore expressions of every rule, when the compilation policy says to.  Constant scores are 
+	 * folded to doubles when compiled.  Unchanged rules keep the scores compiled by the previous load.
+	 */
+	private void compileScores(RuleSnapshot next, final HashSet<Integer> unchanged, final RuleSnapshot previous) throws Exception {
+
+		final ArrayList<BaseRule> rules = getRuleList(next);
+		final ScoreExpression[] compiledPassScores = new ScoreExpression[rules.size()];
+		final ScoreExpression[] compiledFailScores = new ScoreExpression[rules.size()];
+		forEachRule(rules.size(), i -> {
+			BaseRule rule = rules.get(i);
+			boolean reuse = unchanged.contains(rule.getRuleNumber());
+			if(rule.getPassScore() != null) {
+				ScoreExpression score = reuse ? previous.passScores.get(rule.getRuleNumber()) : null;
+				compiledPassScores[i] = (score != null) ? score : newScoreExpression(rule.getPassScore());
+			}
+			if(rule.getFailScore() != null) {
+				ScoreExpression score = reuse ? previous.failScores.get(rule.getRuleNumber()) : null;
+				compiledFailScores[i] = (score != null) ? score : newScoreExpression(rule.getFailScore());
+			}
+		});
+
+		for (int i = 0; i < rules.size(); i++) {
+			if(compiledPassScores[i] != null) next.passScores.put(rules.get(i).getRuleNumber(), compiledPassScores[i]);
+			if(compiledFailScores[i] != null) next.failScores.put(rules.get(i).getRuleNumber(), compiledFailScores[i]);
+		}
+
 	}
-	
-	private void setBaseRulesToManifest(BaseRules rules) {
-		ArrayList<CalcRule> ar = rules.getCalcRules();
+
+	private static void setRuleIndex(RuleSnapshot next) {
+		TreeSet<Integer> ruleNumbers = new TreeSet<Integer>();
+		ruleNumbers.addAll(next.calcRules.keySet());
+		ruleNumbers.addAll(next.orRules.keySet());
+		ruleNumbers.addAll(next.andRules.keySet());
+		ruleNumbers.addAll(next.allRules.keySet());
+		next.ruleIndex = new RuleIndex(ruleNumbers);
+	}
+
+	/**
+	 * Make a new memo table and add the calc rules marked pure that use the ExpressionRuleHandler, with the variables their expressions read.
+	 * Unchanged rules keep their variables and memoized results from the previous table.
+	 */
+	private void setPureRuleMemo(RuleSnapshot next, final HashSet<Integer> unchanged, final PureRuleMemo previousMemo) throws Exception {
+
+		final ArrayList<CalcRule> pureRules = new ArrayList<CalcRule>();
+		for (CalcRule calcRule : next.calcRules.values()) {
+			if(!Boolean.TRUE.equals(calcRule.getPure())) continue;
+			if(!ExpressionRuleHandler.class.getName().equals(calcRule.getHandlerClass())) continue;
+			pureRules.add(calcRule);
+		}
+		
+		final String[][] inputs = new String[pureRules.size()][];
+		forEachRule(pureRules.size(), i -> {
+			CalcRule calcRule = pureRules.get(i);
+			if(unchanged.contains(calcRule.getRuleNumber())) inputs[i] = previousMemo.getVariableNames(calcRule.getRuleNumber());
+			else inputs[i] = ExpressionHandler.getInputs(calcRule.getExpression());
+		});
+
+		PureRuleMemo pureRuleMemo = new PureRuleMemo(pureRuleMemoSize);
+		for (int i = 0; i < inputs.length; i++) {
+			if(inputs[i] != null) pureRuleMemo.addRule(pureRules.get(i).getRuleNumber(), inputs[i]);
+		}
+		if(previousMemo != null && !unchanged.isEmpty()) pureRuleMemo.copyResults(previousMemo, unchanged);
+		next.pureRuleMemo = pureRuleMemo;
+
+	}
+
+	/**
+	 * Work out which rules are in force between each of the effective and expiration dates in the document.
+	 */
+	private static void setSchedule(RuleSnapshot next) {
+
+		ArrayList<Rule> rules = new ArrayList<Rule>();
+		rules.addAll(next.calcRules.values());
+		rules.addAll(next.orRules.values());
+		rules.addAll(next.andRules.values());
+		rules.addAll(next.allRules.values());
+
+		TreeMap<Integer, int[]> compositeRules = new TreeMap<Integer, int[]>();
+		for (CompositeRule rule : next.orRules.values()) compositeRules.put(rule.getRuleNumber(), rule.getCompositeRulesArray());
+		for (CompositeRule rule : next.andRules.values()) compositeRules.put(rule.getRuleNumber(), rule.getCompositeRulesArray());
+		for (CompositeRule rule : next.allRules.values()) compositeRules.put(rule.getRuleNumber(), rule.getCompositeRulesArray());
+
+		next.schedule = new RuleSchedule(rules, compositeRules);
+
+	}
+
+	private ScoreExpression newScoreExpression(String expression) {
+		if(compilationPolicy == EAGER) return new ScoreExpression(expression);
+		return new ScoreExpression(expression, compilationPolicy == LAZY);
+	}
+
+	/**
+	 * Rules often repeat the same text, like a flag or action shared by thousands of rules.  Make each rule refer to one copy of each distinct
+	 * string in the document rather than a copy of its own.
+	 */
+	private static void shareStrings(BaseRules rules) {
+
+		HashMap<String, String> strings = new HashMap<String, String>();
+		ArrayList<BaseRule> all = new ArrayList<BaseRule>();
+		if(rules.getCalcRules() != null) all.addAll(rules.getCalcRules());
+		if(rules.getOrRules() != null) all.addAll(rules.getOrRules());
+		if(rules.getAndRules() != null) all.addAll(rules.getAndRules());
+		if(rules.getAllRules() != null) all.addAll(rules.getAllRules());
+		
+		for (BaseRule rule : all) {
+			rule.setRuleType(share(strings, rule.getRuleType()));
+			rule.setDescription(share(strings, rule.getDescription()));
+			rule.setPassKey(share(strings, rule.getPassKey()));
+			rule.setFailKey(share(strings, rule.getFailKey()));
+			rule.setPassScore(share(strings, rule.getPassScore()));
+			rule.setFailScore(share(strings, rule.getFailScore()));
+			rule.setPassFlag(share(strings, rule.getPassFlag()));
+			rule.setFailFlag(share(strings, rule.getFailFlag()));
+			rule.setPassReason(share(strings, rule.getPassReason()));
+			rule.setFailReason(share(strings, rule.getFailReason()));
+			rule.setPassAction(share(strings, rule.getPassAction()));
+			rule.setFailAction(share(strings, rule.getFailAction()));
+			share(strings, rule.getRuleTags());
+			if(rule instanceof CalcRule) {
+				CalcRule calcRule = (CalcRule) rule;
+				calcRule.setExpression(share(strings, calcRule.getExpression()));
+				calcRule.setHandlerClass(share(strings, calcRule.getHandlerClass()));
+				share(strings, calcRule.getResultCacheKeys());
+			}
+		}
+		
+	}
+
+	private static String share(HashMap<String, String> strings, String value) {
+		if(value == null) return null;
+		String shared = strings.putIfAbsent(value, value);
+		return (shared == null) ? value : shared;
+	}
+
+	private static void share(HashMap<String, String> strings, ArrayList<String> values) {
+		if(values == null) return;
+		for (int i = 0; i < values.size(); i++) values.set(i, share(strings, values.get(i)));
+		values.trimToSize();
+	}
+
+	private void setBaseRulesToManifest(RuleSnapshot next) {
+		ArrayList<CalcRule> ar = next.baseRules.getCalcRules();
 		for (Iterator<CalcRule> iterator = ar.iterator(); iterator.hasNext();) {
 			CalcRule calcRule = (CalcRule) iterator.next();
-			calcRules.put(calcRule.getRuleNumber(), calcRule);
+			next.calcRules.put(calcRule.getRuleNumber(), calcRule);
 		}
 	}
 
-	private void setOrRulesToManifest(BaseRules rules) {
-		ArrayList<OrRule> ar = rules.getOrRules();
+	private void setOrRulesToManifest(RuleSnapshot next) {
+		ArrayList<OrRule> ar = next.baseRules.getOrRules();
 		for (Iterator<OrRule> iterator = ar.iterator(); iterator.hasNext();) {
 			OrRule orRule = (OrRule) iterator.next();
-			orRules.put(orRule.getRuleNumber(), orRule);
+			next.orRules.put(orRule.getRuleNumber(), orRule);
 		}
 	}
 	
-	private void setAndRulesToManifest(BaseRules rules) {
-		ArrayList<AndRule> ar = rules.getAndRules();
+	private void setAndRulesToManifest(RuleSnapshot next) {
+		ArrayList<AndRule> ar = next.baseRules.getAndRules();
 		for (Iterator<AndRule> iterator = ar.iterator(); iterator.hasNext();) {
 			AndRule andRule = (AndRule) iterator.next();
-			andRules.put(andRule.getRuleNumber(), andRule);
+			next.andRules.put(andRule.getRuleNumber(), andRule);
 		}
 	}
 
 	
-	private void setAllRulesToManifest(BaseRules rules) {
-		ArrayList<AllRule> ar = rules.getAllRules();
+	private void setAllRulesToManifest(RuleSnapshot next) {
+		ArrayList<AllRule> ar = next.baseRules.getAllRules();
 		for (Iterator<AllRule> iterator = ar.iterator(); iterator.hasNext();) {
 			AllRule allRule = (AllRule) iterator.next();
-			allRules.put(allRule.getRuleNumber(), allRule);
+			next.allRules.put(allRule.getRuleNumber(), allRule);
 		}
 	}
 
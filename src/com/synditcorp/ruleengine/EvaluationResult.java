@@ -0,0 +1,243 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * The outcome of an evaluation, as returned by RuleEvaluator.evaluateRuleForResult.  It holds the rules that passed and failed at runtime, in the
+ * order they were evaluated, with the scores, keys, flags, reasons, and actions they had at the time.  Unlike the RuleEvaluator getters, nothing is
+ * evaluated or looked up again, so the result can be kept after the evaluator is reset or the rule definition is reloaded.
+ */
+public class EvaluationResult {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	//passStrings and failStrings hold FIELDS strings per rule, in the order of passedRules and failedRules
+	static final int KEY = 0;
+	static final int FLAG = 1;
+	static final int REASON = 2;
+	static final int ACTION = 3;
+	static final int FIELDS = 4;
+
+	private final Integer ruleNumber;
+	private final boolean result;
+	private final int[] passes;
+	private final int[] fails;
+	private final int[] passedRules;
+	private final double[] passScores;
+	private final String[] passStrings;
+	private final int[] failedRules;
+	private final double[] failScores;
+	private final String[] failStrings;
+	private final int[] timedOutRules;
+
+	EvaluationResult(Integer ruleNumber, boolean result, int[] passedRules, double[] passScores, String[] passStrings, int[] failedRules, 
+			double[] failScores, String[] failStrings, int[] timedOutRules) {
+		this.ruleNumber = ruleNumber;
+		this.result = result;
+		this.passes = sorted(passedRules);
+		this.fails = sorted(failedRules);
+		this.passedRules = passedRules;
+		this.passScores = passScores;
+		this.passStrings = passStrings;
+		this.failedRules = failedRules;
+		this.failScores = failScores;
+		this.failStrings = failStrings;
+		this.timedOutRules = timedOutRules;
+	}
+
+	/**
+	 * Returns the rule number that was evaluated
+	 */
+	public Integer getRuleNumber() {
+		return ruleNumber;
+	}
+
+	/**
+	 * Returns the result of the rule that was evaluated
+	 */
+	public boolean getResult() {
+		return result;
+	}
+
+	/**
+	 * Returns "true" if the rule evaluated to true at runtime
+	 */
+	public boolean isPass(Integer ruleNumber) {
+		return ruleNumber != null && Arrays.binarySearch(passes, ruleNumber.intValue()) >= 0;
+	}
+
+	/**
+	 * Returns "true" if the rule evaluated to false at runtime
+	 */
+	public boolean isFail(Integer ruleNumber) {
+		return ruleNumber != null && Arrays.binarySearch(fails, ruleNumber.intValue()) >= 0;
+	}
+
+	/**
+	 * Returns the numbers of the rules that evaluated to true, in the order they were evaluated.  Don't modify the array.
+	 */
+	public int[] getPassedRules() {
+		return passedRules;
+	}
+
+	/**
+	 * Returns the passScores of the rules in getPassedRules(), with Double.NaN for no score.  Don't modify the array.
+	 */
+	public double[] getPassScores() {
+		return passScores;
+	}
+
+	/**
+	 * Returns the numbers of the rules that evaluated to false, in the order they were evaluated.  Don't modify the array.
+	 */
+	public int[] getFailedRules() {
+		return failedRules;
+	}
+
+	/**
+	 * Returns the failScores of the rules in getFailedRules(), with Double.NaN for no score.  Don't modify the array.
+	 */
+	public double[] getFailScores() {
+		return failScores;
+	}
+
+	/**
+	 * Returns the numbers of the rules that ran out of time and were given their timeoutOutcome.  Don't modify the array.
+	 */
+	public int[] getTimedOutRules() {
+		return timedOutRules;
+	}
+
+	public Double getPassScore(Integer ruleNumber) {
+		int i = indexOf(ruleNumber, passes, passedRules);
+		return (i < 0 || Double.isNaN(passScores[i])) ? null : Double.valueOf(passScores[i]);
+	}
+
+	public Double getFailScore(Integer ruleNumber) {
+		int i = indexOf(ruleNumber, fails, failedRules);
+		return (i < 0 || Double.isNaN(failScores[i])) ? null : Double.valueOf(failScores[i]);
+	}
+
+	public String getPassKey(Integer ruleNumber) {
+		return getString(ruleNumber, passes, passedRules, passStrings, KEY);
+	}
+
+	public String getFailKey(Integer ruleNumber) {
+		return getString(ruleNumber, fails, failedRules, failStrings, KEY);
+	}
+
+	public String getPassFlag(Integer ruleNumber) {
+		return getString(ruleNumber, passes, passedRules, passStrings, FLAG);
+	}
+
+	public String getFailFlag(Integer ruleNumber) {
+		return getString(ruleNumber, fails, failedRules, failStrings, FLAG);
+	}
+
+	public String getPassReason(Integer ruleNumber) {
+		return getString(ruleNumber, passes, passedRules, passStrings, REASON);
+	}
+
+	public String getFailReason(Integer ruleNumber) {
+		return getString(ruleNumber, fails, failedRules, failStrings, REASON);
+	}
+
+	public String getPassAction(Integer ruleNumber) {
+		return getString(ruleNumber, passes, passedRules, passStrings, ACTION);
+	}
+
+	public String getFailAction(Integer ruleNumber) {
+		return getString(ruleNumber, fails, failedRules, failStrings, ACTION);
+	}
+
+	/**
+	 * Writes the result as a JSON object: {"ruleNumber":14,"result":true,"passes":[{"rule":1,"score":1.0,"key":"passKey_1",...},...],"fails":[...]}.
+	 * Null fields and missing scores are left out, and "timedOut":[3,...] is added if rules timed out.
+	 */
+	public void writeJson(JsonGenerator generator) throws IOException {
+
+		generator.writeStartObject();
+		generator.writeNumberField("ruleNumber", ruleNumber);
+		generator.writeBooleanField("result", result);
+
+		generator.writeArrayFieldStart("passes");
+		for (int i = 0; i < passedRules.length; i++) writeRule(generator, passedRules[i], passScores[i], passStrings, i * FIELDS);
+		generator.writeEndArray();
+
+		generator.writeArrayFieldStart("fails");
+		for (int i = 0; i < failedRules.length; i++) writeRule(generator, failedRules[i], failScores[i], failStrings, i * FIELDS);
+		generator.writeEndArray();
+
+		if(timedOutRules.length > 0) {
+			generator.writeArrayFieldStart("timedOut");
+			for (int i = 0; i < timedOutRules.length; i++) generator.writeNumber(timedOutRules[i]);
+			generator.writeEndArray();
+		}
+
+		generator.writeEndObject();
+
+	}
+
+	/**
+	 * Returns the result as JSON.  See writeJson.
+	 */
+	public String toJson() throws IOException {
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = jsonFactory.createGenerator(writer);
+		writeJson(generator);
+		generator.close();
+		return writer.toString();
+	}
+
+	private static void writeRule(JsonGenerator generator, int rule, double score, String[] strings, int offset) throws IOException {
+		generator.writeStartObject();
+		generator.writeNumberField("rule", rule);
+		if(!Double.isNaN(score)) generator.writeNumberField("score", score);
+		writeString(generator, "key", strings[offset + KEY]);
+		writeString(generator, "flag", strings[offset + FLAG]);
+		writeString(generator, "reason", strings[offset + REASON]);
+		writeString(generator, "action", strings[offset + ACTION]);
+		generator.writeEndObject();
+	}
+
+	private static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+		if(value != null) generator.writeStringField(name, value);
+	}
+
+	private static int[] sorted(int[] rules) {
+		int[] sorted = rules.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	//position of the rule in the evaluation order, or -1; the sorted copy answers "not there" without a scan
+	private static int indexOf(Integer ruleNumber, int[] sorted, int[] rules) {
+		if(ruleNumber == null || Arrays.binarySearch(sorted, ruleNumber.intValue()) < 0) return -1;
+		for (int i = 0; i < rules.length; i++) {
+			if(rules[i] == ruleNumber.intValue()) return i;
+		}
+		return -1;
+	}
+
+	private static String getString(Integer ruleNumber, int[] sorted, int[] rules, String[] strings, int field) {
+		int i = indexOf(ruleNumber, sorted, rules);
+		return (i < 0) ? null : strings[i * FIELDS + field];
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+package com.synditcorp.ruleengine;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the calls to one RuleClassHandler that run at the same time, so a slow service can only tie up that many request threads.  A call 
+ * beyond the limit waits its turn if fewer than maxQueued calls are already waiting, and is rejected otherwise, or when it has waited maxWait 
+ * milliseconds.  A rejected calc rule evaluates to the rejection outcome.  Register a bulkhead with CalcRuleProcessor.setBulkhead.  The counts 
+ * show how often the handler is saturated.
+ */
+public class RuleBulkhead {
+
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final Semaphore permits;
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong queuedCalls = new AtomicLong();
+	private final AtomicLong rejectedCalls = new AtomicLong();
+	private volatile long maxWait = 0;
+	private volatile String rejectionOutcome = null;
+
+	/**
+	 * @param maxConcurrent is the number of calls that can run at the same time
+	 * @param maxQueued is the number of calls that can wait for a running call to finish, 0 to reject as soon as the limit is reached
+	 */
+	public RuleBulkhead(int maxConcurrent, int maxQueued) throws Exception {
+
+		if(maxConcurrent < 1) throw new Exception("A bulkhead's maxConcurrent must be at least 1.");
+		if(maxQueued < 0) throw new Exception("A bulkhead's maxQueued can't be negative.");
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.permits = new Semaphore(maxConcurrent, true);
+
+	}
+
+	/**
+	 * Sets the milliseconds a call waits for its turn before it is rejected, or 0 (the default) to wait as long as it takes.  Async calls never 
+	 * wait longer than maxWait, so with 0 they are rejected as soon as the bulkhead is saturated.
+	 */
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+
+	/**
+	 * Sets what a rejected calc rule evaluates to: "pass" or "fail", recorded like any other result, or "abort" (the default), which throws an Exception
+	 */
+	public void setRejectionOutcome(String rejectionOutcome) throws Exception {
+		if(rejectionOutcome != null && !rejectionOutcome.equals("pass") && !rejectionOutcome.equals("fail") && !rejectionOutcome.equals("abort")) {
+			throw new Exception("A bulkhead's rejectionOutcome must be pass, fail, or abort, not " + rejectionOutcome + ".");
+		}
+		this.rejectionOutcome = rejectionOutcome;
+	}
+
+	public String getRejectionOutcome() {
+		return rejectionOutcome;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	/**
+	 * Returns the number of calls running now
+	 */
+	public int getActive() {
+		return maxConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * Returns the number of calls waiting for their turn now
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	/**
+	 * Returns "true" if as many calls as allowed are running now
+	 */
+	public boolean isSaturated() {
+		return permits.availablePermits() == 0;
+	}
+
+	/**
+	 * Returns the number of calls made through the bulkhead, including rejected calls
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * Returns the number of calls that had to wait because the bulkhead was saturated
+	 */
+	public long getQueuedCalls() {
+		return queuedCalls.get();
+	}
+
+	/**
+	 * Returns the number of calls rejected because the queue was full or they waited too long
+	 */
+	public long getRejectedCalls() {
+		return rejectedCalls.get();
+	}
+
+	@Override
+	public String toString() {
+		return "maxConcurrent=" + maxConcurrent + " maxQueued=" + maxQueued + " active=" + getActive() + " waiting=" + getWaiting() + " calls=" + getCalls() 
+				+ " queuedCalls=" + getQueuedCalls() + " rejectedCalls=" + getRejectedCalls();
+	}
+
+	/**
+	 * Takes a turn, waiting if needed.  Returns false if the call is rejected.  Each true must be followed by release().  A bounded call waits 
+	 * no longer than maxWait, and is rejected rather than waiting when there is no maxWait.
+	 */
+	boolean acquire(boolean bounded) throws InterruptedException {
+
+		calls.incrementAndGet();
+		//the timed tryAcquire keeps to the fair order, where tryAcquire() would take a turn ahead of the calls already waiting
+		if(permits.tryAcquire(0, TimeUnit.MILLISECONDS)) return true;
+
+		long wait = maxWait;
+		if(bounded && wait <= 0) {
+			rejectedCalls.incrementAndGet();
+			return false;
+		}
+		if(waiting.incrementAndGet() > maxQueued) {
+			waiting.decrementAndGet();
+			rejectedCalls.incrementAndGet();
+			return false;
+		}
+		queuedCalls.incrementAndGet();
+		try {
+			if(wait <= 0) {
+				permits.acquire();
+				return true;
+			}
+			if(permits.tryAcquire(wait, TimeUnit.MILLISECONDS)) return true;
+			rejectedCalls.incrementAndGet();
+			return false;
+		} finally {
+			waiting.decrementAndGet();
+		}
+
+	}
+
+	void release() {
+		permits.release();
+	}
+
+}
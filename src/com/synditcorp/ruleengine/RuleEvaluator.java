@@ -12,16 +12,38 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 package com.synditcorp.ruleengine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 
 import com.synditcorp.ruleengine.logging.TimeTrack;
+import com.synditcorp.ruleengine.beans.BaseRule;
+import com.synditcorp.ruleengine.beans.CalcRule;
 import com.synditcorp.ruleengine.beans.CompositeRule;
-import com.synditcorp.ruleengine.handlers.ExpressionHandler;
+import com.synditcorp.ruleengine.cache.PureRuleMemo;
+import com.synditcorp.ruleengine.handlers.ExpressionRuleHandler;
+import com.synditcorp.ruleengine.handlers.ScoreExpression;
 import com.synditcorp.ruleengine.interfaces.Rule;
 import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+import com.synditcorp.ruleengine.interfaces.RuleResultCache;
 import com.synditcorp.ruleengine.logging.RuleLogger;
+import com.synditcorp.ruleengine.logging.RuleProfiler;
 
 /**
  * This class provides the runtime methods for the rule engine.  Injected is a RuleDefinitions object that implements the RuleDefinitions interface.  This class is the 
@@ -29,16 +51,56 @@ import com.synditcorp.ruleengine.logging.RuleLogger;
  */
 public class RuleEvaluator {
 
+	private final RuleDefinition loadedDefinition;
 	private RuleDefinition ruleDefinition;
+	private CompiledRuleDefinition compiledDefinition;
+	private boolean pinned = false;
+	private final HashMap<Integer, Integer> positions = new HashMap<Integer, Integer>();
 	private TreeMap<Integer, Boolean> cache = new TreeMap<Integer, Boolean>();
-	private TreeMap<String, Object> variables = new TreeMap<String, Object>();
-	private ArrayList<Integer> runtimePasses = new ArrayList<Integer>();
-	private ArrayList<Integer> runtimeFails = new ArrayList<Integer>();
+	private final TreeMap<String, Object> evaluatorVariables = new TreeMap<String, Object>();
+	private TreeMap<String, Object> variables = evaluatorVariables;
+	private BitSet runtimePasses = new BitSet();
+	private BitSet runtimeFails = new BitSet();
+	private int[] passOrder = new int[16];
+	private double[] passOrderScores = new double[16];
+	private int passCount = 0;
+	private int[] failOrder = new int[16];
+	private double[] failOrderScores = new double[16];
+	private int failCount = 0;
+	private TreeMap<Integer, Boolean> prefetched = new TreeMap<Integer, Boolean>();
+	private RuleResultCache resultCache;
+	private RuleProfiler profiler;
+	private long childNanos = 0;
+	private TreeMap<Integer, CompletableFuture<Boolean>> started = new TreeMap<Integer, CompletableFuture<Boolean>>();
+	private Executor parallelExecutor;
+	private static Executor defaultParallelExecutor;
+	private boolean hasDeadline = false;
+	private long deadline;
+	private ArrayList<Integer> timedOutRules = new ArrayList<Integer>();
 
 	public RuleEvaluator(RuleDefinition rulesDefinition, Logger logger) {
-		this.ruleDefinition = rulesDefinition;
+		this.loadedDefinition = rulesDefinition;
+		unpinDefinition();
 		RuleLogger.logger = logger;
 	}
+
+	/**
+	 * Evaluate against a snapshot of the rules as they are loaded now (see CompiledRuleDefinition.getSnapshot) until the next reset(), so the 
+	 * results of a request are indexed and looked up in one version of the rules, even if the rules are reloaded while it is evaluated.
+	 */
+	private void pinDefinition() {
+		if(pinned) return;
+		pinned = true;
+		if(compiledDefinition == null) return;
+		compiledDefinition = compiledDefinition.getSnapshot();
+		ruleDefinition = compiledDefinition;
+	}
+
+	private void unpinDefinition() {
+		pinned = false;
+		ruleDefinition = loadedDefinition;
+		compiledDefinition = (loadedDefinition instanceof CompiledRuleDefinition) ? (CompiledRuleDefinition) loadedDefinition : null;
+	}
 	
 	/**
 	 * Returns the ID of the rule definition 
@@ -90,35 +152,224 @@ public class RuleEvaluator {
 	}
 	
 	/**
-	 * Evaluate the rule referenced by rule number.  The rule number must be one of the rules referenced in the document parsed by the engine's parser.
+	 * Evaluate the rule referenced by rule number.  The rule number must be one of the rules referenced in the document parsed by the engine's parser,
+	 * and the rule must be in force (see the active, effectiveDate, and expirationDate fields).
 	 */
 	public boolean evaluateRule(Integer ruleNumber) throws Exception {
 		
+		pinDefinition();
+		if(!ruleDefinition.isInForce(ruleNumber)) throw new Exception("Rule number " + ruleNumber + " is not in force.");
+		
 		boolean result = callRule(ruleNumber);
 		
 		return ( result );
 
 	}
 	
+	/**
+	 * Evaluate the rule referenced by rule number, giving up on rules not finished within the timeout.  The time left is checked before each rule
+	 * is evaluated, and calc rules with a handler other than the ExpressionRuleHandler are called on another thread (see setParallelExecutor) and 
+	 * waited for no longer than the time left, or the rule's own timeout if that is sooner.  A rule that runs out of time evaluates to its 
+	 * timeoutOutcome: "pass" or "fail" are recorded like any other result and evaluation goes on, "abort" (the default) throws an Exception.  
+	 * getTimedOutRules() lists the rules that timed out.  Handlers called with a time limit are given a copy of the variables, and one that doesn't
+	 * stop when interrupted goes on running after its rule has timed out.
+	 */
+	public boolean evaluateRule(Integer ruleNumber, long timeout, TimeUnit unit) throws Exception {
+
+		deadline = System.nanoTime() + unit.toNanos(timeout);
+		hasDeadline = true;
+		try {
+			return evaluateRule(ruleNumber);
+		} finally {
+			hasDeadline = false;
+		}
+
+	}
+
+	/**
+	 * Evaluate the rule referenced by rule number without blocking on calc rules whose handlers implement AsyncRuleClassHandler.  The async handlers
+	 * of all calc rules the rule can reach are called at once, using the variables as they are now, so they run concurrently instead of one after the
+	 * other.  When they have all completed, the rule is evaluated with their results and the returned future completes.  Because the handlers are called
+	 * before the rule is evaluated, they are called even if and/or short-circuiting would have skipped them, and they must not rely on the runtime 
+	 * values of other rules (passScore_1, etc.).  Each handler is given its own copy of the variables, so changes it makes to them are not seen by
+	 * the rules.  The rule is then evaluated on the parallel executor (see setParallelExecutor), not on the thread that completed the last call.
+	 * Don't use this evaluator until the future has completed.
+	 */
+	public CompletableFuture<Boolean> evaluateRuleAsync(Integer ruleNumber) {
+
+		final ArrayList<Integer> asyncRules = new ArrayList<Integer>();
+		final ArrayList<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+
+		try {
+			pinDefinition();
+			if(!ruleDefinition.isInForce(ruleNumber)) throw new Exception("Rule number " + ruleNumber + " is not in force.");
+			addAsyncRules(ruleNumber, asyncRules, new HashSet<Integer>());
+			for (int i = 0; i < asyncRules.size(); i++) {
+				String ruleHandler = ruleDefinition.getHandlerClass(asyncRules.get(i));
+				String expression = ruleDefinition.getExpression(asyncRules.get(i));
+				try {
+					//each call gets its own copy, as the handlers run on other threads while this evaluator goes on writing its variables
+					futures.add(CalcRuleProcessor.processCalcRuleAsync(ruleHandler, expression, new TreeMap<String, Object>(variables)));
+				} catch (RejectedExecutionException e) {
+					//left for evaluateRule, which calls the handler again and gives the rule its rejection outcome if the bulkhead is still full
+					asyncRules.remove(i--);
+				}
+			}
+		} catch (Exception e) {
+			prefetched.clear();
+			CompletableFuture<Boolean> failed = new CompletableFuture<Boolean>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		//handled on both outcomes, so the results prefetched by addAsyncRules are cleared when a call fails too
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handleAsync((v, failure) -> {
+			try {
+				if(failure != null) throw (failure instanceof CompletionException) ? (CompletionException) failure : new CompletionException(failure);
+				for (int i = 0; i < asyncRules.size(); i++) {
+					Boolean result = futures.get(i).join();
+					putResultCache(asyncRules.get(i), result);
+					prefetched.put(asyncRules.get(i), result);
+				}
+				return evaluateRule(ruleNumber);
+			} catch (CompletionException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			} finally {
+				prefetched.clear();
+			}
+		}, (parallelExecutor != null) ? parallelExecutor : getDefaultParallelExecutor());
+
+	}
+
+	/**
+	 * Evaluate the rule referenced by rule number and return the outcome as an EvaluationResult, which holds the rules that passed and failed with
+	 * their scores.  This is the cheaper way to collect the outcome of many rules than calling getPassKey, getPassScore, etc. for each one.  The
+	 * result includes every rule evaluated since the last reset().
+	 */
+	public EvaluationResult evaluateRuleForResult(Integer ruleNumber) throws Exception {
+
+		boolean result = evaluateRule(ruleNumber);
+
+		return getEvaluationResult(ruleNumber, result);
+
+	}
+
+	/**
+	 * Evaluate the rule referenced by rule number within the timeout, as evaluateRule(ruleNumber, timeout, unit) does, and return the outcome as
+	 * an EvaluationResult, which also holds the rules that timed out.
+	 */
+	public EvaluationResult evaluateRuleForResult(Integer ruleNumber, long timeout, TimeUnit unit) throws Exception {
+
+		boolean result = evaluateRule(ruleNumber, timeout, unit);
+
+		return getEvaluationResult(ruleNumber, result);
+
+	}
+
+	private EvaluationResult getEvaluationResult(Integer ruleNumber, boolean result) throws Exception {
+
+		int[] timedOut = new int[timedOutRules.size()];
+		for (int i = 0; i < timedOut.length; i++) timedOut[i] = timedOutRules.get(i);
+		
+		return new EvaluationResult(ruleNumber, result, Arrays.copyOf(passOrder, passCount), Arrays.copyOf(passOrderScores, passCount), 
+				getResultStrings(passOrder, passCount, true), Arrays.copyOf(failOrder, failCount), Arrays.copyOf(failOrderScores, failCount), 
+				getResultStrings(failOrder, failCount, false), timedOut);
+
+	}
+
+	//one rule lookup per evaluated rule, so the result holds the strings the rules had when they were evaluated
+	private String[] getResultStrings(int[] order, int count, boolean pass) throws Exception {
+		String[] strings = new String[count * EvaluationResult.FIELDS];
+		for (int i = 0; i < count; i++) {
+			Rule rule = ruleDefinition.getRule(order[i]);
+			int offset = i * EvaluationResult.FIELDS;
+			strings[offset + EvaluationResult.KEY] = pass ? rule.getPassKey() : rule.getFailKey();
+			strings[offset + EvaluationResult.FLAG] = pass ? rule.getPassFlag() : rule.getFailFlag();
+			strings[offset + EvaluationResult.REASON] = pass ? rule.getPassReason() : rule.getFailReason();
+			strings[offset + EvaluationResult.ACTION] = pass ? rule.getPassAction() : rule.getFailAction();
+		}
+		return strings;
+	}
+
 	/**
 	 * This clears three collections.  First, the rule "passes" (those that evaluate to true) are cleared.  Next, the rule "fails" (those that evaluate to false) 
 	 * are cleared. Third, variables passed into the engine, as well as those accumulated by the engine (e.g. scores, actions, etc.) at runtime, are cleared.
-	 * WARNING: variables must be set using setVariables() before the engine can be run again if the expressions to be evaluated need the variables.
+	 * The collections are cleared and kept for the next request rather than discarded.  The next evaluation uses the rules as they are loaded then.  A map passed to setVariables() is let go of, not cleared, and the
+	 * evaluator goes back to its own, now empty, variables.
+	 * WARNING: variables must be set using setVariables() or putVariables() before the engine can be run again if the expressions to be evaluated need the variables.
 	 */
 	public void reset() {
 		clearCache();
 		clearRuntimePasses();
 		clearRuntimeFails();
 		clearVariables();
+		timedOutRules.clear();
+		unpinDefinition();
 	}
 	
 	/**
-	 * Set the variables the rules engine will use in expressions, or passed to custom rule handlers.
+	 * Set the variables the rules engine will use in expressions, or passed to custom rule handlers.  The map is used as is, so runtime variables are
+	 * added to it.
 	 */
 	public void setVariables(TreeMap<String, Object> variables) {
 		this.variables = variables;
 	}
 
+	/**
+	 * Copy variables into the variables the rules engine will use.  Unlike setVariables(), this doesn't need a new map for each request.
+	 */
+	public void putVariables(Map<String, ? extends Object> variables) {
+		this.variables.putAll(variables);
+	}
+
+	/**
+	 * Add a variable to the variables the rules engine will use.
+	 */
+	public void putVariable(String name, Object value) {
+		this.variables.put(name, value);
+	}
+
+	/**
+	 * Set the cache that keeps calc rule results across requests.  Only calc rules with a resultCacheTtl use the cache.  Share one cache between
+	 * the RuleEvaluator instances of a document.
+	 */
+	public void setResultCache(RuleResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	public RuleResultCache getResultCache() {
+		return this.resultCache;
+	}
+
+	/**
+	 * Set the profiler that counts the evaluations, results, and time of each rule, or null to stop profiling.  Share one profiler between the 
+	 * RuleEvaluator instances of a document.
+	 */
+	public void setProfiler(RuleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	public RuleProfiler getProfiler() {
+		return this.profiler;
+	}
+
+	/**
+	 * Set the threads that call the RuleClassHandlers of "parallel" or and and rules.  By default, a pool of daemon threads, created as needed and
+	 * shared by every RuleEvaluator, is used.  AsyncRuleClassHandlers don't need a thread.
+	 */
+	public void setParallelExecutor(Executor parallelExecutor) {
+		this.parallelExecutor = parallelExecutor;
+	}
+
+	/**
+	 * Returns the numbers of the rules that ran out of time since the last reset(), in the order they timed out.  See evaluateRule with a timeout.
+	 */
+	public ArrayList<Integer> getTimedOutRules() {
+		return timedOutRules;
+	}
+
 	/**
 	 * Get the variables used by the rules engine.  This includes set variables as well as runtime variables generated at runtime
 	 */
@@ -130,7 +381,7 @@ public class RuleEvaluator {
 	 * Get the passKey for a particular rule.  This returns the passKey set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getPassKey(Integer ruleNumber) throws Exception {
-		if(!runtimePasses.contains(ruleNumber)) return null;
+		if(!isRuntimePass(ruleNumber)) return null;
 		return ruleDefinition.getPassKey(ruleNumber);
 	}
 	
@@ -138,7 +389,7 @@ public class RuleEvaluator {
 	 * Get the failKey for a particular rule.  This returns the failKey set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getFailKey(Integer ruleNumber) throws Exception {
-		if(!runtimeFails.contains(ruleNumber)) return null;
+		if(!isRuntimeFail(ruleNumber)) return null;
 		return ruleDefinition.getFailKey(ruleNumber);
 	}
 
@@ -146,25 +397,23 @@ public class RuleEvaluator {
 	 * Get the passScore for a particular rule.  This returns the results of the passScore expression set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public Double getPassScore(Integer ruleNumber) throws Exception {
-		if(!runtimePasses.contains(ruleNumber)) return null;
-		if(ruleDefinition.getPassScore(ruleNumber) == null) return null;
-		return evaluateExpression(ruleDefinition.getPassScore(ruleNumber));
+		if(!isRuntimePass(ruleNumber)) return null;
+		return toDouble(getScore(getCompiledPassScore(ruleNumber)));
 	}
 	
 	/**
 	 * Get the failScore for a particular rule.  This returns the results of the failScore expression set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public Double getFailScore(Integer ruleNumber) throws Exception {
-		if(!runtimeFails.contains(ruleNumber)) return null;
-		if(ruleDefinition.getFailScore(ruleNumber) == null) return null;
-		return evaluateExpression(ruleDefinition.getFailScore(ruleNumber));
+		if(!isRuntimeFail(ruleNumber)) return null;
+		return toDouble(getScore(getCompiledFailScore(ruleNumber)));
 	}
 	
 	/**
 	 * Get the passFlag for a particular rule.  This returns the passFlag set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getPassFlag(Integer ruleNumber) throws Exception {
-		if(!runtimePasses.contains(ruleNumber)) return null;
+		if(!isRuntimePass(ruleNumber)) return null;
 		return getRule(ruleNumber).getPassFlag();
 	}
 	
@@ -172,7 +421,7 @@ public class RuleEvaluator {
 	 * Get the failFlag for a particular rule.  This returns the failFlag set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getFailFlag(Integer ruleNumber) throws Exception {
-		if(!runtimeFails.contains(ruleNumber)) return null;
+		if(!isRuntimeFail(ruleNumber)) return null;
 		return ruleDefinition.getFailFlag(ruleNumber);
 	}
 	
@@ -180,7 +429,7 @@ public class RuleEvaluator {
 	 * Get the passReason for a particular rule.  This returns the passReason set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getPassReason(Integer ruleNumber) throws Exception {
-		if(!runtimePasses.contains(ruleNumber)) return null;
+		if(!isRuntimePass(ruleNumber)) return null;
 		return ruleDefinition.getPassReason(ruleNumber);
 	}
 	
@@ -188,7 +437,7 @@ public class RuleEvaluator {
 	 * Get the failReason for a particular rule.  This returns the failReason set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getFailReason(Integer ruleNumber) throws Exception {
-		if(!runtimeFails.contains(ruleNumber)) return null;
+		if(!isRuntimeFail(ruleNumber)) return null;
 		return ruleDefinition.getFailReason(ruleNumber);
 	}
 	
@@ -196,7 +445,7 @@ public class RuleEvaluator {
 	 * Get the passAction for a particular rule.  This returns the passAction set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getPassAction(Integer ruleNumber) throws Exception {
-		if(!runtimePasses.contains(ruleNumber)) return null;
+		if(!isRuntimePass(ruleNumber)) return null;
 		return ruleDefinition.getPassAction(ruleNumber);
 	}
 	
@@ -204,7 +453,7 @@ public class RuleEvaluator {
 	 * Get the failAction for a particular rule.  This returns the failAction set in the rules document and that evaluated to "true" at runtime.
 	 */
 	public String getFailAction(Integer ruleNumber) throws Exception {
-		if(!runtimeFails.contains(ruleNumber)) return null;
+		if(!isRuntimeFail(ruleNumber)) return null;
 		return ruleDefinition.getFailAction(ruleNumber);
 	}
 	
@@ -234,12 +483,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositePassKeys();
+			int[] list = cr.getCompositePassKeysArray();
 			if(list == null) return keys;
 
-			for (int i = 0; i < list.size(); i++) {
-				if(getPassKey(list.get(i)) == null) continue;
-				keys.add(getPassKey(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getPassKey(list[i]) == null) continue;
+				keys.add(getPassKey(list[i]));
 			}
 		}
 
@@ -258,12 +507,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositeFailKeys();
+			int[] list = cr.getCompositeFailKeysArray();
 			if(list == null) return keys;
 
-			for (int i = 0; i < list.size(); i++) {
-				if(getFailKey(list.get(i)) == null) continue;
-				keys.add(getFailKey(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getFailKey(list[i]) == null) continue;
+				keys.add(getFailKey(list[i]));
 			}
 		}
 
@@ -282,11 +531,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositePassScore();			
+			int[] list = cr.getCompositePassScoreArray();			
 			if(list == null) return null;
-			for (int i = 0; i < list.size(); i++) {
-				if(getPassScore(list.get(i)) == null) continue;
-				double ruleScore = getPassScore(list.get(i)).doubleValue();
+			for (int i = 0; i < list.length; i++) {
+				if(!isRuntimePass(list[i])) continue;
+				double ruleScore = getScore(getCompiledPassScore(list[i]));
+				if(Double.isNaN(ruleScore)) continue;
 				calcScore = calcScore + ruleScore;
 			}
 		}
@@ -306,11 +556,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositeFailScore();
+			int[] list = cr.getCompositeFailScoreArray();
 			if(list == null) return null;
-			for (int i = 0; i < list.size(); i++) {
-				if(getFailScore(list.get(i)) == null) continue;
-				double ruleScore = getFailScore(list.get(i)).doubleValue();
+			for (int i = 0; i < list.length; i++) {
+				if(!isRuntimeFail(list[i])) continue;
+				double ruleScore = getScore(getCompiledFailScore(list[i]));
+				if(Double.isNaN(ruleScore)) continue;
 				calcScore = calcScore + ruleScore;
 			}
 		}
@@ -330,12 +581,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositePassFlags();
+			int[] list = cr.getCompositePassFlagsArray();
 			if(list == null) return flags;
 			
-			for (int i = 0; i < list.size(); i++) {
-				if(getPassFlag(list.get(i)) == null) continue;
-				flags.add(getPassFlag(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getPassFlag(list[i]) == null) continue;
+				flags.add(getPassFlag(list[i]));
 			}
 		}
 
@@ -354,12 +605,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositeFailFlags();
+			int[] list = cr.getCompositeFailFlagsArray();
 			if(list == null) return flags;
 			
-			for (int i = 0; i < list.size(); i++) {
-				if(getFailFlag(list.get(i)) == null) continue;
-				flags.add(getFailFlag(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getFailFlag(list[i]) == null) continue;
+				flags.add(getFailFlag(list[i]));
 			}
 		}
 
@@ -378,12 +629,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositePassReasons();
+			int[] list = cr.getCompositePassReasonsArray();
 			if(list == null) return reasons;
 			
-			for (int i = 0; i < list.size(); i++) {
-				if(getPassReason(list.get(i)) == null) continue;
-				reasons.add(getPassReason(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getPassReason(list[i]) == null) continue;
+				reasons.add(getPassReason(list[i]));
 			}
 		}
 
@@ -402,12 +653,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositeFailReasons();
+			int[] list = cr.getCompositeFailReasonsArray();
 			if(list == null) return reasons;
 			
-			for (int i = 0; i < list.size(); i++) {
-				if(getFailReason(list.get(i)) == null) continue;
-				reasons.add(getFailReason(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getFailReason(list[i]) == null) continue;
+				reasons.add(getFailReason(list[i]));
 			}
 		}
 
@@ -426,12 +677,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositePassActions();
+			int[] list = cr.getCompositePassActionsArray();
 			if(list == null) return actions;
 			
-			for (int i = 0; i < list.size(); i++) {
-				if(getPassAction(list.get(i)) == null) continue;
-				actions.add(getPassAction(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getPassAction(list[i]) == null) continue;
+				actions.add(getPassAction(list[i]));
 			}
 		}
 
@@ -450,12 +701,12 @@ public class RuleEvaluator {
 		Rule rule = getRule(ruleNumber);
 		if( rule instanceof CompositeRule) {
 			CompositeRule cr = (CompositeRule) rule;
-			ArrayList<Integer> list = cr.getCompositeFailActions();
+			int[] list = cr.getCompositeFailActionsArray();
 			if(list == null) return actions;
 			
-			for (int i = 0; i < list.size(); i++) {
-				if(getFailAction(list.get(i)) == null) continue;
-				actions.add(getFailAction(list.get(i)));
+			for (int i = 0; i < list.length; i++) {
+				if(getFailAction(list[i]) == null) continue;
+				actions.add(getFailAction(list[i]));
 			}
 		}
 
@@ -472,7 +723,7 @@ public class RuleEvaluator {
 	 */
 	private void addRulePassResultsToVariables(Integer ruleNumber, TreeMap<String, Object> variables) throws Exception {
 		
-		if(! runtimePasses.contains(ruleNumber)) return;
+		if(!isRuntimePass(ruleNumber)) return;
 		
 		String ruleNoStr = ruleNumber.toString();
 
@@ -481,6 +732,7 @@ public class RuleEvaluator {
 		
 		Double passScore = getPassScore(ruleNumber);
 		if(passScore != null) variables.put( ("passScore_" +ruleNoStr), passScore);
+		setOrderScore(ruleNumber, passOrder, passOrderScores, passCount, passScore);
 
 		String passFlag = getPassFlag(ruleNumber); 
 		if(passFlag != null) variables.put( ("passFlag_" +ruleNoStr), passFlag);
@@ -500,7 +752,7 @@ public class RuleEvaluator {
 	 */
 	private void addRuleFailResultsToVariables(Integer ruleNumber, TreeMap<String, Object> variables) throws Exception {
 		
-		if(! runtimeFails.contains(ruleNumber)) return;
+		if(!isRuntimeFail(ruleNumber)) return;
 		
 		String ruleNumberStr = ruleNumber.toString();
 
@@ -509,6 +761,7 @@ public class RuleEvaluator {
 		
 		Double failScore = getFailScore(ruleNumber);
 		if(failScore != null) variables.put( ("failScore_" + ruleNumberStr), failScore);
+		setOrderScore(ruleNumber, failOrder, failOrderScores, failCount, failScore);
 		
 		String failFlag = getFailFlag(ruleNumber); 
 		if(failFlag != null) variables.put( ("failFlag_" + ruleNumberStr), failFlag);
@@ -528,7 +781,7 @@ public class RuleEvaluator {
 	 */
 	private void addCompositeRulePassResultsToVariables(Integer ruleNumber, TreeMap<String, Object> variables) throws Exception {
 
-		if(! runtimePasses.contains(ruleNumber)) return;
+		if(!isRuntimePass(ruleNumber)) return;
 		
 		addRulePassResultsToVariables(ruleNumber, variables);
 		
@@ -558,7 +811,7 @@ public class RuleEvaluator {
 	 */
 	private void addCompositeRuleFailResultsToVariables(Integer ruleNumber, TreeMap<String, Object> variables) throws Exception {
 		
-		if(! runtimeFails.contains(ruleNumber)) return;
+		if(!isRuntimeFail(ruleNumber)) return;
 		
 		addRuleFailResultsToVariables(ruleNumber, variables);
 		
@@ -583,6 +836,27 @@ public class RuleEvaluator {
 	
 	private boolean callRule(Integer ruleNumber) throws Exception {
 
+		if(hasDeadline && System.nanoTime() - deadline >= 0 && !cache.containsKey(ruleNumber)) return timedOut(ruleNumber);
+		
+		if(profiler == null) return dispatchRule(ruleNumber);
+		
+		//childNanos collects the time of the rules this one calls, so the profiler can tell its own time from theirs
+		long siblingNanos = childNanos;
+		childNanos = 0;
+		long start = System.nanoTime();
+		try {
+			boolean result = dispatchRule(ruleNumber);
+			long elapsed = System.nanoTime() - start;
+			profiler.evaluated(ruleNumber, result, elapsed, elapsed - childNanos);
+			return result;
+		} finally {
+			childNanos = siblingNanos + (System.nanoTime() - start);
+		}
+
+	}
+
+	private boolean dispatchRule(Integer ruleNumber) throws Exception {
+
 		if(isInCalcRules(ruleNumber)) return (processCalcRule(ruleNumber));
 
 		if(isInOrRules(ruleNumber)) return (processOrRules(ruleNumber));
@@ -595,12 +869,125 @@ public class RuleEvaluator {
 
 	}
 
+	/**
+	 * Records the rule's timeoutOutcome as its result, or throws an Exception if the outcome is to abort
+	 */
+	private boolean timedOut(Integer ruleNumber) throws Exception {
+
+		BaseRule rule = (BaseRule) getRule(ruleNumber);
+		if(rule == null) throw new Exception("Rule number " + ruleNumber + " not found in rule definitions.");
+		if(!timedOutRules.contains(ruleNumber)) timedOutRules.add(ruleNumber);
+
+		String outcome = rule.getTimeoutOutcome();
+		if(outcome == null || outcome.equals("abort")) throw new Exception("Rule number " + ruleNumber + " timed out.");
+		boolean result = outcome.equals("pass");
+		RuleLogger.log("Rule number {} timed out, which evaluates to {}", ruleNumber, result);
+		
+		return addOutcome(ruleNumber, result);
+
+	}
+
+	/**
+	 * Records the rejection outcome of the handler's bulkhead as the calc rule's result, or throws an Exception if the outcome is to abort.  The 
+	 * result is not kept in the result cache.
+	 */
+	private boolean rejected(Integer ruleNumber, String ruleHandler, RejectedExecutionException e) throws Exception {
+
+		RuleBulkhead bulkhead = CalcRuleProcessor.getBulkhead(ruleHandler);
+		String outcome = (bulkhead == null) ? null : bulkhead.getRejectionOutcome();
+		if(outcome == null || outcome.equals("abort")) throw new Exception("Rule number " + ruleNumber + " was rejected. " + e.getMessage(), e);
+		boolean result = outcome.equals("pass");
+		RuleLogger.log("Rule number {} was rejected by the bulkhead for {}, which evaluates to {}", ruleNumber, ruleHandler, result);
+		
+		return addOutcome(ruleNumber, result);
+
+	}
+
+	/**
+	 * Records a result given to a rule that was not evaluated
+	 */
+	private boolean addOutcome(Integer ruleNumber, boolean result) throws Exception {
+
+		boolean calc = isInCalcRules(ruleNumber);
+		if(calc) addToCache(ruleNumber, result);
+
+		if(result) {
+			addRuntimePass(ruleNumber);
+			if(calc) addRulePassResultsToVariables(ruleNumber, variables);
+			else addCompositeRulePassResultsToVariables(ruleNumber, variables);
+		}
+		else {
+			addRuntimeFail(ruleNumber);
+			if(calc) addRuleFailResultsToVariables(ruleNumber, variables);
+			else addCompositeRuleFailResultsToVariables(ruleNumber, variables);
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Returns the nanoseconds the calc rule's handler may take, the sooner of the rule's timeout and the time left, or -1 for no limit.  
+	 * ExpressionRuleHandler rules are not limited this way: they run on this thread, so the values their expressions assign are kept, and are
+	 * checked against the limits once they have run (see isOverTime).
+	 */
+	private long getHandlerTimeout(Integer ruleNumber, String ruleHandler) throws Exception {
+
+		if(ExpressionRuleHandler.class.getName().equals(ruleHandler)) return -1;
+		Long ruleTimeout = ((CalcRule) getRule(ruleNumber)).getTimeout();
+		long timeout = (ruleTimeout == null) ? -1 : TimeUnit.MILLISECONDS.toNanos(ruleTimeout);
+		if(hasDeadline) {
+			long left = Math.max(0, deadline - System.nanoTime());
+			if(timeout < 0 || left < timeout) timeout = left;
+		}
+		return timeout;
+
+	}
+
+	/**
+	 * Returns "true" if the calc rule run on this thread since start took longer than its timeout or ran past the deadline
+	 */
+	private boolean isOverTime(Integer ruleNumber, long start) throws Exception {
+
+		long now = System.nanoTime();
+		if(hasDeadline && now - deadline >= 0) return true;
+		Long ruleTimeout = ((CalcRule) getRule(ruleNumber)).getTimeout();
+		return ruleTimeout != null && now - start > TimeUnit.MILLISECONDS.toNanos(ruleTimeout);
+
+	}
+
+	/**
+	 * Adds the calc rules reachable from the rule that have an AsyncRuleClassHandler and no cached result
+	 */
+	private void addAsyncRules(Integer ruleNumber, ArrayList<Integer> asyncRules, HashSet<Integer> visited) throws Exception {
+
+		if(!visited.add(ruleNumber)) return;
+
+		if(isInCalcRules(ruleNumber)) {
+			if(cache.containsKey(ruleNumber)) return;
+			if(!CalcRuleProcessor.isAsyncHandler(ruleDefinition.getHandlerClass(ruleNumber))) return;
+			Boolean cachedResult = getResultCache(ruleNumber);
+			if(cachedResult != null) prefetched.put(ruleNumber, cachedResult);
+			else asyncRules.add(ruleNumber);
+			return;
+		}
+
+		if(ruleDefinition.getRule(ruleNumber) == null) return;
+		int[] compositeRuleList = getCompositeRules(ruleNumber);
+		if(compositeRuleList == null) return;
+		for (int i = 0; i < compositeRuleList.length; i++) {
+			addAsyncRules(Math.abs(compositeRuleList[i]), asyncRules, visited);
+		}
+
+	}
+
 	private Rule getRule(Integer ruleNumber) throws Exception {
 		return ruleDefinition.getRule(ruleNumber);
 	}
 	
 	private void clearVariables() {
-		this.variables = null;
+		evaluatorVariables.clear();
+		this.variables = evaluatorVariables;
 	}
 	
 	private void addToCache(Integer ruleNumber, Boolean result) {
@@ -609,22 +996,198 @@ public class RuleEvaluator {
 	
 	private void clearCache() {
 		cache.clear();
+		prefetched.clear();
+		cancelStartedRules(new ArrayList<Integer>(started.keySet()));
+	}
+
+	/**
+	 * For a composite rule marked "parallel", start the handlers of its calc rules at once, except those using the ExpressionRuleHandler, which
+	 * are quick, and those whose results are already known.  Each handler is given its own copy of the variables as they are now, since they run
+	 * at the same time.  The composite rule
+	 * is then evaluated as usual, in order, each calc rule waiting for its own handler only, so the rule takes about as long as the slowest 
+	 * handler up to the one that decides it, and records the same results as if the handlers had been called one after the other.
+	 * Returns the rules started.
+	 */
+	private ArrayList<Integer> startParallelRules(Integer ruleNumber, int[] compositeRuleList) throws Exception {
+
+		ArrayList<Integer> startedRules = new ArrayList<Integer>();
+		if(!Boolean.TRUE.equals(((CompositeRule) getRule(ruleNumber)).getParallel())) return startedRules;
+		
+		for (int i = 0; i < compositeRuleList.length; i++) {
+			Integer calcRule = Math.abs(compositeRuleList[i]);
+			if(!isInCalcRules(calcRule) || cache.containsKey(calcRule) || prefetched.containsKey(calcRule) || started.containsKey(calcRule)) continue;
+			String ruleHandler = ruleDefinition.getHandlerClass(calcRule);
+			if(ExpressionRuleHandler.class.getName().equals(ruleHandler)) continue;
+			Boolean cachedResult = getResultCache(calcRule);
+			if(cachedResult != null) {
+				prefetched.put(calcRule, cachedResult);
+				continue;
+			}
+			try {
+				started.put(calcRule, startCalcRule(ruleHandler, ruleDefinition.getExpression(calcRule), new TreeMap<String, Object>(variables)));
+			} catch (RejectedExecutionException e) {
+				//called again when the rule is reached
+				continue;
+			}
+			startedRules.add(calcRule);
+		}
+		return startedRules;
+
+	}
+
+	private CompletableFuture<Boolean> startCalcRule(final String ruleHandler, final String expression, final TreeMap<String, Object> variables) throws Exception {
+		
+		if(CalcRuleProcessor.isAsyncHandler(ruleHandler)) return CalcRuleProcessor.processCalcRuleAsync(ruleHandler, expression, variables);
+		
+		final CompletableFuture<Boolean> startedResult = new CompletableFuture<Boolean>();
+		final FutureTask<Boolean> task = new FutureTask<Boolean>(() -> CalcRuleProcessor.processCalcRule(ruleHandler, expression, variables)) {
+			@Override
+			protected void done() {
+				if(isCancelled()) return;
+				try {
+					startedResult.complete(get());
+				} catch (ExecutionException e) {
+					startedResult.completeExceptionally(e.getCause());
+				} catch (Exception e) {
+					startedResult.completeExceptionally(e);
+				}
+			}
+		};
+		// cancelling the returned future interrupts the handler thread, CompletableFuture alone would not
+		startedResult.whenComplete((result, e) -> { if(startedResult.isCancelled()) task.cancel(true); });
+		Executor executor = (parallelExecutor != null) ? parallelExecutor : getDefaultParallelExecutor();
+		executor.execute(task);
+		return startedResult;
+		
 	}
 
+	private static Boolean getStartedResult(CompletableFuture<Boolean> startedResult) throws Exception {
+		try {
+			return startedResult.join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the handler no longer than the timeout, cancelling it and returning null if it hasn't finished
+	 */
+	private static Boolean getStartedResult(CompletableFuture<Boolean> startedResult, long timeout) throws Exception {
+		try {
+			return startedResult.get(timeout, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException e) {
+			startedResult.cancel(true);
+			return null;
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Cancel the handlers started for a composite rule that weren't needed to decide it.  Their results, if any, are ignored.
+	 */
+	private void cancelStartedRules(ArrayList<Integer> startedRules) {
+		for (Integer ruleNumber : startedRules) {
+			CompletableFuture<Boolean> startedResult = started.remove(ruleNumber);
+			if(startedResult != null) startedResult.cancel(true);
+		}
+	}
+
+	private static synchronized Executor getDefaultParallelExecutor() {
+		if(defaultParallelExecutor == null) {
+			defaultParallelExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger threads = new AtomicInteger();
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rule-parallel-" + threads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return defaultParallelExecutor;
+	}
+
+	/**
+	 * Use the result for the calc rule rather than calling its handler, until the next reset().  RuleWarmUp uses this so handlers that call out
+	 * to other systems are not called.
+	 */
+	void prefetch(Integer ruleNumber, Boolean result) {
+		prefetched.put(ruleNumber, result);
+	}
+
+	/**
+	 * Returns the rule's position in the runtime results, from the definition's RuleIndex, or for a definition that is not a CompiledRuleDefinition, 
+	 * the position given to the rule when it was first evaluated.  With add, a rule without a position is given one.
+	 */
+	private int indexOf(Integer ruleNumber, boolean add) {
+		if(compiledDefinition != null) return compiledDefinition.getRuleIndex().indexOf(ruleNumber);
+		Integer i = positions.get(ruleNumber);
+		if(i == null) {
+			if(!add || ruleNumber == null) return -1;
+			i = positions.size();
+			positions.put(ruleNumber, i);
+		}
+		return i;
+	}
+
+	private boolean isRuntimePass(Integer ruleNumber) {
+		int i = indexOf(ruleNumber, false);
+		return i >= 0 && runtimePasses.get(i);
+	}
+	
+	private boolean isRuntimeFail(Integer ruleNumber) {
+		int i = indexOf(ruleNumber, false);
+		return i >= 0 && runtimeFails.get(i);
+	}
+	
 	private void addRuntimePass(Integer ruleNumber) {
-		if(!runtimePasses.contains(ruleNumber)) runtimePasses.add(ruleNumber);
+		int i = indexOf(ruleNumber, true);
+		if(i < 0 || runtimePasses.get(i)) return;
+		runtimePasses.set(i);
+		if(passCount == passOrder.length) {
+			passOrder = Arrays.copyOf(passOrder, passCount * 2);
+			passOrderScores = Arrays.copyOf(passOrderScores, passCount * 2);
+		}
+		passOrder[passCount] = ruleNumber;
+		passOrderScores[passCount] = Double.NaN;
+		passCount++;
 	}
 	
 	private void addRuntimeFail(Integer ruleNumber) {
-		if(!runtimeFails.contains(ruleNumber)) runtimeFails.add(ruleNumber);
+		int i = indexOf(ruleNumber, true);
+		if(i < 0 || runtimeFails.get(i)) return;
+		runtimeFails.set(i);
+		if(failCount == failOrder.length) {
+			failOrder = Arrays.copyOf(failOrder, failCount * 2);
+			failOrderScores = Arrays.copyOf(failOrderScores, failCount * 2);
+		}
+		failOrder[failCount] = ruleNumber;
+		failOrderScores[failCount] = Double.NaN;
+		failCount++;
+	}
+	
+	/**
+	 * Records the score given to a rule in the order the rules passed or failed, looking from the most recent
+	 */
+	private void setOrderScore(Integer ruleNumber, int[] order, double[] scores, int count, Double score) {
+		for (int i = count - 1; i >= 0; i--) {
+			if(order[i] != ruleNumber.intValue()) continue;
+			scores[i] = (score == null) ? Double.NaN : score.doubleValue();
+			return;
+		}
 	}
 	
 	private void clearRuntimePasses() {
 		runtimePasses.clear();
+		passCount = 0;
 	}
 	
 	private void clearRuntimeFails() {
 		runtimeFails.clear();
+		failCount = 0;
 	}
 	
 	private boolean isInCalcRules(Integer ruleNumber) throws Exception {
@@ -654,7 +1217,32 @@ public class RuleEvaluator {
 
 		String ruleHandler = ruleDefinition.getHandlerClass(ruleNumber);
 		String expression = ruleDefinition.getExpression(ruleNumber);
-		Boolean result = CalcRuleProcessor.processCalcRule(ruleHandler, expression, variables);
+		PureRuleMemo memo = (compiledDefinition == null) ? null : compiledDefinition.getPureRuleMemo();
+		boolean pure = memo != null && memo.isPure(ruleNumber);
+		Boolean result = prefetched.get(ruleNumber);
+		CompletableFuture<Boolean> startedResult = (result == null && !started.isEmpty()) ? started.remove(ruleNumber) : null;
+		if(result == null && startedResult == null) result = getResultCache(ruleNumber);
+		if(result == null && pure) result = memo.get(ruleNumber, variables);
+		if(result == null) {
+			long timeout = getHandlerTimeout(ruleNumber, ruleHandler);
+			try {
+				if(timeout >= 0) {
+					if(startedResult == null) startedResult = startCalcRule(ruleHandler, expression, new TreeMap<String, Object>(variables));
+					result = getStartedResult(startedResult, timeout);
+					if(result == null) return timedOut(ruleNumber);
+				}
+				else if(startedResult != null) result = getStartedResult(startedResult);
+				else {
+					long start = System.nanoTime();
+					result = CalcRuleProcessor.processCalcRule(ruleHandler, expression, variables);
+					if(isOverTime(ruleNumber, start)) return timedOut(ruleNumber);
+				}
+			} catch (RejectedExecutionException e) {
+				return rejected(ruleNumber, ruleHandler, e);
+			}
+			putResultCache(ruleNumber, result);
+			if(pure) memo.put(ruleNumber, variables, result);
+		}
 		
 		addToCache(ruleNumber, result);
 
@@ -673,6 +1261,51 @@ public class RuleEvaluator {
 
 	}
 
+	/**
+	 * Returns the rule's result from the result cache, or null if the rule doesn't use the cache or the result isn't cached
+	 */
+	private Boolean getResultCache(Integer ruleNumber) throws Exception {
+		if(resultCache == null) return null;
+		String key = getResultCacheKey(ruleNumber);
+		if(key == null) return null;
+		return resultCache.get(key);
+	}
+
+	private void putResultCache(Integer ruleNumber, Boolean result) throws Exception {
+		if(resultCache == null || result == null) return;
+		String key = getResultCacheKey(ruleNumber);
+		if(key == null) return;
+		resultCache.put(key, result, ((CalcRule) getRule(ruleNumber)).getResultCacheTtl());
+	}
+
+	/**
+	 * The key is the document ID and version, the rule number, the RuleHash of the rule's content, so a rule edited without a new version doesn't 
+	 * get the old rule's results, and the values of the variables named in the rule's resultCacheKeys field.  Each value is written with its type 
+	 * and length, so null, "null", 1 and "1" each have their own key.  Null is returned if the rule has no resultCacheTtl.
+	 */
+	private String getResultCacheKey(Integer ruleNumber) throws Exception {
+
+		CalcRule calcRule = (CalcRule) getRule(ruleNumber);
+		if(calcRule.getResultCacheTtl() == null) return null;
+
+		long ruleHash = (compiledDefinition != null) ? compiledDefinition.getRuleHash(ruleNumber) : RuleHash.of(calcRule);
+		StringBuilder key = new StringBuilder();
+		key.append(ruleDefinition.getDocumentId()).append('\u001f').append(ruleDefinition.getVersion()).append('\u001f').append(ruleNumber);
+		key.append('\u001f').append(Long.toHexString(ruleHash));
+		ArrayList<String> keys = calcRule.getResultCacheKeys();
+		if(keys != null) {
+			for (int i = 0; i < keys.size(); i++) {
+				Object value = variables.get(keys.get(i));
+				key.append('\u001f');
+				if(value == null) continue;
+				String text = String.valueOf(value);
+				key.append(value.getClass().getName()).append(':').append(text.length()).append(':').append(text);
+			}
+		}
+		return key.toString();
+
+	}
+
 	/**
 	 * The engine processes all rules listed in the AllRule bean compositeRules field list. AllRule rule types should be used when all rules must be processed
 	 * for such things as setting bean field values that will be accessed by other rules. 
@@ -681,10 +1314,10 @@ public class RuleEvaluator {
 
 		TimeTrack t = new TimeTrack();
 		
-		ArrayList<Integer> compositeRuleList = getCompositeRulesList(ruleNumber);
-		for (int i = 0; i < compositeRuleList.size(); i++) {
+		int[] compositeRuleList = getCompositeRules(ruleNumber);
+		for (int i = 0; i < compositeRuleList.length; i++) {
 
-			if(processRule(compositeRuleList.get(i))) {
+			if(processRule(compositeRuleList[i])) {
 				addRuntimePass(ruleNumber);
 				addCompositeRulePassResultsToVariables(ruleNumber, variables);
 				RuleLogger.log("{} milleseconds to evaluate rule number {}, which evaluates to {}", TimeTrack.getElapsedTime(t), ruleNumber, true);
@@ -701,20 +1334,26 @@ public class RuleEvaluator {
 	
 	/**
 	 * The engine process all rules listed in the OrRule bean compositeRules field list up to the first pass.  Only those rules evaluated at runtime
-	 * set bean field values. 
+	 * set bean field values.  See startParallelRules for rules marked "parallel".
 	 */
 	private boolean processOrRules(Integer ruleNumber) throws Exception {
 
 		TimeTrack t = new TimeTrack();
 		
-		ArrayList<Integer> compositeRuleList = getCompositeRulesList(ruleNumber);
-		for (int i = 0; i < compositeRuleList.size(); i++) {
-			if(processRule(compositeRuleList.get(i))) {
-				addRuntimePass(ruleNumber);
-				addCompositeRulePassResultsToVariables(ruleNumber, variables);
-				RuleLogger.log("{} milleseconds to evaluate rule number {}, which evaluates to {}", TimeTrack.getElapsedTime(t), ruleNumber, true);
-				return (true);
+		int[] compositeRuleList = getCompositeRules(ruleNumber);
+		ArrayList<Integer> startedRules = startParallelRules(ruleNumber, compositeRuleList);
+		try {
+			for (int i = 0; i < compositeRuleList.length; i++) {
+				if(processRule(compositeRuleList[i])) {
+					addRuntimePass(ruleNumber);
+					addCompositeRulePassResultsToVariables(ruleNumber, variables);
+					RuleLogger.log("{} milleseconds to evaluate rule number {}, which evaluates to {}", TimeTrack.getElapsedTime(t), ruleNumber, true);
+					if(profiler != null) profiler.skipped(compositeRuleList, i + 1);
+					return (true);
+				}
 			}
+		} finally {
+			if(!startedRules.isEmpty()) cancelStartedRules(startedRules);
 		}
 
 		addRuntimeFail(ruleNumber);
@@ -727,22 +1366,27 @@ public class RuleEvaluator {
 	
 	/**
 	 * The engine processes all rules listed in the AndRule bean compositeRules field list up to the first fail.  Only those rules evaluated at runtime
-	 * set bean field values. 
+	 * set bean field values.  See startParallelRules for rules marked "parallel".
 	 */
 	private boolean processAndRules(Integer ruleNumber) throws Exception {
 
 		TimeTrack t = new TimeTrack();
 
-		ArrayList<Integer> compositeRuleList = getCompositeRulesList(ruleNumber);
-
-		for (int i = 0; i < compositeRuleList.size(); i++) {
-			if(!processRule(compositeRuleList.get(i))) {
-				addRuntimeFail(ruleNumber);
-				addCompositeRuleFailResultsToVariables(ruleNumber, variables);
-				RuleLogger.log("{} milleseconds to evaluate rule number {}, which evaluates to {}", TimeTrack.getElapsedTime(t), ruleNumber, false);
-				return false;
-			}			
-			
+		int[] compositeRuleList = getCompositeRules(ruleNumber);
+		ArrayList<Integer> startedRules = startParallelRules(ruleNumber, compositeRuleList);
+		try {
+			for (int i = 0; i < compositeRuleList.length; i++) {
+				if(!processRule(compositeRuleList[i])) {
+					addRuntimeFail(ruleNumber);
+					addCompositeRuleFailResultsToVariables(ruleNumber, variables);
+					RuleLogger.log("{} milleseconds to evaluate rule number {}, which evaluates to {}", TimeTrack.getElapsedTime(t), ruleNumber, false);
+					if(profiler != null) profiler.skipped(compositeRuleList, i + 1);
+					return false;
+				}			
+				
+			}
+		} finally {
+			if(!startedRules.isEmpty()) cancelStartedRules(startedRules);
 		}
 		
 		addRuntimePass(ruleNumber);
@@ -764,12 +1408,33 @@ public class RuleEvaluator {
 
 	}
 	
-	private ArrayList<Integer> getCompositeRulesList(Integer ruleNumber) throws Exception {
-		return ruleDefinition.getCompositeRulesList(ruleNumber);
+	private int[] getCompositeRules(Integer ruleNumber) throws Exception {
+		return ruleDefinition.getCompositeRulesArray(ruleNumber);
+	}
+
+	private ScoreExpression getCompiledPassScore(Integer ruleNumber) throws Exception {
+		if(compiledDefinition != null) return compiledDefinition.getCompiledPassScore(ruleNumber);
+		String passScore = ruleDefinition.getPassScore(ruleNumber);
+		return (passScore == null) ? null : new ScoreExpression(passScore);
+	}
+
+	private ScoreExpression getCompiledFailScore(Integer ruleNumber) throws Exception {
+		if(compiledDefinition != null) return compiledDefinition.getCompiledFailScore(ruleNumber);
+		String failScore = ruleDefinition.getFailScore(ruleNumber);
+		return (failScore == null) ? null : new ScoreExpression(failScore);
+	}
+
+	/**
+	 * Returns the score as a primitive double, or Double.NaN if the rule has no score or the score expression does not return a number.
+	 */
+	private double getScore(ScoreExpression score) {
+		if(score == null) return Double.NaN;
+		return score.getScore(variables);
 	}
 
-	private Double evaluateExpression(String expression) {
-		return ExpressionHandler.getProductOf(expression, variables);
+	private Double toDouble(double score) {
+		if(Double.isNaN(score)) return null;
+		return Double.valueOf(score);
 	}
 	
 	
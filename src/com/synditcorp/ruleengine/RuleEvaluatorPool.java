@@ -0,0 +1,176 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+import com.synditcorp.ruleengine.interfaces.RuleResultCache;
+import com.synditcorp.ruleengine.logging.RuleProfiler;
+
+/**
+ * A pool of RuleEvaluator instances for one rule definition.  A RuleEvaluator is not safe to share between threads, so borrow one for each request
+ * and release it when done.  Evaluators are reset on release, keeping their collections for the next request, and are created as needed up to 
+ * maxSize.  When all of them are in use, borrow waits for one to be released.
+ */
+public class RuleEvaluatorPool {
+
+	private final RuleDefinition ruleDefinition;
+	private final Logger logger;
+	private final int maxSize;
+	private final ArrayBlockingQueue<RuleEvaluator> idle;
+	private final Set<RuleEvaluator> borrowed = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private volatile RuleResultCache resultCache;
+	private volatile RuleProfiler profiler;
+	private volatile Executor parallelExecutor;
+
+	public RuleEvaluatorPool(RuleDefinition ruleDefinition, Logger logger, int maxSize) {
+		if(maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+		this.ruleDefinition = ruleDefinition;
+		this.logger = logger;
+		this.maxSize = maxSize;
+		this.idle = new ArrayBlockingQueue<RuleEvaluator>(maxSize);
+	}
+
+	/**
+	 * Borrow an evaluator, waiting as long as it takes for one to be released if all maxSize evaluators are in use
+	 */
+	public RuleEvaluator borrow() throws Exception {
+		return borrow(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrow an evaluator, waiting up to the timeout for one to be released if all maxSize evaluators are in use
+	 * @throws Exception if no evaluator is released before the timeout
+	 */
+	public RuleEvaluator borrow(long timeout, TimeUnit unit) throws Exception {
+
+		RuleEvaluator evaluator = idle.poll();
+		if(evaluator == null) evaluator = create();
+		if(evaluator == null) {
+			waits.incrementAndGet();
+			evaluator = idle.poll(timeout, unit);
+			if(evaluator == null) throw new Exception("No RuleEvaluator released within " + timeout + " " + unit.toString().toLowerCase());
+		}
+
+		evaluator.setResultCache(resultCache);
+		evaluator.setProfiler(profiler);
+		evaluator.setParallelExecutor(parallelExecutor);
+		borrowed.add(evaluator);
+		borrows.incrementAndGet();
+		inUse.incrementAndGet();
+		return evaluator;
+
+	}
+
+	/**
+	 * Reset the evaluator and return it to the pool
+	 * @throws IllegalStateException if the evaluator was not borrowed from this pool, or has already been released
+	 */
+	public void release(RuleEvaluator evaluator) {
+		//RuleEvaluator doesn't override equals, so the set is by identity
+		if(evaluator == null || !borrowed.remove(evaluator)) {
+			throw new IllegalStateException("The RuleEvaluator was not borrowed from this pool or has already been released.");
+		}
+		evaluator.reset();
+		inUse.decrementAndGet();
+		if(!idle.offer(evaluator)) {
+			created.decrementAndGet();
+			throw new IllegalStateException("The pool is full; the released RuleEvaluator was dropped.");
+		}
+	}
+
+	/**
+	 * Set the result cache given to borrowed evaluators
+	 */
+	public void setResultCache(RuleResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Set the profiler given to borrowed evaluators
+	 */
+	public void setProfiler(RuleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Set the executor given to borrowed evaluators for the handlers of "parallel" rules (see RuleEvaluator.setParallelExecutor)
+	 */
+	public void setParallelExecutor(Executor parallelExecutor) {
+		this.parallelExecutor = parallelExecutor;
+	}
+
+	public RuleDefinition getRuleDefinition() {
+		return ruleDefinition;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the number of evaluators created so far
+	 */
+	public int getCreated() {
+		return created.get();
+	}
+
+	/**
+	 * Returns the number of evaluators waiting in the pool
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the number of evaluators borrowed and not yet released
+	 */
+	public int getInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * Returns the number of times an evaluator has been borrowed
+	 */
+	public long getBorrows() {
+		return borrows.get();
+	}
+
+	/**
+	 * Returns the number of times borrow had to wait for an evaluator to be released
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	private RuleEvaluator create() {
+		while (true) {
+			int count = created.get();
+			if(count >= maxSize) return null;
+			if(created.compareAndSet(count, count + 1)) return new RuleEvaluator(ruleDefinition, logger);
+		}
+	}
+
+}
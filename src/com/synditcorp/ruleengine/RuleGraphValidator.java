@@ -0,0 +1,230 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.synditcorp.ruleengine.beans.BaseRule;
+import com.synditcorp.ruleengine.beans.BaseRules;
+import com.synditcorp.ruleengine.beans.CalcRule;
+import com.synditcorp.ruleengine.beans.CompositeRule;
+import com.synditcorp.ruleengine.interfaces.Rule;
+
+/**
+ * Checks the rules of a document as a graph, in one pass.  Errors are rule numbers used more than once, composite rules that refer to rules that 
+ * don't exist (in compositeRules, where a negative number is a "not" of the rule, or in the composite key, score, flag, reason, and action lists),
+ * a start rule that doesn't exist, and cycles of composite rules, which would otherwise end in a StackOverflowError.  Warnings are rules that 
+ * can't be reached from the start rule.  It also rejects unknown timeoutOutcomes and negative timeouts, which would otherwise only show when a rule
+ * times out.  DefaultRuleDefinition rejects documents with errors when they are loaded.
+ */
+public class RuleGraphValidator {
+
+	private final ArrayList<String> errors = new ArrayList<String>();
+	private final ArrayList<String> warnings = new ArrayList<String>();
+	private final HashMap<Integer, String> types = new HashMap<Integer, String>();
+	private final TreeMap<Integer, int[]> children = new TreeMap<Integer, int[]>();
+
+	public RuleGraphValidator(BaseRules rules) {
+		
+		addRules(rules.getCalcRules(), "calc");
+		addRules(rules.getAndRules(), "and");
+		addRules(rules.getOrRules(), "or");
+		addRules(rules.getAllRules(), "all");
+		
+		checkReferences(rules);
+		checkCycles();
+		checkReachable(rules.getStartRule());
+		
+	}
+
+	public boolean hasErrors() {
+		return !errors.isEmpty();
+	}
+
+	public ArrayList<String> getErrors() {
+		return errors;
+	}
+
+	public ArrayList<String> getWarnings() {
+		return warnings;
+	}
+
+	private void addRules(List<? extends Rule> rules, String type) {
+
+		if(rules == null) return;
+		for (Rule rule : rules) {
+			Integer ruleNumber = rule.getRuleNumber();
+			if(ruleNumber == null) {
+				errors.add("A " + type + " rule has no ruleNumber.");
+				continue;
+			}
+			String previous = types.put(ruleNumber, type);
+			if(previous != null) errors.add("Rule number " + ruleNumber + " is used by more than one rule (" + previous + " and " + type + ").");
+			if(rule instanceof CompositeRule) children.put(ruleNumber, ((CompositeRule) rule).getCompositeRulesArray());
+			checkTimeout(rule);
+		}
+		
+	}
+
+	private void checkTimeout(Rule rule) {
+
+		if(!(rule instanceof BaseRule)) return;
+		String outcome = ((BaseRule) rule).getTimeoutOutcome();
+		if(outcome != null && !outcome.equals("pass") && !outcome.equals("fail") && !outcome.equals("abort")) {
+			errors.add("Rule number " + rule.getRuleNumber() + " timeoutOutcome must be pass, fail, or abort, not " + outcome + ".");
+		}
+		if(rule instanceof CalcRule) {
+			Long timeout = ((CalcRule) rule).getTimeout();
+			if(timeout != null && timeout < 0) errors.add("Rule number " + rule.getRuleNumber() + " timeout is negative.");
+		}
+		
+	}
+
+	private void checkReferences(BaseRules rules) {
+
+		if(rules.getStartRule() != null && !types.containsKey(rules.getStartRule())) {
+			errors.add("The start rule " + rules.getStartRule() + " is not in the rule definitions.");
+		}
+		
+		checkReferences(rules.getAndRules());
+		checkReferences(rules.getOrRules());
+		checkReferences(rules.getAllRules());
+		
+	}
+
+	private void checkReferences(List<? extends CompositeRule> rules) {
+
+		if(rules == null) return;
+		for (CompositeRule rule : rules) {
+			if(rule.getRuleNumber() == null) continue;
+			int[] compositeRules = rule.getCompositeRulesArray();
+			if(compositeRules != null) {
+				for (int child : compositeRules) {
+					if(!types.containsKey(Math.abs(child))) {
+						errors.add("Rule number " + rule.getRuleNumber() + " compositeRules refers to rule " + child + ", which is not in the rule definitions.");
+					}
+				}
+			}
+			checkList(rule, "compositePassKeys", rule.getCompositePassKeysArray());
+			checkList(rule, "compositeFailKeys", rule.getCompositeFailKeysArray());
+			checkList(rule, "compositePassScore", rule.getCompositePassScoreArray());
+			checkList(rule, "compositeFailScore", rule.getCompositeFailScoreArray());
+			checkList(rule, "compositePassFlags", rule.getCompositePassFlagsArray());
+			checkList(rule, "compositeFailFlags", rule.getCompositeFailFlagsArray());
+			checkList(rule, "compositePassReasons", rule.getCompositePassReasonsArray());
+			checkList(rule, "compositeFailReasons", rule.getCompositeFailReasonsArray());
+			checkList(rule, "compositePassActions", rule.getCompositePassActionsArray());
+			checkList(rule, "compositeFailActions", rule.getCompositeFailActionsArray());
+		}
+		
+	}
+
+	private void checkList(CompositeRule rule, String field, int[] list) {
+		if(list == null) return;
+		for (int ruleNumber : list) {
+			if(types.containsKey(ruleNumber)) continue;
+			errors.add("Rule number " + rule.getRuleNumber() + " " + field + " refers to rule " + ruleNumber + ", which is not in the rule definitions.");
+		}
+	}
+
+	/**
+	 * Depth first search of the composite rules, reporting each path that comes back to a rule already on the path
+	 */
+	private void checkCycles() {
+
+		HashMap<Integer, Integer> states = new HashMap<Integer, Integer>();
+		LinkedHashSet<String> cycles = new LinkedHashSet<String>();
+		for (Integer ruleNumber : children.keySet()) {
+			findCycles(ruleNumber, states, cycles);
+		}
+		for (String cycle : cycles) errors.add("Rule cycle: " + cycle + ".");
+		
+	}
+
+	private static final Integer VISITING = 1;
+	private static final Integer DONE = 2;
+
+	/**
+	 * Depth first search from the rule with an explicit stack, so a long chain of composite rules can't overflow the thread's stack.  path holds
+	 * the rules being visited, and next the position in each of them of the child to visit next.
+	 */
+	private void findCycles(Integer ruleNumber, HashMap<Integer, Integer> states, LinkedHashSet<String> cycles) {
+
+		if(DONE.equals(states.get(ruleNumber))) return;
+		
+		ArrayList<Integer> path = new ArrayList<Integer>();
+		ArrayList<Integer> next = new ArrayList<Integer>();
+		enter(ruleNumber, states, path, next);
+		while (!path.isEmpty()) {
+			int top = path.size() - 1;
+			int[] compositeRules = children.get(path.get(top));
+			int i = next.get(top);
+			if(i == compositeRules.length) {
+				states.put(path.remove(top), DONE);
+				next.remove(top);
+				continue;
+			}
+			next.set(top, i + 1);
+			
+			Integer child = Math.abs(compositeRules[i]);
+			Integer state = states.get(child);
+			if(DONE.equals(state)) continue;
+			if(VISITING.equals(state)) {
+				StringBuilder cycle = new StringBuilder();
+				for (int j = path.lastIndexOf(child); j < path.size(); j++) cycle.append(path.get(j)).append(" -> ");
+				cycles.add(cycle.append(child).toString());
+				continue;
+			}
+			enter(child, states, path, next);
+		}
+		
+	}
+
+	private void enter(Integer ruleNumber, HashMap<Integer, Integer> states, ArrayList<Integer> path, ArrayList<Integer> next) {
+		if(children.get(ruleNumber) == null) {
+			states.put(ruleNumber, DONE);
+			return;
+		}
+		states.put(ruleNumber, VISITING);
+		path.add(ruleNumber);
+		next.add(0);
+	}
+
+	private void checkReachable(Integer startRule) {
+
+		if(startRule == null || !types.containsKey(startRule)) return;
+		
+		TreeSet<Integer> reached = new TreeSet<Integer>();
+		ArrayList<Integer> stack = new ArrayList<Integer>();
+		stack.add(startRule);
+		while (!stack.isEmpty()) {
+			Integer ruleNumber = stack.remove(stack.size() - 1);
+			if(!reached.add(ruleNumber)) continue;
+			int[] compositeRules = children.get(ruleNumber);
+			if(compositeRules == null) continue;
+			for (int child : compositeRules) {
+				if(types.containsKey(Math.abs(child))) stack.add(Math.abs(child));
+			}
+		}
+		
+		for (Integer ruleNumber : new TreeSet<Integer>(types.keySet())) {
+			if(!reached.contains(ruleNumber)) warnings.add("Rule number " + ruleNumber + " can't be reached from the start rule " + startRule + ".");
+		}
+		
+	}
+
+}
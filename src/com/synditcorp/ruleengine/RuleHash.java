@@ -0,0 +1,108 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.Date;
+import java.util.List;
+
+import com.synditcorp.ruleengine.beans.BaseRule;
+import com.synditcorp.ruleengine.beans.CalcRule;
+import com.synditcorp.ruleengine.beans.CompositeRule;
+
+/**
+ * Computes a 64 bit hash of the content of a rule, i.e. its type and every field set in the rules document.  Two rules with the same hash are
+ * taken to be the same rule, so a reload can keep what was compiled for the rules that did not change.
+ */
+public class RuleHash {
+
+	private static final long OFFSET = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+	private static final int END_OF_VALUE = 0x10000;
+	private static final int NULL_VALUE = 0x10001;
+	private static final int END_OF_LIST = 0x10002;
+
+	public static long of(BaseRule rule) {
+
+		long hash = add(OFFSET, rule.getClass().getName());
+		hash = add(hash, rule.getRuleNumber());
+		hash = add(hash, rule.getRuleType());
+		hash = add(hash, rule.getRuleTags());
+		hash = add(hash, rule.getDescription());
+		hash = add(hash, rule.getActive());
+		hash = add(hash, rule.getEffectiveDate());
+		hash = add(hash, rule.getExpirationDate());
+		hash = add(hash, rule.getPassKey());
+		hash = add(hash, rule.getFailKey());
+		hash = add(hash, rule.getPassScore());
+		hash = add(hash, rule.getFailScore());
+		hash = add(hash, rule.getPassFlag());
+		hash = add(hash, rule.getFailFlag());
+		hash = add(hash, rule.getPassReason());
+		hash = add(hash, rule.getFailReason());
+		hash = add(hash, rule.getPassAction());
+		hash = add(hash, rule.getFailAction());
+		hash = add(hash, rule.getTimeoutOutcome());
+
+		if(rule instanceof CalcRule) {
+			CalcRule calcRule = (CalcRule) rule;
+			hash = add(hash, calcRule.getExpression());
+			hash = add(hash, calcRule.getHandlerClass());
+			hash = add(hash, calcRule.getResultCacheKeys());
+			hash = add(hash, calcRule.getResultCacheTtl());
+			hash = add(hash, calcRule.getPure());
+			hash = add(hash, calcRule.getTimeout());
+		}
+		
+		if(rule instanceof CompositeRule) {
+			CompositeRule compositeRule = (CompositeRule) rule;
+			hash = add(hash, compositeRule.getCompositeRulesArray());
+			hash = add(hash, compositeRule.getCompositePassKeysArray());
+			hash = add(hash, compositeRule.getCompositeFailKeysArray());
+			hash = add(hash, compositeRule.getCompositePassScoreArray());
+			hash = add(hash, compositeRule.getCompositeFailScoreArray());
+			hash = add(hash, compositeRule.getCompositePassFlagsArray());
+			hash = add(hash, compositeRule.getCompositeFailFlagsArray());
+			hash = add(hash, compositeRule.getCompositePassReasonsArray());
+			hash = add(hash, compositeRule.getCompositeFailReasonsArray());
+			hash = add(hash, compositeRule.getCompositePassActionsArray());
+			hash = add(hash, compositeRule.getCompositeFailActionsArray());
+			hash = add(hash, compositeRule.getParallel());
+		}
+		
+		return hash;
+
+	}
+
+	private static long add(long hash, Object value) {
+		if(value == null) return mix(hash, NULL_VALUE);
+		String text = (value instanceof Date) ? Long.toString(((Date) value).getTime()) : value.toString();
+		for (int i = 0; i < text.length(); i++) hash = mix(hash, text.charAt(i));
+		return mix(hash, END_OF_VALUE);
+	}
+
+	private static long add(long hash, List<String> values) {
+		if(values == null) return mix(hash, NULL_VALUE);
+		for (String value : values) hash = add(hash, value);
+		return mix(hash, END_OF_LIST);
+	}
+
+	private static long add(long hash, int[] values) {
+		if(values == null) return mix(hash, NULL_VALUE);
+		for (int value : values) hash = add(hash, Integer.toString(value));
+		return mix(hash, END_OF_LIST);
+	}
+
+	private static long mix(long hash, int value) {
+		return (hash ^ value) * PRIME;
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+
+/**
+ * Gives each rule in a definition a position from 0 to size() - 1, in rule number order, so runtime results can be kept in bit sets and arrays
+ * rather than lists of rule numbers.  A new index is made each time the rules are loaded.
+ */
+public class RuleIndex {
+
+	private final int[] ruleNumbers;
+
+	public RuleIndex(Collection<Integer> ruleNumbers) {
+		this.ruleNumbers = new int[ruleNumbers.size()];
+		int i = 0;
+		for (Integer ruleNumber : ruleNumbers) this.ruleNumbers[i++] = ruleNumber;
+		Arrays.sort(this.ruleNumbers);
+	}
+
+	/**
+	 * Returns the definition's index if it is a CompiledRuleDefinition, or else an index of the rules that can be reached from its start rule
+	 */
+	public static RuleIndex of(RuleDefinition ruleDefinition) throws Exception {
+
+		if(ruleDefinition instanceof CompiledRuleDefinition) return ((CompiledRuleDefinition) ruleDefinition).getRuleIndex();
+
+		TreeSet<Integer> rules = new TreeSet<Integer>();
+		ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+		Integer startRule = ruleDefinition.getStartRule();
+		if(startRule != null && ruleDefinition.getRule(startRule) != null) queue.add(startRule);
+		while (!queue.isEmpty()) {
+			Integer ruleNumber = queue.poll();
+			if(!rules.add(ruleNumber) || ruleDefinition.isCalcRule(ruleNumber)) continue;
+			int[] compositeRules = ruleDefinition.getCompositeRulesArray(ruleNumber);
+			if(compositeRules == null) continue;
+			for (int compositeRule : compositeRules) {
+				Integer child = Math.abs(compositeRule);
+				if(!rules.contains(child) && ruleDefinition.getRule(child) != null) queue.add(child);
+			}
+		}
+		return new RuleIndex(rules);
+
+	}
+
+	/**
+	 * Returns the number of rules
+	 */
+	public int size() {
+		return ruleNumbers.length;
+	}
+
+	/**
+	 * Returns the rule's position, or -1 if the rule number is not in the definition
+	 */
+	public int indexOf(Integer ruleNumber) {
+		if(ruleNumber == null) return -1;
+		int i = Arrays.binarySearch(ruleNumbers, ruleNumber.intValue());
+		return (i < 0) ? -1 : i;
+	}
+
+	/**
+	 * Returns the rule number at the position
+	 */
+	public int getRuleNumber(int index) {
+		return ruleNumbers[index];
+	}
+
+}
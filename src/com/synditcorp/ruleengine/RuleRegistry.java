@@ -0,0 +1,434 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+
+import com.synditcorp.ruleengine.beans.BaseRule;
+import com.synditcorp.ruleengine.beans.BaseRules;
+import com.synditcorp.ruleengine.beans.CalcRule;
+import com.synditcorp.ruleengine.beans.CompositeRule;
+import com.synditcorp.ruleengine.interfaces.RuleParser;
+
+/**
+ * Holds many rule documents, each by documentId and version, along with a RuleEvaluatorPool for each.  Documents are registered with the parser
+ * and arguments used to load them, and are loaded on first use.  When the estimated size of the loaded documents goes over the memory budget, the 
+ * least recently used documents are unloaded, and are loaded again the next time they are used.
+ * <p>
+ * Expressions are compiled into ExpressionHandler's cache, which is keyed by the expression, so rules that don't change from one version or 
+ * document to the next share the compiled expression.  Each loaded document holds a reference to its expressions, and unloading it releases
+ * them, so the compiled expressions and patterns no loaded document uses are freed with it.
+ */
+public class RuleRegistry {
+
+	private static final long SIZE_FACTOR = 4;
+	private static final long RULE_BYTES = 256;
+	private static final long ENTRY_BYTES = 16;
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+	
+	private final Logger logger;
+	private final int poolSize;
+	private long memoryBudget;
+	private long loadedSize = 0;
+	private long loads = 0;
+	private long evictions = 0;
+	private final HashMap<String, LinkedHashMap<String, Registration>> documents = new HashMap<String, LinkedHashMap<String, Registration>>();
+	private final HashMap<String, String> currentVersions = new HashMap<String, String>();
+	private final LinkedHashMap<Registration, Registration> loaded = new LinkedHashMap<Registration, Registration>(16, 0.75f, true);
+
+	/**
+	 * @param logger the logger given to the RuleEvaluators
+	 * @param poolSize the maximum number of RuleEvaluators in each document's pool
+	 * @param memoryBudget the estimated bytes the loaded documents can use, or zero for no limit
+	 */
+	public RuleRegistry(Logger logger, int poolSize, long memoryBudget) {
+		this.logger = logger;
+		this.poolSize = poolSize;
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Register a document to be loaded with parser.loadRules(fileName).  The version registered last becomes the current version of the document.
+	 */
+	public void register(String documentId, String version, RuleParser parser, String fileName) throws Exception {
+		register(new Registration(documentId, version, parser, fileName, null, null));
+	}
+
+	/**
+	 * Register a document to be loaded with parser.loadRules(arguments).  The version registered last becomes the current version of the document.
+	 * The arguments are used again each time the document is reloaded, so an InputStream or Reader, which can only be read once, is rejected; 
+	 * register a Supplier of them instead.
+	 */
+	public void register(String documentId, String version, RuleParser parser, Object... arguments) throws Exception {
+		if(arguments != null) {
+			for (Object argument : arguments) {
+				if(argument instanceof InputStream || argument instanceof Reader) throw new Exception("Document " + documentId + " version " + version 
+						+ " can't be registered with a " + argument.getClass().getName() + ", which can only be read once.  Register a Supplier of it instead.");
+			}
+		}
+		register(new Registration(documentId, version, parser, null, (arguments == null) ? NO_ARGUMENTS : arguments, null));
+	}
+
+	/**
+	 * Register a document to be loaded with parser.loadRules(source.get()), e.g. () -> new FileInputStream(file).  The supplier is called each
+	 * time the document is loaded.  The version registered last becomes the current version of the document.
+	 */
+	public void register(String documentId, String version, RuleParser parser, Supplier<?> source) throws Exception {
+		if(source == null) throw new Exception("Document " + documentId + " version " + version + " can't be registered without a source.");
+		register(new Registration(documentId, version, parser, null, null, source));
+	}
+
+	/**
+	 * Remove a document version, unloading it if loaded.  If it was the current version, the most recently registered remaining version becomes current.
+	 */
+	public synchronized void unregister(String documentId, String version) {
+
+		LinkedHashMap<String, Registration> versions = documents.get(documentId);
+		if(versions == null) return;
+		Registration registration = versions.remove(version);
+		if(registration == null) return;
+		unload(registration);
+		
+		if(versions.isEmpty()) {
+			documents.remove(documentId);
+			currentVersions.remove(documentId);
+		}
+		else if(version.equals(currentVersions.get(documentId))) {
+			String last = null;
+			for (String v : versions.keySet()) last = v;
+			currentVersions.put(documentId, last);
+		}
+		
+	}
+	
+	/**
+	 * Make a registered version the current version of the document
+	 */
+	public synchronized void setCurrentVersion(String documentId, String version) throws Exception {
+		getRegistration(documentId, version);
+		currentVersions.put(documentId, version);
+	}
+
+	public synchronized String getCurrentVersion(String documentId) {
+		return currentVersions.get(documentId);
+	}
+
+	public synchronized ArrayList<String> getVersions(String documentId) {
+		LinkedHashMap<String, Registration> versions = documents.get(documentId);
+		if(versions == null) return new ArrayList<String>();
+		return new ArrayList<String>(versions.keySet());
+	}
+
+	/**
+	 * Returns the current version of the document, loading it if needed
+	 */
+	public DefaultRuleDefinition getRuleDefinition(String documentId) throws Exception {
+		return getRuleDefinition(documentId, getRequiredCurrentVersion(documentId));
+	}
+
+	/**
+	 * Returns the document version, loading it if needed.  If the document is unloaded while the definition is in use, it keeps working, but 
+	 * the expressions no loaded document shares are interpreted (see DefaultRuleDefinition.release).
+	 */
+	public DefaultRuleDefinition getRuleDefinition(String documentId, String version) throws Exception {
+		return load(getRegistration(documentId, version)).ruleDefinition;
+	}
+
+	/**
+	 * Returns the evaluator pool of the current version of the document, loading the document if needed
+	 */
+	public RuleEvaluatorPool getEvaluatorPool(String documentId) throws Exception {
+		return getEvaluatorPool(documentId, getRequiredCurrentVersion(documentId));
+	}
+
+	/**
+	 * Returns the evaluator pool of the document version, loading the document if needed.  Evaluators borrowed before the document is unloaded
+	 * keep working, interpreting the expressions that were released, and may be released to the same pool.
+	 */
+	public RuleEvaluatorPool getEvaluatorPool(String documentId, String version) throws Exception {
+		return load(getRegistration(documentId, version)).pool;
+	}
+
+	/**
+	 * Unload a document version.  It will be loaded again, using its parser, the next time it's used.
+	 */
+	public synchronized void unload(String documentId, String version) throws Exception {
+		unload(getRegistration(documentId, version));
+	}
+	
+	public synchronized boolean isLoaded(String documentId, String version) {
+		LinkedHashMap<String, Registration> versions = documents.get(documentId);
+		if(versions == null) return false;
+		Registration registration = versions.get(version);
+		return registration != null && registration.loaded != null;
+	}
+
+	/**
+	 * Sets the estimated bytes the loaded documents can use, or zero for no limit, unloading documents if needed
+	 */
+	public synchronized void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		evict(null);
+	}
+
+	public synchronized long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Returns the estimated bytes used by the loaded documents
+	 */
+	public synchronized long getLoadedSize() {
+		return loadedSize;
+	}
+
+	public synchronized int getLoadedCount() {
+		return loaded.size();
+	}
+
+	/**
+	 * Returns the number of times a document has been loaded, including reloads after being unloaded
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	/**
+	 * Returns the number of documents unloaded to stay within the memory budget
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	private synchronized void register(Registration registration) throws Exception {
+
+		if(registration.documentId == null || registration.version == null) throw new Exception("documentId and version are required to register a document");
+		
+		LinkedHashMap<String, Registration> versions = documents.get(registration.documentId);
+		if(versions == null) {
+			versions = new LinkedHashMap<String, Registration>();
+			documents.put(registration.documentId, versions);
+		}
+		
+		Registration previous = versions.remove(registration.version);
+		if(previous != null) unload(previous);
+		versions.put(registration.version, registration);
+		currentVersions.put(registration.documentId, registration.version);
+		
+	}
+
+	private synchronized Registration getRegistration(String documentId, String version) throws Exception {
+		LinkedHashMap<String, Registration> versions = documents.get(documentId);
+		Registration registration = (versions == null) ? null : versions.get(version);
+		if(registration == null) throw new Exception("Document " + documentId + " version " + version + " is not registered.");
+		return registration;
+	}
+
+	private synchronized String getRequiredCurrentVersion(String documentId) throws Exception {
+		String version = currentVersions.get(documentId);
+		if(version == null) throw new Exception("Document " + documentId + " is not registered.");
+		return version;
+	}
+
+	/**
+	 * Returns the loaded document, loading it if needed.  Loading happens outside the registry's lock so other documents can be used meanwhile.
+	 */
+	private Loaded load(Registration registration) throws Exception {
+
+		synchronized (this) {
+			if(registration.loaded != null) {
+				loaded.get(registration);
+				return registration.loaded;
+			}
+		}
+		
+		synchronized (registration) {
+			
+			synchronized (this) {
+				if(registration.loaded != null) return registration.loaded;
+			}
+			
+			BaseRules baseRules;
+			DefaultRuleDefinition ruleDefinition = new DefaultRuleDefinition();
+			synchronized (registration.parser) {
+				if(registration.source != null) registration.parser.loadRules(registration.source.get());
+				else if(registration.arguments == null) registration.parser.loadRules(registration.fileName);
+				else registration.parser.loadRules(registration.arguments);
+				baseRules = registration.parser.getRules();
+				ruleDefinition.loadRules(registration.parser);
+			}
+			
+			Loaded result;
+			try {
+				if(baseRules.getDocumentId() != null && !baseRules.getDocumentId().equals(registration.documentId)) 
+					throw new Exception("Document " + registration.documentId + " was registered, but document " + baseRules.getDocumentId() + " was loaded.");
+				if(baseRules.getVersion() != null && !baseRules.getVersion().equals(registration.version)) 
+					throw new Exception("Document " + registration.documentId + " version " + registration.version + " was registered, but version " + baseRules.getVersion() + " was loaded.");
+				result = new Loaded(ruleDefinition, new RuleEvaluatorPool(ruleDefinition, logger, poolSize), estimateSize(baseRules, ruleDefinition));
+			} catch (Exception e) {
+				ruleDefinition.release();
+				throw e;
+			}
+			
+			synchronized (this) {
+				if(!isRegistered(registration)) {
+					//unregistered while loading, so nothing will unload it
+					ruleDefinition.release();
+					return result;
+				}
+				registration.loaded = result;
+				loaded.put(registration, registration);
+				loadedSize += result.size;
+				loads++;
+				evict(registration);
+			}
+			return result;
+			
+		}
+		
+	}
+
+	private boolean isRegistered(Registration registration) {
+		LinkedHashMap<String, Registration> versions = documents.get(registration.documentId);
+		return versions != null && versions.get(registration.version) == registration;
+	}
+
+	/**
+	 * Unload the least recently used documents until the loaded size is within the budget, keeping the document just loaded
+	 */
+	private void evict(Registration keep) {
+
+		if(memoryBudget <= 0) return;
+		
+		Iterator<Map.Entry<Registration, Registration>> iterator = loaded.entrySet().iterator();
+		while (loadedSize > memoryBudget && iterator.hasNext()) {
+			Registration registration = iterator.next().getKey();
+			if(registration == keep) continue;
+			iterator.remove();
+			loadedSize -= registration.loaded.size;
+			registration.loaded.ruleDefinition.release();
+			registration.loaded = null;
+			evictions++;
+		}
+		
+	}
+
+	private void unload(Registration registration) {
+		if(registration.loaded == null) return;
+		loaded.remove(registration);
+		loadedSize -= registration.loaded.size;
+		registration.loaded.ruleDefinition.release();
+		registration.loaded = null;
+	}
+
+	/**
+	 * Estimates the memory used by a loaded document: a multiple of the size of its rules, for the rule objects, the definition's maps, and the 
+	 * compiled scores, plus the estimated size of the compiled expressions and patterns it holds in the shared caches.  The size of the rules is
+	 * worked out from their fields, a fixed amount per rule and list entry plus the length of each string, rather than by writing them out again.
+	 */
+	private long estimateSize(BaseRules baseRules, DefaultRuleDefinition ruleDefinition) throws Exception {
+		long size = RULE_BYTES + length(baseRules.getDocumentId()) + length(baseRules.getDescription()) + length(baseRules.getVersion()) 
+			+ length(baseRules.getDocumentTags());
+		if(baseRules.getCalcRules() != null) for (CalcRule rule : baseRules.getCalcRules()) size += estimateSize(rule);
+		if(baseRules.getOrRules() != null) for (CompositeRule rule : baseRules.getOrRules()) size += estimateSize(rule);
+		if(baseRules.getAndRules() != null) for (CompositeRule rule : baseRules.getAndRules()) size += estimateSize(rule);
+		if(baseRules.getAllRules() != null) for (CompositeRule rule : baseRules.getAllRules()) size += estimateSize(rule);
+		return size * SIZE_FACTOR + ruleDefinition.getExpressionSize();
+	}
+
+	private static long estimateSize(BaseRule rule) {
+
+		long size = RULE_BYTES + length(rule.getRuleType()) + length(rule.getRuleTags()) + length(rule.getDescription()) 
+			+ length(rule.getPassKey()) + length(rule.getFailKey()) + length(rule.getPassScore()) + length(rule.getFailScore()) 
+			+ length(rule.getPassFlag()) + length(rule.getFailFlag()) + length(rule.getPassReason()) + length(rule.getFailReason()) 
+			+ length(rule.getPassAction()) + length(rule.getFailAction()) + length(rule.getTimeoutOutcome());
+
+		if(rule instanceof CalcRule) {
+			CalcRule calcRule = (CalcRule) rule;
+			size += length(calcRule.getExpression()) + length(calcRule.getHandlerClass()) + length(calcRule.getResultCacheKeys());
+		}
+
+		if(rule instanceof CompositeRule) {
+			CompositeRule compositeRule = (CompositeRule) rule;
+			size += ENTRY_BYTES * (length(compositeRule.getCompositeRulesArray()) + length(compositeRule.getCompositePassKeysArray()) 
+				+ length(compositeRule.getCompositeFailKeysArray()) + length(compositeRule.getCompositePassScoreArray()) 
+				+ length(compositeRule.getCompositeFailScoreArray()) + length(compositeRule.getCompositePassFlagsArray()) 
+				+ length(compositeRule.getCompositeFailFlagsArray()) + length(compositeRule.getCompositePassReasonsArray()) 
+				+ length(compositeRule.getCompositeFailReasonsArray()) + length(compositeRule.getCompositePassActionsArray()) 
+				+ length(compositeRule.getCompositeFailActionsArray()));
+		}
+
+		return size;
+
+	}
+
+	private static long length(String value) {
+		return (value == null) ? 0 : value.length();
+	}
+
+	private static long length(List<String> values) {
+		if(values == null) return 0;
+		long length = 0;
+		for (String value : values) length += ENTRY_BYTES + length(value);
+		return length;
+	}
+
+	private static long length(int[] values) {
+		return (values == null) ? 0 : values.length;
+	}
+
+	private static class Registration {
+
+		private final String documentId;
+		private final String version;
+		private final RuleParser parser;
+		private final String fileName;
+		private final Object[] arguments;
+		private final Supplier<?> source;
+		private Loaded loaded;
+
+		private Registration(String documentId, String version, RuleParser parser, String fileName, Object[] arguments, Supplier<?> source) {
+			this.documentId = documentId;
+			this.version = version;
+			this.parser = parser;
+			this.fileName = fileName;
+			this.arguments = arguments;
+			this.source = source;
+		}
+
+	}
+
+	private static class Loaded {
+
+		private final DefaultRuleDefinition ruleDefinition;
+		private final RuleEvaluatorPool pool;
+		private final long size;
+
+		private Loaded(DefaultRuleDefinition ruleDefinition, RuleEvaluatorPool pool, long size) {
+			this.ruleDefinition = ruleDefinition;
+			this.pool = pool;
+			this.size = size;
+		}
+
+	}
+
+}
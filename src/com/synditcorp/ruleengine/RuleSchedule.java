@@ -0,0 +1,156 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.synditcorp.ruleengine.interfaces.Rule;
+
+/**
+ * This class implements the active, effectiveDate, and expirationDate rule fields.  When the rules are loaded, the effective and expiration dates are
+ * used to split time into windows, and for each window the rules not in force and the composite rule lists with those rules removed are worked out.  
+ * At runtime the window for the current time is looked up only when a boundary has passed, so rules are not checked one at a time.
+ * A rule is in force when active is not false, the effectiveDate is null or has been reached, and the expirationDate is null or has not been reached.
+ */
+public class RuleSchedule {
+
+	private final long[] boundaries;
+	private final Slice[] slices;
+	private volatile Slice current;
+
+	private static class Slice {
+
+		private final long start;
+		private final long end;
+		private final HashSet<Integer> notInForce = new HashSet<Integer>();
+		private final HashMap<Integer, int[]> compositeRules = new HashMap<Integer, int[]>();
+
+		private Slice(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+	}
+
+	/**
+	 * @param rules are all of the rules in the document
+	 * @param compositeRules are the compositeRules lists of the composite rules, by rule number
+	 */
+	public RuleSchedule(Iterable<? extends Rule> rules, Map<Integer, int[]> compositeRules) {
+
+		ArrayList<Rule> scheduled = new ArrayList<Rule>();
+		TreeSet<Long> dates = new TreeSet<Long>();
+		for (Rule rule : rules) {
+			if(Boolean.FALSE.equals(rule.getActive())) {
+				scheduled.add(rule);
+				continue;
+			}
+			if(rule.getEffectiveDate() == null && rule.getExpirationDate() == null) continue;
+			scheduled.add(rule);
+			if(rule.getEffectiveDate() != null) dates.add(rule.getEffectiveDate().getTime());
+			if(rule.getExpirationDate() != null) dates.add(rule.getExpirationDate().getTime());
+		}
+
+		boundaries = new long[dates.size()];
+		int b = 0;
+		for (Long date : dates) boundaries[b++] = date;
+
+		slices = new Slice[boundaries.length + 1];
+		for (int i = 0; i < slices.length; i++) {
+			long start = (i == 0) ? Long.MIN_VALUE : boundaries[i - 1];
+			long end = (i == boundaries.length) ? Long.MAX_VALUE : boundaries[i];
+			slices[i] = buildSlice(start, end, scheduled, compositeRules);
+		}
+
+		current = slices[0];
+
+	}
+
+	/**
+	 * Returns "true" if the rule is in force now
+	 */
+	public boolean isInForce(Integer ruleNumber) {
+		Slice slice = getSlice();
+		if(slice.notInForce.isEmpty()) return true;
+		return !slice.notInForce.contains(ruleNumber);
+	}
+
+	/**
+	 * Returns the composite rule's list with the rules that are not in force now removed.  The list passed in is returned when none are removed.
+	 */
+	public int[] getCompositeRules(Integer ruleNumber, int[] list) {
+		Slice slice = getSlice();
+		if(slice.compositeRules.isEmpty()) return list;
+		int[] pruned = slice.compositeRules.get(ruleNumber);
+		return (pruned == null) ? list : pruned;
+	}
+
+	/**
+	 * Returns "true" if any rule is inactive or has an effective or expiration date
+	 */
+	public boolean isScheduled() {
+		return slices.length > 1 || !slices[0].notInForce.isEmpty();
+	}
+
+	private Slice getSlice() {
+
+		Slice slice = current;
+		if(boundaries.length == 0) return slice;
+
+		long now = System.currentTimeMillis();
+		if(now >= slice.start && now < slice.end) return slice;
+
+		int i = Arrays.binarySearch(boundaries, now);
+		i = (i >= 0) ? i + 1 : -(i + 1);
+		slice = slices[i];
+		current = slice;
+		return slice;
+
+	}
+
+	private static Slice buildSlice(long start, long end, ArrayList<Rule> scheduled, Map<Integer, int[]> compositeRules) {
+
+		Slice slice = new Slice(start, end);
+
+		for (Rule rule : scheduled) {
+			if(!isInForce(rule, start)) slice.notInForce.add(rule.getRuleNumber());
+		}
+		if(slice.notInForce.isEmpty()) return slice;
+
+		for (Map.Entry<Integer, int[]> entry : compositeRules.entrySet()) {
+			int[] list = entry.getValue();
+			if(list == null) continue;
+			int[] pruned = new int[list.length];
+			int count = 0;
+			for (int i = 0; i < list.length; i++) {
+				if(!slice.notInForce.contains(Math.abs(list[i]))) pruned[count++] = list[i];
+			}
+			if(count < list.length) slice.compositeRules.put(entry.getKey(), Arrays.copyOf(pruned, count));
+		}
+
+		return slice;
+
+	}
+
+	private static boolean isInForce(Rule rule, long time) {
+		if(Boolean.FALSE.equals(rule.getActive())) return false;
+		if(rule.getEffectiveDate() != null && time < rule.getEffectiveDate().getTime()) return false;
+		if(rule.getExpirationDate() != null && time >= rule.getExpirationDate().getTime()) return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,295 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.synditcorp.ruleengine.beans.AllRule;
+import com.synditcorp.ruleengine.beans.AndRule;
+import com.synditcorp.ruleengine.beans.BaseRules;
+import com.synditcorp.ruleengine.beans.CalcRule;
+import com.synditcorp.ruleengine.beans.CompositeRule;
+import com.synditcorp.ruleengine.beans.OrRule;
+import com.synditcorp.ruleengine.cache.PureRuleMemo;
+import com.synditcorp.ruleengine.handlers.ScoreExpression;
+import com.synditcorp.ruleengine.interfaces.Rule;
+import com.synditcorp.ruleengine.interfaces.RuleParser;
+
+/**
+ * The rules of one load of a DefaultRuleDefinition and the state worked out for them.  DefaultRuleDefinition fills in a new snapshot each time 
+ * the rules are loaded and publishes it only when every step has succeeded; the snapshot isn't changed after that, so a RuleEvaluator that holds
+ * one sees a single version of the rules, whatever is reloaded meanwhile.
+ */
+final class RuleSnapshot implements CompiledRuleDefinition {
+
+	BaseRules baseRules;
+	TreeMap<Integer, CalcRule> calcRules = new TreeMap<Integer, CalcRule>();
+	TreeMap<Integer, OrRule> orRules = new TreeMap<Integer, OrRule>();
+	TreeMap<Integer, AndRule> andRules = new TreeMap<Integer, AndRule>();
+	TreeMap<Integer, AllRule> allRules = new TreeMap<Integer, AllRule>();
+	TreeMap<Integer, ScoreExpression> passScores = new TreeMap<Integer, ScoreExpression>();
+	TreeMap<Integer, ScoreExpression> failScores = new TreeMap<Integer, ScoreExpression>();
+	RuleSchedule schedule;
+	PureRuleMemo pureRuleMemo;
+	RuleIndex ruleIndex;
+	ArrayList<String> validationWarnings = new ArrayList<String>();
+	HashMap<Integer, Long> ruleHashes = new HashMap<Integer, Long>();
+	TreeSet<Integer> changedRules = new TreeSet<Integer>();
+
+	@Override
+	public CompiledRuleDefinition getSnapshot() {
+		return this;
+	}
+
+	@Override
+	public String getDocumentId() {
+		return baseRules.getDocumentId();
+	}
+
+	@Override
+	public String getDescription() {
+		return baseRules.getDescription();
+	}
+
+	@Override
+	public String getVersion() {
+		return baseRules.getVersion();
+	}
+
+	@Override
+	public ArrayList<String> getDocumentTags() {
+		return baseRules.getDocumentTags();
+	}
+
+	@Override
+	public Integer getStartRule() {
+		return baseRules.getStartRule();
+	}
+
+	@Override
+	public ArrayList<String> getRuleTags(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getRuleTags();
+	}
+
+	@Override
+	public void loadRules(RuleParser parser) throws Exception {
+		throw new Exception("A snapshot of the rules can't be loaded.  Load the DefaultRuleDefinition instead.");
+	}
+
+	@Override
+	public void reloadRules(RuleParser parser) throws Exception {
+		throw new Exception("A snapshot of the rules can't be reloaded.  Reload the DefaultRuleDefinition instead.");
+	}
+
+	@Override
+	public PureRuleMemo getPureRuleMemo() {
+		return pureRuleMemo;
+	}
+
+	@Override
+	public RuleIndex getRuleIndex() {
+		return ruleIndex;
+	}
+
+	@Override
+	public long getRuleHash(Integer ruleNumber) throws Exception {
+		Long hash = ruleHashes.get(ruleNumber);
+		if(hash == null) throw new Exception("Rule number " + ruleNumber + " not found in rule definitions.");
+		return hash;
+	}
+
+	@Override
+	public String getPassAction(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getPassAction();
+	}
+
+	@Override
+	public String getFailAction(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getFailAction();
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositeRulesList(Integer ruleNumber) throws Exception {
+		return toList(getCompositeRulesArray(ruleNumber));
+	}
+
+	@Override
+	public int[] getCompositeRulesArray(Integer ruleNumber) throws Exception {
+		return schedule.getCompositeRules(ruleNumber, ((CompositeRule) getRule(ruleNumber)).getCompositeRulesArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositePassScoreList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositePassScoreArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositeFailScoreList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositeFailScoreArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositePassActionsList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositePassActionsArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositeFailActionsList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositeFailActionsArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositePassFlagsList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositePassFlagsArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositeFailFlagsList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositeFailFlagsArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositePassReasonsList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositePassReasonsArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositeFailReasonsList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositeFailReasonsArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositePassKeysList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositePassKeysArray());
+	}
+
+	@Override
+	public ArrayList<Integer> getCompositeFailKeysList(Integer ruleNumber) throws Exception {
+		return toList(((CompositeRule) getRule(ruleNumber)).getCompositeFailKeysArray());
+	}
+
+	@Override
+	public boolean isCalcRule(Integer ruleNumber) throws Exception {
+		return calcRules.containsKey(ruleNumber);
+	}
+
+	@Override
+	public boolean isOrRule(Integer ruleNumber) throws Exception {
+		return orRules.containsKey(ruleNumber);
+	}
+
+	@Override
+	public boolean isAndRule(Integer ruleNumber) throws Exception {
+		return andRules.containsKey(ruleNumber);
+	}
+
+	@Override
+	public boolean isAllRule(Integer ruleNumber) throws Exception {
+		return allRules.containsKey(ruleNumber);
+	}
+
+	@Override
+	public boolean isInForce(Integer ruleNumber) throws Exception {
+		return schedule.isInForce(ruleNumber);
+	}
+
+	@Override
+	public String getExpression(Integer ruleNumber) throws Exception {
+		return calcRules.get(ruleNumber).getExpression();
+	}
+
+	@Override
+	public String getHandlerClass(Integer ruleNumber) throws Exception {
+		return calcRules.get(ruleNumber).getHandlerClass();
+	}
+
+	@Override
+	public String getPassKey(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getPassKey();
+	}
+
+	@Override
+	public String getFailKey(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getFailKey();
+	}
+
+	@Override
+	public String getPassScore(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getPassScore();
+	}
+
+	@Override
+	public String getFailScore(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getFailScore();
+	}
+
+	@Override
+	public ScoreExpression getCompiledPassScore(Integer ruleNumber) throws Exception {
+		return passScores.get(ruleNumber);
+	}
+
+	@Override
+	public ScoreExpression getCompiledFailScore(Integer ruleNumber) throws Exception {
+		return failScores.get(ruleNumber);
+	}
+
+	@Override
+	public String getPassFlag(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getPassFlag();
+	}
+
+	@Override
+	public String getFailFlag(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getFailFlag();
+	}
+
+	@Override
+	public String getPassReason(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getPassReason();
+	}
+
+	@Override
+	public String getFailReason(Integer ruleNumber) throws Exception {
+		return getRule(ruleNumber).getFailReason();
+	}
+
+	@Override
+	public Rule getRule(Integer ruleNumber) throws Exception {
+
+		if(isCalcRule(ruleNumber)) {
+			return (Rule) calcRules.get(ruleNumber);
+		} else if(isAndRule(ruleNumber)) {
+			return (Rule) andRules.get(ruleNumber);
+		} else if(isOrRule(ruleNumber)) {
+			return (Rule) orRules.get(ruleNumber);
+		} else if(isAllRule(ruleNumber)) {
+			return (Rule) allRules.get(ruleNumber);
+		}
+		
+		return null;
+		
+	}
+
+	/**
+	 * The RuleDefinition list getters return a new ArrayList each call, which the caller may change; the engine uses the arrays
+	 */
+	private static ArrayList<Integer> toList(int[] array) {
+		if(array == null) return null;
+		ArrayList<Integer> list = new ArrayList<Integer>(array.length);
+		for (int i = 0; i < array.length; i++) list.add(array[i]);
+		return list;
+	}
+
+}
@@ -0,0 +1,330 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+
+import com.synditcorp.ruleengine.handlers.ExpressionHandler;
+import com.synditcorp.ruleengine.handlers.ExpressionRuleHandler;
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+import com.synditcorp.ruleengine.logging.RuleLogger;
+
+/**
+ * Evaluates the rules of a document over and over before it takes traffic, so MVEL is initialized, expressions are compiled, and the JIT has
+ * optimized the evaluation paths by the time the first request arrives.  Each round evaluates every rule reachable from the start rule (every 
+ * rule if the document has none) with each sample variable set.  The samples are given with setSamples or generated from the expressions: a 
+ * variable compared to a string, or with a method like matches called on it, gets strings taken from the expression's literals, one used in 
+ * and/or gets booleans, and the rest get numbers around the expression's numeric literals.  Rounds stop when the average time of the last 
+ * rounds is within 10% of the rounds before them, i.e. steady state, or after maxRounds.
+ * <p>
+ * Warm-up has no side effects: logging is suppressed on the warm-up thread, calc rules with handlers other than the ExpressionRuleHandler are
+ * given random results instead of being called, and no result cache or profiler is used.  Pure rule results are memoized as usual.
+ */
+public class RuleWarmUp {
+
+	private static final Pattern STRING_LITERAL = Pattern.compile("'([^'\\\\]*)'|\"([^\"\\\\]*)\"");
+	private static final Pattern NUMBER_LITERAL = Pattern.compile("(?<![\\w$.'\"])\\d+(\\.\\d+)?");
+	private static final Pattern REGEX_CHARACTERS = Pattern.compile("[.*+?^$\\[\\](){}|\\\\]");
+	private static final Object[] DEFAULT_NUMBERS = { 0.0, 1.0, 10.0, 100.0 };
+	private static final Object[] BOOLEANS = { Boolean.TRUE, Boolean.FALSE };
+	private static final int WINDOW = 5;
+	private static final double TOLERANCE = 0.1;
+
+	private final RuleDefinition ruleDefinition;
+	private final Logger logger;
+	private int maxRounds = 200;
+	private int sampleCount = 32;
+	private List<? extends Map<String, ? extends Object>> samples;
+	private final Random random = new Random(1);
+
+	private volatile boolean done;
+	private volatile boolean steady;
+	private volatile int rounds;
+	private volatile long errors;
+	private volatile long firstRoundNanos;
+	private volatile long lastRoundsNanos;
+
+	public RuleWarmUp(RuleDefinition ruleDefinition, Logger logger) {
+		this.ruleDefinition = ruleDefinition;
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the most rounds to run if steady state is not reached first.  The default is 200.
+	 */
+	public void setMaxRounds(int maxRounds) {
+		this.maxRounds = maxRounds;
+	}
+
+	/**
+	 * Sets the variable sets to evaluate the rules with, e.g. recorded requests.  They are used as is, rather than generated.
+	 */
+	public void setSamples(List<? extends Map<String, ? extends Object>> samples) {
+		this.samples = samples;
+	}
+
+	/**
+	 * Sets how many variable sets to generate when no samples are set.  The default is 32.
+	 */
+	public void setSampleCount(int sampleCount) {
+		this.sampleCount = sampleCount;
+	}
+
+	/**
+	 * Run the warm-up on a daemon thread.  The future completes with isSteady() when the warm-up is done, so a readiness probe can wait on it.
+	 */
+	public CompletableFuture<Boolean> start() {
+
+		final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.complete(RuleWarmUp.this.run());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			}
+		}, "rule-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+		return future;
+
+	}
+
+	/**
+	 * Run the warm-up on the calling thread.  Returns "true" if steady state was reached within maxRounds.
+	 */
+	public boolean run() throws Exception {
+
+		if(ruleDefinition instanceof DefaultRuleDefinition) ((DefaultRuleDefinition) ruleDefinition).getCompilation().join();
+
+		ArrayList<Integer> rules = getRules();
+		ArrayList<Integer> handlerRules = new ArrayList<Integer>();
+		for (Integer ruleNumber : rules) {
+			if(ruleDefinition.isCalcRule(ruleNumber) && !ExpressionRuleHandler.class.getName().equals(ruleDefinition.getHandlerClass(ruleNumber))) {
+				handlerRules.add(ruleNumber);
+			}
+		}
+		List<? extends Map<String, ? extends Object>> variableSets = (samples != null) ? samples : generateSamples(rules);
+
+		boolean wasSuppressed = RuleLogger.isSuppressed();
+		RuleLogger.setSuppressed(true);
+		try {
+			
+			RuleEvaluator evaluator = new RuleEvaluator(ruleDefinition, logger);
+			long[] roundNanos = new long[Math.max(maxRounds, 1)];
+			long errorCount = 0;
+			
+			for (int round = 0; round < maxRounds; round++) {
+				
+				long start = System.nanoTime();
+				for (Map<String, ? extends Object> variables : variableSets) {
+					evaluator.reset();
+					evaluator.putVariables(variables);
+					for (Integer ruleNumber : handlerRules) evaluator.prefetch(ruleNumber, random.nextBoolean());
+					for (Integer ruleNumber : rules) {
+						try {
+							evaluator.evaluateRule(ruleNumber);
+						} catch (Exception e) {
+							errorCount++;
+						}
+					}
+				}
+				roundNanos[round] = System.nanoTime() - start;
+				
+				rounds = round + 1;
+				errors = errorCount;
+				if(round == 0) firstRoundNanos = roundNanos[0];
+				if(rounds >= WINDOW) lastRoundsNanos = average(roundNanos, rounds - WINDOW, rounds);
+				if(rounds >= 2 * WINDOW) {
+					long before = average(roundNanos, rounds - 2 * WINDOW, rounds - WINDOW);
+					if(Math.abs(lastRoundsNanos - before) <= TOLERANCE * before) {
+						steady = true;
+						break;
+					}
+				}
+				
+			}
+			evaluator.reset();
+			
+		} finally {
+			RuleLogger.setSuppressed(wasSuppressed);
+			done = true;
+		}
+		
+		return steady;
+
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns "true" if steady state was reached
+	 */
+	public boolean isSteady() {
+		return steady;
+	}
+
+	public int getRounds() {
+		return rounds;
+	}
+
+	/**
+	 * Returns the number of rule evaluations that threw an exception, e.g. because a generated variable set doesn't suit an expression
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getFirstRoundNanos() {
+		return firstRoundNanos;
+	}
+
+	/**
+	 * Returns the average time of the last five rounds
+	 */
+	public long getLastRoundsNanos() {
+		return lastRoundsNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "rounds=" + rounds + " steady=" + steady + " firstRoundNanos=" + firstRoundNanos + " lastRoundsNanos=" + lastRoundsNanos + " errors=" + errors;
+	}
+
+	/**
+	 * Returns the rules in force reachable from the start rule, nearest first, or every rule in force if there is no start rule
+	 */
+	private ArrayList<Integer> getRules() throws Exception {
+
+		LinkedHashSet<Integer> rules = new LinkedHashSet<Integer>();
+		Integer startRule = ruleDefinition.getStartRule();
+		
+		if(startRule == null || ruleDefinition.getRule(startRule) == null) {
+			RuleIndex ruleIndex = RuleIndex.of(ruleDefinition);
+			for (int i = 0; i < ruleIndex.size(); i++) rules.add(ruleIndex.getRuleNumber(i));
+		}
+		else {
+			ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+			queue.add(startRule);
+			while (!queue.isEmpty()) {
+				Integer ruleNumber = queue.poll();
+				if(!rules.add(ruleNumber) || ruleDefinition.isCalcRule(ruleNumber)) continue;
+				int[] compositeRules = ruleDefinition.getCompositeRulesArray(ruleNumber);
+				if(compositeRules == null) continue;
+				for (int compositeRule : compositeRules) {
+					Integer child = Math.abs(compositeRule);
+					if(ruleDefinition.getRule(child) != null && !rules.contains(child)) queue.add(child);
+				}
+			}
+		}
+		
+		ArrayList<Integer> inForce = new ArrayList<Integer>();
+		for (Integer ruleNumber : rules) {
+			if(ruleDefinition.isInForce(ruleNumber)) inForce.add(ruleNumber);
+		}
+		return inForce;
+
+	}
+
+	private ArrayList<TreeMap<String, Object>> generateSamples(ArrayList<Integer> rules) throws Exception {
+
+		TreeMap<String, ArrayList<Object>> values = new TreeMap<String, ArrayList<Object>>();
+		for (Integer ruleNumber : rules) {
+			if(!ruleDefinition.isCalcRule(ruleNumber)) continue;
+			if(!ExpressionRuleHandler.class.getName().equals(ruleDefinition.getHandlerClass(ruleNumber))) continue;
+			addValues(ruleDefinition.getExpression(ruleNumber), values);
+		}
+
+		ArrayList<TreeMap<String, Object>> generated = new ArrayList<TreeMap<String, Object>>();
+		for (int i = 0; i < sampleCount; i++) {
+			TreeMap<String, Object> variables = new TreeMap<String, Object>();
+			for (Map.Entry<String, ArrayList<Object>> entry : values.entrySet()) {
+				ArrayList<Object> candidates = entry.getValue();
+				variables.put(entry.getKey(), candidates.get(random.nextInt(candidates.size())));
+			}
+			generated.add(variables);
+		}
+		return generated;
+
+	}
+
+	/**
+	 * Adds candidate values for each variable the expression reads, of the type the expression appears to use it as
+	 */
+	private static void addValues(String expression, TreeMap<String, ArrayList<Object>> values) {
+
+		String[] inputs;
+		try {
+			inputs = ExpressionHandler.getInputs(expression);
+		} catch (Exception e) {
+			return;
+		}
+		if(inputs == null) return;
+
+		ArrayList<Object> strings = new ArrayList<Object>();
+		Matcher m = STRING_LITERAL.matcher(expression);
+		while (m.find()) {
+			String literal = (m.group(1) != null) ? m.group(1) : m.group(2);
+			strings.add(literal);
+			strings.add(REGEX_CHARACTERS.matcher(literal).replaceAll(""));
+		}
+		strings.add("");
+		
+		ArrayList<Object> numbers = new ArrayList<Object>();
+		m = NUMBER_LITERAL.matcher(STRING_LITERAL.matcher(expression).replaceAll("''"));
+		while (m.find()) {
+			double number = Double.parseDouble(m.group());
+			numbers.add(number - 1);
+			numbers.add(number);
+			numbers.add(number + 1);
+		}
+		if(numbers.isEmpty()) for (Object number : DEFAULT_NUMBERS) numbers.add(number);
+
+		for (String name : inputs) {
+			String quoted = Pattern.quote(name);
+			ArrayList<Object> candidates = values.get(name);
+			if(candidates == null) values.put(name, candidates = new ArrayList<Object>());
+			if(Pattern.compile("\\b" + quoted + "\\s*\\.\\s*\\w+\\s*\\(|\\b" + quoted + "\\s*[=!]=\\s*['\"]|['\"]\\s*[=!]=\\s*" + quoted + "\\b").matcher(expression).find()) {
+				candidates.addAll(strings);
+			}
+			else if(Pattern.compile("(^|&&|\\|\\||!|\\()\\s*" + quoted + "\\s*($|&&|\\|\\||\\))|\\b" + quoted + "\\s*[=!]=\\s*(true|false)\\b").matcher(expression).find()) {
+				for (Object value : BOOLEANS) candidates.add(value);
+			}
+			else {
+				candidates.addAll(numbers);
+			}
+		}
+
+	}
+
+	private static long average(long[] nanos, int from, int to) {
+		long sum = 0;
+		for (int i = from; i < to; i++) sum += nanos[i];
+		return sum / (to - from);
+	}
+
+}
@@ -0,0 +1,550 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.batch;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mvel2.MVEL;
+import org.slf4j.Logger;
+
+import com.synditcorp.ruleengine.CalcRuleProcessor;
+import com.synditcorp.ruleengine.RuleEvaluator;
+import com.synditcorp.ruleengine.handlers.ExpressionHandler;
+import com.synditcorp.ruleengine.handlers.ExpressionRuleHandler;
+import com.synditcorp.ruleengine.handlers.RegexHandler;
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+
+/**
+ * Evaluates a rule for every record of a RecordBatch, one rule at a time instead of one record at a time.  Each calc rule is evaluated for all the
+ * records that reach it before moving on, and composite rules combine the results of their rules as bit sets, with and/or short-circuiting applied
+ * per record just as RuleEvaluator does.
+ * <p>
+ * Calc rules whose expressions are simple comparisons joined by &amp;&amp;, like <code>amount1 &gt;= 1 &amp;&amp; name1 == 'Bob'</code> or 
+ * <code>name1.matches('Buggs.*')</code>, run as loops over the numeric, boolean, and String columns.  Other ExpressionRuleHandler expressions are
+ * run record by record.  If a rule reachable from the rule being evaluated reads the runtime values of other rules (passScore_1, 
+ * compositePassFlags_10, etc.), assigns variables, or uses another handler class, the records are evaluated one by one with a RuleEvaluator 
+ * instead.
+ * <p>
+ * Like RuleEvaluator, a BatchEvaluator is not safe to share between threads.
+ */
+public class BatchEvaluator {
+
+	private static final int EQ = 0;
+	private static final int NE = 1;
+	private static final int LT = 2;
+	private static final int LE = 3;
+	private static final int GT = 4;
+	private static final int GE = 5;
+	
+	private static final String IDENT = "[A-Za-z_][A-Za-z0-9_]*";
+	private static final String STRING = "'[^']*'|\"[^\"]*\"";
+	private static final String OPERAND = "-?[0-9]+(?:\\.[0-9]+)?|" + STRING + "|" + IDENT;
+	private static final Pattern COMPARISON = Pattern.compile("\\s*(" + OPERAND + ")\\s*(==|!=|>=|<=|>|<)\\s*(" + OPERAND + ")\\s*");
+	private static final Pattern MATCHES = Pattern.compile("\\s*(" + IDENT + ")\\s*\\.\\s*matches\\s*\\(\\s*(" + STRING + ")\\s*\\)\\s*");
+	private static final Pattern RUNTIME_VARIABLE = Pattern.compile("\\b(pass|fail)(Key|Score|Flag|Reason|Action)_[0-9]+|\\bcomposite(Pass|Fail)(Keys|Score|Flags|Reasons|Actions)_[0-9]+");
+	private static final Term[] NOT_SIMPLE = new Term[0];
+	
+	private final RuleDefinition ruleDefinition;
+	private final Logger logger;
+	private final HashMap<Integer, Term[]> terms = new HashMap<Integer, Term[]>();
+	private final HashMap<Integer, String[]> inputs = new HashMap<Integer, String[]>();
+	private RuleEvaluator ruleEvaluator;
+	private long columnEvaluations = 0;
+	private long recordEvaluations = 0;
+	private long recordFallbacks = 0;
+
+	public BatchEvaluator(RuleDefinition ruleDefinition, Logger logger) {
+		this.ruleDefinition = ruleDefinition;
+		this.logger = logger;
+	}
+
+	/**
+	 * Evaluate the rule for every record and return the records for which it is true
+	 * @throws Exception if the rule isn't in force, or an expression can't be evaluated for a record
+	 */
+	public BitSet evaluateRule(Integer ruleNumber, RecordBatch records) throws Exception {
+
+		BitSet all = new BitSet(records.size());
+		all.set(0, records.size());
+		return evaluateRule(ruleNumber, records, all);
+		
+	}
+
+	/**
+	 * Evaluate the rule for the selected records and return the records for which it is true
+	 * @throws Exception if the rule isn't in force, or an expression can't be evaluated for a record
+	 */
+	public BitSet evaluateRule(Integer ruleNumber, RecordBatch records, BitSet selected) throws Exception {
+
+		if(!ruleDefinition.isInForce(ruleNumber)) throw new Exception("Rule number " + ruleNumber + " is not in force.");
+		
+		if(needsRecords(ruleNumber, new HashSet<Integer>())) return evaluateRecords(ruleNumber, records, selected);
+		
+		return callRule(ruleNumber, records, selected, new HashMap<Integer, BitSet[]>());
+		
+	}
+
+	/**
+	 * Returns the number of times a calc rule was run as a loop over the columns
+	 */
+	public long getColumnEvaluations() {
+		return columnEvaluations;
+	}
+
+	/**
+	 * Returns the number of times a calc rule expression was run for a single record
+	 */
+	public long getRecordEvaluations() {
+		return recordEvaluations;
+	}
+
+	/**
+	 * Returns the number of records evaluated one by one with a RuleEvaluator
+	 */
+	public long getRecordFallbacks() {
+		return recordFallbacks;
+	}
+
+	/**
+	 * Returns the records, of those selected, for which the rule is true.  Results are kept in done so a rule reached again only evaluates the 
+	 * records it hasn't seen. 
+	 */
+	private BitSet callRule(Integer ruleNumber, RecordBatch records, BitSet selected, HashMap<Integer, BitSet[]> done) throws Exception {
+
+		BitSet[] previous = done.get(ruleNumber);
+		BitSet remaining = selected;
+		if(previous != null) {
+			remaining = (BitSet) selected.clone();
+			remaining.andNot(previous[0]);
+		}
+		
+		BitSet result = remaining.isEmpty() ? new BitSet() : evaluate(ruleNumber, records, remaining, done);
+		
+		if(previous == null) {
+			done.put(ruleNumber, new BitSet[] {(BitSet) selected.clone(), result});
+			return result;
+		}
+		previous[0].or(remaining);
+		previous[1].or(result);
+		BitSet selectedResult = (BitSet) previous[1].clone();
+		selectedResult.and(selected);
+		return selectedResult;
+		
+	}
+
+	private BitSet evaluate(Integer ruleNumber, RecordBatch records, BitSet selected, HashMap<Integer, BitSet[]> done) throws Exception {
+
+		if(ruleDefinition.isCalcRule(ruleNumber)) return processCalcRule(ruleNumber, records, selected);
+
+		if(ruleDefinition.isOrRule(ruleNumber)) {
+			BitSet result = new BitSet();
+			BitSet remaining = (BitSet) selected.clone();
+			int[] compositeRules = ruleDefinition.getCompositeRulesArray(ruleNumber);
+			for (int i = 0; i < compositeRules.length && !remaining.isEmpty(); i++) {
+				BitSet passed = processRule(compositeRules[i], records, remaining, done);
+				result.or(passed);
+				remaining.andNot(passed);
+			}
+			return result;
+		}
+		
+		if(ruleDefinition.isAndRule(ruleNumber)) {
+			BitSet result = (BitSet) selected.clone();
+			int[] compositeRules = ruleDefinition.getCompositeRulesArray(ruleNumber);
+			for (int i = 0; i < compositeRules.length && !result.isEmpty(); i++) {
+				result.and(processRule(compositeRules[i], records, result, done));
+			}
+			return result;
+		}
+		
+		if(ruleDefinition.isAllRule(ruleNumber)) {
+			int[] compositeRules = ruleDefinition.getCompositeRulesArray(ruleNumber);
+			for (int i = 0; i < compositeRules.length; i++) processRule(compositeRules[i], records, selected, done);
+			return (BitSet) selected.clone();
+		}
+		
+		throw new Exception("Rule number " + ruleNumber + " not found in rule definitions.");
+		
+	}
+
+	/**
+	 * Negative rule numbers are "not" rules
+	 */
+	private BitSet processRule(Integer ruleNumber, RecordBatch records, BitSet selected, HashMap<Integer, BitSet[]> done) throws Exception {
+
+		BitSet result = callRule(Math.abs(ruleNumber), records, selected, done);
+		if(ruleNumber.intValue() >= 0) return result;
+		BitSet not = (BitSet) selected.clone();
+		not.andNot(result);
+		return not;
+		
+	}
+
+	private BitSet processCalcRule(Integer ruleNumber, RecordBatch records, BitSet selected) throws Exception {
+
+		Term[] ruleTerms = getTerms(ruleNumber);
+		if(canRun(ruleTerms, records)) {
+			columnEvaluations++;
+			BitSet result = (BitSet) selected.clone();
+			for (int i = 0; i < ruleTerms.length && !result.isEmpty(); i++) ruleTerms[i].filter(records, result);
+			return result;
+		}
+		
+		String handler = ruleDefinition.getHandlerClass(ruleNumber);
+		String expression = ruleDefinition.getExpression(ruleNumber);
+		String[] names = getInputs(ruleNumber);
+		TreeMap<String, Object> variables = new TreeMap<String, Object>();
+		BitSet result = new BitSet();
+		for (int record = selected.nextSetBit(0); record >= 0; record = selected.nextSetBit(record + 1)) {
+			variables.clear();
+			records.putRecord(variables, record, names);
+			recordEvaluations++;
+			Boolean passed;
+			try {
+				passed = CalcRuleProcessor.processCalcRule(handler, expression, variables);
+			} catch (Exception e) {
+				throw new Exception("Rule number " + ruleNumber + " failed for record " + record + ": " + e.getMessage(), e);
+			}
+			if(passed != null && passed) result.set(record);
+		}
+		return result;
+		
+	}
+
+	/**
+	 * Evaluate the selected records one by one with a RuleEvaluator
+	 */
+	private BitSet evaluateRecords(Integer ruleNumber, RecordBatch records, BitSet selected) throws Exception {
+
+		if(ruleEvaluator == null) ruleEvaluator = new RuleEvaluator(ruleDefinition, logger);
+		
+		TreeMap<String, Object> variables = new TreeMap<String, Object>();
+		BitSet result = new BitSet();
+		for (int record = selected.nextSetBit(0); record >= 0; record = selected.nextSetBit(record + 1)) {
+			variables.clear();
+			records.putRecord(variables, record, null);
+			recordFallbacks++;
+			try {
+				ruleEvaluator.putVariables(variables);
+				if(ruleEvaluator.evaluateRule(ruleNumber)) result.set(record);
+			} catch (Exception e) {
+				throw new Exception("Rule number " + ruleNumber + " failed for record " + record + ": " + e.getMessage(), e);
+			} finally {
+				ruleEvaluator.reset();
+			}
+		}
+		return result;
+		
+	}
+
+	/**
+	 * Returns "true" if a rule reachable from the rule reads the runtime values of other rules, assigns variables, which later rules of the same
+	 * record may read, or uses a handler other than the ExpressionRuleHandler
+	 */
+	private boolean needsRecords(Integer ruleNumber, HashSet<Integer> visited) throws Exception {
+
+		if(!visited.add(ruleNumber)) return false;
+		
+		if(ruleDefinition.isCalcRule(ruleNumber)) {
+			if(!ExpressionRuleHandler.class.getName().equals(ruleDefinition.getHandlerClass(ruleNumber))) return true;
+			String expression = ruleDefinition.getExpression(ruleNumber);
+			return expression != null && (RUNTIME_VARIABLE.matcher(expression).find() || assigns(expression));
+		}
+		
+		if(ruleDefinition.getRule(ruleNumber) == null) return false;
+		int[] compositeRules = ruleDefinition.getCompositeRulesArray(ruleNumber);
+		for (int i = 0; i < compositeRules.length; i++) {
+			if(needsRecords(Math.abs(compositeRules[i]), visited)) return true;
+		}
+		return false;
+		
+	}
+
+	/**
+	 * Returns "true" if the expression has an assignment (=, +=, etc.) or ++ or -- outside its string literals
+	 */
+	private static boolean assigns(String expression) {
+
+		char quote = 0;
+		for (int i = 0; i < expression.length(); i++) {
+			char c = expression.charAt(i);
+			if(quote != 0) {
+				if(c == quote) quote = 0;
+				continue;
+			}
+			if(c == '\'' || c == '"') {
+				quote = c;
+				continue;
+			}
+			char next = (i + 1 < expression.length()) ? expression.charAt(i + 1) : 0;
+			if((c == '+' || c == '-') && next == c) return true;
+			if(c != '=') continue;
+			if(next == '=') {
+				i++;
+				continue;
+			}
+			char previous = (i > 0) ? expression.charAt(i - 1) : 0;
+			if(previous != '!' && previous != '<' && previous != '>') return true;
+		}
+		return false;
+
+	}
+
+	private String[] getInputs(Integer ruleNumber) throws Exception {
+		if(inputs.containsKey(ruleNumber)) return inputs.get(ruleNumber);
+		String[] names = ExpressionHandler.getInputs(ruleDefinition.getExpression(ruleNumber));
+		inputs.put(ruleNumber, names);
+		return names;
+	}
+
+	private static boolean canRun(Term[] ruleTerms, RecordBatch records) {
+		if(ruleTerms == NOT_SIMPLE) return false;
+		for (int i = 0; i < ruleTerms.length; i++) {
+			if(!ruleTerms[i].canRun(records)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the comparisons of the rule's expression, or NOT_SIMPLE if it is anything other than simple comparisons joined by &&
+	 */
+	private Term[] getTerms(Integer ruleNumber) throws Exception {
+
+		Term[] ruleTerms = terms.get(ruleNumber);
+		if(ruleTerms != null) return ruleTerms;
+		
+		ruleTerms = parse(ruleDefinition.getExpression(ruleNumber));
+		terms.put(ruleNumber, ruleTerms);
+		return ruleTerms;
+		
+	}
+
+	private static Term[] parse(String expression) {
+
+		if(expression == null || expression.indexOf("||") >= 0) return NOT_SIMPLE;
+		
+		String[] parts = expression.split("&&", -1);
+		Term[] ruleTerms = new Term[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			ruleTerms[i] = parseTerm(parts[i]);
+			if(ruleTerms[i] == null) return NOT_SIMPLE;
+		}
+		return ruleTerms;
+		
+	}
+
+	private static Term parseTerm(String part) {
+
+		try {
+			
+			Matcher matcher = MATCHES.matcher(part);
+			if(matcher.matches()) {
+				Term term = new Term(MATCHES_TERM, matcher.group(1), EQ);
+				term.pattern = RegexHandler.getPattern((String) MVEL.eval(matcher.group(2)));
+				return term;
+			}
+			
+			matcher = COMPARISON.matcher(part);
+			if(!matcher.matches()) return null;
+			
+			String left = matcher.group(1);
+			int op = getOperator(matcher.group(2));
+			String right = matcher.group(3);
+			if(!isVariable(left)) {
+				if(!isVariable(right)) return null;
+				String swap = left;
+				left = right;
+				right = swap;
+				op = flip(op);
+			}
+			
+			Term term;
+			if(isVariable(right)) {
+				term = new Term(VARIABLES_TERM, left, op);
+				term.otherName = right;
+			}
+			else if(right.equals("true") || right.equals("false")) {
+				if(op != EQ && op != NE) return null;
+				term = new Term(BOOLEAN_TERM, left, op);
+				term.booleanValue = right.equals("true");
+			}
+			else if(right.charAt(0) == '\'' || right.charAt(0) == '"') {
+				if(op != EQ && op != NE) return null;
+				term = new Term(STRING_TERM, left, op);
+				term.stringValue = (String) MVEL.eval(right);
+			}
+			else {
+				term = new Term(NUMBER_TERM, left, op);
+				term.numberValue = Double.parseDouble(right);
+			}
+			return term;
+			
+		} catch (Exception e) {
+			// anything unexpected is left to the expression handler
+			return null;
+		}
+		
+	}
+
+	private static boolean isVariable(String operand) {
+		char c = operand.charAt(0);
+		if(!(Character.isLetter(c) || c == '_')) return false;
+		return !operand.equals("true") && !operand.equals("false") && !operand.equals("null") && !operand.equals("nil");
+	}
+
+	private static int getOperator(String op) {
+		if(op.equals("==")) return EQ;
+		if(op.equals("!=")) return NE;
+		if(op.equals("<")) return LT;
+		if(op.equals("<=")) return LE;
+		if(op.equals(">")) return GT;
+		return GE;
+	}
+
+	/**
+	 * Returns the operator with the operands swapped, i.e. 5 < x is x > 5
+	 */
+	private static int flip(int op) {
+		switch (op) {
+		case LT: return GT;
+		case LE: return GE;
+		case GT: return LT;
+		case GE: return LE;
+		default: return op;
+		}
+	}
+
+	private static boolean compare(double value, int op, double other) {
+		switch (op) {
+		case EQ: return value == other;
+		case NE: return value != other;
+		case LT: return value < other;
+		case LE: return value <= other;
+		case GT: return value > other;
+		default: return value >= other;
+		}
+	}
+
+	private static final int NUMBER_TERM = 0;
+	private static final int STRING_TERM = 1;
+	private static final int BOOLEAN_TERM = 2;
+	private static final int VARIABLES_TERM = 3;
+	private static final int MATCHES_TERM = 4;
+
+	/**
+	 * One comparison of a calc rule expression
+	 */
+	private static class Term {
+
+		private final int kind;
+		private final String name;
+		private final int op;
+		private String otherName;
+		private double numberValue;
+		private String stringValue;
+		private boolean booleanValue;
+		private Pattern pattern;
+
+		private Term(int kind, String name, int op) {
+			this.kind = kind;
+			this.name = name;
+			this.op = op;
+		}
+
+		private boolean canRun(RecordBatch records) {
+			switch (kind) {
+			case NUMBER_TERM: 
+				return records.getDoubleColumn(name) != null;
+			case STRING_TERM: 
+			case MATCHES_TERM:
+				return records.getColumn(name) instanceof String[];
+			case BOOLEAN_TERM: 
+				return records.getColumn(name) instanceof boolean[];
+			default:
+				if(records.getDoubleColumn(name) != null && records.getDoubleColumn(otherName) != null) return true;
+				return (op == EQ || op == NE) && records.getColumn(name) instanceof String[] && records.getColumn(otherName) instanceof String[];
+			}
+		}
+
+		/**
+		 * Clear the records for which the comparison is false
+		 */
+		private void filter(RecordBatch records, BitSet result) throws Exception {
+
+			switch (kind) {
+			
+			case NUMBER_TERM: {
+				double[] values = records.getDoubleColumn(name);
+				for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+					if(!compare(values[i], op, numberValue)) result.clear(i);
+				}
+				return;
+			}
+			
+			case STRING_TERM: {
+				String[] values = (String[]) records.getColumn(name);
+				boolean equal = (op == EQ);
+				for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+					if(stringValue.equals(values[i]) != equal) result.clear(i);
+				}
+				return;
+			}
+			
+			case BOOLEAN_TERM: {
+				boolean[] values = (boolean[]) records.getColumn(name);
+				boolean equal = (op == EQ);
+				for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+					if((values[i] == booleanValue) != equal) result.clear(i);
+				}
+				return;
+			}
+			
+			case MATCHES_TERM: {
+				String[] values = (String[]) records.getColumn(name);
+				Matcher matcher = pattern.matcher("");
+				for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+					if(values[i] == null) throw new Exception("Variable " + name + " is null for record " + i);
+					if(!matcher.reset(values[i]).matches()) result.clear(i);
+				}
+				return;
+			}
+			
+			default: {
+				double[] values = records.getDoubleColumn(name);
+				if(values != null) {
+					double[] others = records.getDoubleColumn(otherName);
+					for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+						if(!compare(values[i], op, others[i])) result.clear(i);
+					}
+					return;
+				}
+				String[] strings = (String[]) records.getColumn(name);
+				String[] others = (String[]) records.getColumn(otherName);
+				boolean equal = (op == EQ);
+				for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+					boolean same = (strings[i] == null) ? others[i] == null : strings[i].equals(others[i]);
+					if(same != equal) result.clear(i);
+				}
+			}
+			
+			}
+			
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.batch;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records held as columns, one array per variable, for BatchEvaluator.  Every column has one value per record.  Numeric columns are double[],
+ * long[], or int[], and string columns are String[]; these are the columns simple comparisons run over directly.  Other values go in Object[] 
+ * columns, which are passed to the expressions record by record.
+ */
+public class RecordBatch {
+
+	private final int size;
+	private final LinkedHashMap<String, Object> columns = new LinkedHashMap<String, Object>();
+	private final HashMap<String, double[]> doubleColumns = new HashMap<String, double[]>();
+
+	public RecordBatch(int size) {
+		if(size < 0) throw new IllegalArgumentException("size must not be negative");
+		this.size = size;
+	}
+
+	/**
+	 * Returns the number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	public void addColumn(String name, double[] values) {
+		put(name, values, values.length);
+	}
+
+	public void addColumn(String name, long[] values) {
+		put(name, values, values.length);
+	}
+
+	public void addColumn(String name, int[] values) {
+		put(name, values, values.length);
+	}
+
+	public void addColumn(String name, boolean[] values) {
+		put(name, values, values.length);
+	}
+
+	public void addColumn(String name, String[] values) {
+		put(name, values, values.length);
+	}
+
+	public void addColumn(String name, Object[] values) {
+		put(name, values, values.length);
+	}
+
+	public Set<String> getColumnNames() {
+		return columns.keySet();
+	}
+
+	public boolean hasColumn(String name) {
+		return columns.containsKey(name);
+	}
+
+	/**
+	 * Returns the column array as it was added
+	 */
+	public Object getColumn(String name) {
+		return columns.get(name);
+	}
+
+	/**
+	 * Returns a numeric column as a double[], converting long[] and int[] columns once, or null if the column isn't numeric
+	 */
+	public double[] getDoubleColumn(String name) {
+
+		Object column = columns.get(name);
+		if(column instanceof double[]) return (double[]) column;
+		if(!(column instanceof long[]) && !(column instanceof int[])) return null;
+		
+		double[] values = doubleColumns.get(name);
+		if(values != null) return values;
+		values = new double[size];
+		if(column instanceof long[]) {
+			long[] longs = (long[]) column;
+			for (int i = 0; i < size; i++) values[i] = longs[i];
+		}
+		else {
+			int[] ints = (int[]) column;
+			for (int i = 0; i < size; i++) values[i] = ints[i];
+		}
+		doubleColumns.put(name, values);
+		return values;
+		
+	}
+
+	/**
+	 * Returns the value of a variable for one record, boxed as it would be in a variables map
+	 */
+	public Object getValue(String name, int record) {
+
+		Object column = columns.get(name);
+		if(column instanceof double[]) return ((double[]) column)[record];
+		if(column instanceof long[]) return ((long[]) column)[record];
+		if(column instanceof int[]) return ((int[]) column)[record];
+		if(column instanceof boolean[]) return ((boolean[]) column)[record];
+		if(column instanceof Object[]) return ((Object[]) column)[record];
+		return null;
+		
+	}
+
+	/**
+	 * Puts the values of the named variables, or of every column if names is null, for one record into the map
+	 */
+	public void putRecord(Map<String, Object> variables, int record, String[] names) {
+		if(names == null) {
+			for (String name : columns.keySet()) variables.put(name, getValue(name, record));
+			return;
+		}
+		for (int i = 0; i < names.length; i++) {
+			if(columns.containsKey(names[i])) variables.put(names[i], getValue(names[i], record));
+		}
+	}
+
+	private void put(String name, Object values, int length) {
+		if(length != size) throw new IllegalArgumentException("Column " + name + " has " + length + " values for " + size + " records");
+		columns.put(name, values);
+		doubleColumns.remove(name);
+	}
+
+}
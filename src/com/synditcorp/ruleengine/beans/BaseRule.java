@@ -35,6 +35,7 @@ public class BaseRule implements Rule {
 	private String failReason = null;
 	private String passAction = null;
 	private String failAction = null;
+	private String timeoutOutcome = null;
 	
 
 	public BaseRule() {
@@ -212,6 +213,17 @@ public class BaseRule implements Rule {
 		this.ruleTags = ruleTags;
 	}
 
+	/**
+	 * "pass", "fail", or "abort" (the default), what the rule evaluates to when it runs out of time.  See RuleEvaluator.evaluateRule with a timeout.
+	 */
+	public String getTimeoutOutcome() {
+		return timeoutOutcome;
+	}
+
+	public void setTimeoutOutcome(String timeoutOutcome) {
+		this.timeoutOutcome = timeoutOutcome;
+	}
+
 	
 	
 }
@@ -11,10 +11,16 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 
 package com.synditcorp.ruleengine.beans;
 
+import java.util.ArrayList;
+
 public class CalcRule extends BaseRule {
 
 	private String expression = null;
 	private String handlerClass = null;
+	private ArrayList<String> resultCacheKeys = null;
+	private Long resultCacheTtl = null;
+	private Boolean pure = null;
+	private Long timeout = null;
 
 	public CalcRule() {
 		
@@ -36,5 +42,39 @@ public class CalcRule extends BaseRule {
 		this.handlerClass = handlerClass;
 	}
 
+	public ArrayList<String> getResultCacheKeys() {
+		return resultCacheKeys;
+	}
+
+	public void setResultCacheKeys(ArrayList<String> resultCacheKeys) {
+		this.resultCacheKeys = resultCacheKeys;
+	}
+
+	public Long getResultCacheTtl() {
+		return resultCacheTtl;
+	}
+
+	public void setResultCacheTtl(Long resultCacheTtl) {
+		this.resultCacheTtl = resultCacheTtl;
+	}
+
+	public Boolean getPure() {
+		return pure;
+	}
+
+	public void setPure(Boolean pure) {
+		this.pure = pure;
+	}
+
+	/**
+	 * The milliseconds the rule's handler is given before the rule times out
+	 */
+	public Long getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(Long timeout) {
+		this.timeout = timeout;
+	}
 
 }
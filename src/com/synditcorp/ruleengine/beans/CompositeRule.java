@@ -16,111 +16,204 @@ import java.util.ArrayList;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 
+/**
+ * The composite rule lists are kept as int arrays, which take a fraction of the memory of lists of Integers.  A list that isn't set stays null, and
+ * an empty list is the shared EMPTY array.  The list getters and setters are kept for the parser and existing callers; each get builds a new 
+ * list, and a set rejects null rule numbers.  The engine uses the array getters, which don't copy.
+ */
 public class CompositeRule extends BaseRule {
 
-	private ArrayList<Integer> compositeRules;
-	private ArrayList<Integer> compositePassKeys;
-	private ArrayList<Integer> compositeFailKeys;
-	private ArrayList<Integer> compositePassScore;
-	private ArrayList<Integer> compositeFailScore;
-	private ArrayList<Integer> compositePassFlags;
-	private ArrayList<Integer> compositeFailFlags;
-	private ArrayList<Integer> compositePassReasons;
-	private ArrayList<Integer> compositeFailReasons;
-	private ArrayList<Integer> compositePassActions;
-	private ArrayList<Integer> compositeFailActions;
+	public static final int[] EMPTY = new int[0];
+	
+	private int[] compositeRules;
+	private int[] compositePassKeys;
+	private int[] compositeFailKeys;
+	private int[] compositePassScore;
+	private int[] compositeFailScore;
+	private int[] compositePassFlags;
+	private int[] compositeFailFlags;
+	private int[] compositePassReasons;
+	private int[] compositeFailReasons;
+	private int[] compositePassActions;
+	private int[] compositeFailActions;
+	private Boolean parallel;
 
 	
+	/**
+	 * Returns "true" if the handlers of the rule's calc rules are started at once, rather than one after the other (see RuleEvaluator)
+	 */
+	public Boolean getParallel() {
+		return parallel;
+	}
+
+	public void setParallel(Boolean parallel) {
+		this.parallel = parallel;
+	}
+
 	public CompositeRule() {
 		
 	}
 
 	public ArrayList<Integer> getCompositePassActions() {
-		return compositePassActions;
+		return toList(compositePassActions);
 	}
 
 	public void setCompositePassActions(ArrayList<Integer> compositePassActions) {
-		this.compositePassActions = compositePassActions;
+		this.compositePassActions = toArray(compositePassActions, "compositePassActions");
+	}
+
+	@JsonIgnore
+	public int[] getCompositePassActionsArray() {
+		return compositePassActions;
 	}
 
 	public ArrayList<Integer> getCompositeFailActions() {
-		return compositeFailActions;
+		return toList(compositeFailActions);
 	}
 
 	public void setCompositeFailActions(ArrayList<Integer> compositeFailActions) {
-		this.compositeFailActions = compositeFailActions;
+		this.compositeFailActions = toArray(compositeFailActions, "compositeFailActions");
+	}
+
+	@JsonIgnore
+	public int[] getCompositeFailActionsArray() {
+		return compositeFailActions;
 	}
 
 	public ArrayList<Integer> getCompositePassFlags() {
-		return compositePassFlags;
+		return toList(compositePassFlags);
 	}
 
 	public void setCompositePassFlags(ArrayList<Integer> compositePassFlags) {
-		this.compositePassFlags = compositePassFlags;
+		this.compositePassFlags = toArray(compositePassFlags, "compositePassFlags");
+	}
+
+	@JsonIgnore
+	public int[] getCompositePassFlagsArray() {
+		return compositePassFlags;
 	}
 
 	public ArrayList<Integer> getCompositeFailFlags() {
-		return compositeFailFlags;
+		return toList(compositeFailFlags);
 	}
 
 	public void setCompositeFailFlags(ArrayList<Integer> compositeFailFlags) {
-		this.compositeFailFlags = compositeFailFlags;
+		this.compositeFailFlags = toArray(compositeFailFlags, "compositeFailFlags");
+	}
+
+	@JsonIgnore
+	public int[] getCompositeFailFlagsArray() {
+		return compositeFailFlags;
 	}
 
 	public ArrayList<Integer> getCompositePassReasons() {
-		return compositePassReasons;
+		return toList(compositePassReasons);
 	}
 
 	public void setCompositePassReasons(ArrayList<Integer> compositePassReasons) {
-		this.compositePassReasons = compositePassReasons;
+		this.compositePassReasons = toArray(compositePassReasons, "compositePassReasons");
+	}
+
+	@JsonIgnore
+	public int[] getCompositePassReasonsArray() {
+		return compositePassReasons;
 	}
 
 	public ArrayList<Integer> getCompositeFailReasons() {
-		return compositeFailReasons;
+		return toList(compositeFailReasons);
 	}
 
 	public void setCompositeFailReasons(ArrayList<Integer> compositeFailReasons) {
-		this.compositeFailReasons = compositeFailReasons;
+		this.compositeFailReasons = toArray(compositeFailReasons, "compositeFailReasons");
+	}
+
+	@JsonIgnore
+	public int[] getCompositeFailReasonsArray() {
+		return compositeFailReasons;
 	}
 
 	public ArrayList<Integer> getCompositeRules() {
-		return compositeRules;
+		return toList(compositeRules);
 	}
 
 	public void setCompositeRules(ArrayList<Integer> compositeRules) {
-		this.compositeRules = compositeRules;
+		this.compositeRules = toArray(compositeRules, "compositeRules");
+	}
+
+	@JsonIgnore
+	public int[] getCompositeRulesArray() {
+		return compositeRules;
 	}
 
 	public ArrayList<Integer> getCompositePassKeys() {
-		return compositePassKeys;
+		return toList(compositePassKeys);
 	}
 
 	public void setCompositePassKeys(ArrayList<Integer> compositePassKeys) {
-		this.compositePassKeys = compositePassKeys;
+		this.compositePassKeys = toArray(compositePassKeys, "compositePassKeys");
+	}
+
+	@JsonIgnore
+	public int[] getCompositePassKeysArray() {
+		return compositePassKeys;
 	}
 
 	public ArrayList<Integer> getCompositeFailKeys() {
-		return compositeFailKeys;
+		return toList(compositeFailKeys);
 	}
 
 	public void setCompositeFailKeys(ArrayList<Integer> compositeFailKeys) {
-		this.compositeFailKeys = compositeFailKeys;
+		this.compositeFailKeys = toArray(compositeFailKeys, "compositeFailKeys");
+	}
+
+	@JsonIgnore
+	public int[] getCompositeFailKeysArray() {
+		return compositeFailKeys;
 	}
 
 	public ArrayList<Integer> getCompositePassScore() {
-		return compositePassScore;
+		return toList(compositePassScore);
 	}
 
 	public void setCompositePassScore(ArrayList<Integer> compositePassScore) {
-		this.compositePassScore = compositePassScore;
+		this.compositePassScore = toArray(compositePassScore, "compositePassScore");
+	}
+
+	@JsonIgnore
+	public int[] getCompositePassScoreArray() {
+		return compositePassScore;
 	}
 
 	public ArrayList<Integer> getCompositeFailScore() {
-		return compositeFailScore;
+		return toList(compositeFailScore);
 	}
 
 	public void setCompositeFailScore(ArrayList<Integer> compositeFailScore) {
-		this.compositeFailScore = compositeFailScore;
+		this.compositeFailScore = toArray(compositeFailScore, "compositeFailScore");
+	}
+
+	@JsonIgnore
+	public int[] getCompositeFailScoreArray() {
+		return compositeFailScore;
+	}
+
+	private int[] toArray(ArrayList<Integer> list, String field) {
+		if(list == null) return null;
+		if(list.isEmpty()) return EMPTY;
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			Integer ruleNumber = list.get(i);
+			if(ruleNumber == null) throw new IllegalArgumentException("Rule number " + getRuleNumber() + " " + field + " has a null rule number.");
+			array[i] = ruleNumber.intValue();
+		}
+		return array;
+	}
+
+	private static ArrayList<Integer> toList(int[] array) {
+		if(array == null) return null;
+		ArrayList<Integer> list = new ArrayList<Integer>(array.length);
+		for (int i = 0; i < array.length; i++) list.add(array[i]);
+		return list;
 	}
 
 }
@@ -0,0 +1,112 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.synditcorp.ruleengine.interfaces.RuleResultCache;
+
+/**
+ * An in-memory RuleResultCache.  Results expire after their time to live, and once the cache holds maxSize results the least recently used
+ * result is evicted to make room for a new one.
+ */
+public class LocalRuleResultCache implements RuleResultCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<String, CachedResult> entries;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	private static class CachedResult {
+
+		private final Boolean result;
+		private final long expires;
+
+		private CachedResult(Boolean result, long expires) {
+			this.result = result;
+			this.expires = expires;
+		}
+
+	}
+
+	public LocalRuleResultCache(int maxSize) {
+
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				if(size() <= LocalRuleResultCache.this.maxSize) return false;
+				evictions++;
+				return true;
+			}
+		};
+
+	}
+
+	@Override
+	public synchronized Boolean get(String key) {
+
+		CachedResult entry = entries.get(key);
+		if(entry != null && entry.expires <= System.currentTimeMillis()) {
+			entries.remove(key);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.result;
+
+	}
+
+	@Override
+	public synchronized void put(String key, Boolean result, long ttlMillis) {
+		entries.put(key, new CachedResult(result, System.currentTimeMillis() + ttlMillis));
+	}
+
+	@Override
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	@Override
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the number of results evicted to stay within maxSize.  Expired results are not counted.
+	 */
+	@Override
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+}
@@ -0,0 +1,355 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.cache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+import com.synditcorp.ruleengine.interfaces.RuleResultCache;
+
+/**
+ * A RuleResultCache kept off the heap in a memory-mapped file, so it adds nothing for the garbage collector to trace and its results are still 
+ * there when the process restarts and opens the same file.
+ * <p>
+ * The file is a header followed by fixed-size slots grouped into buckets of WAYS slots.  A key is stored as two 64 bit hashes of the key (which
+ * holds the document ID and version, rule number, and input values) and goes in the bucket its hash picks.  When a bucket is full, a clock hand 
+ * sweeps it: a slot read since the hand last passed gets a second chance, otherwise it is replaced.  Reads are optimistic and take no lock unless
+ * a write to the same bucket stripe happened during the read.  Expiry times are wall clock times so they hold across restarts.
+ * <p>
+ * Each slot also holds a checksum of its hashes, expiry time, and result.  A slot whose checksum doesn't match, like one half written when the 
+ * process stopped or half flushed by the operating system, is treated as empty.
+ * <p>
+ * If the file doesn't exist, or was made with a different slot count or format, it is (re)initialized empty.  The file is locked while open, so
+ * a second process, or a second instance in this process, can't open it.
+ */
+public class MappedRuleResultCache implements RuleResultCache {
+
+	public static final int WAYS = 8;
+	
+	private static final long MAGIC = 0x52554c4543414348L; // "RULECACH"
+	private static final int FORMAT = 2;
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_SIZE = 32;
+	
+	private static final int HASH1 = 0;
+	private static final int HASH2 = 8;
+	private static final int EXPIRES = 16;
+	private static final int CHECKSUM = 24;
+	private static final int STATE = 28;
+	private static final int REFERENCED = 29;
+	
+	private static final int EMPTY = 0;
+	private static final int FALSE = 1;
+	private static final int TRUE = 2;
+	
+	private final RandomAccessFile file;
+	private final FileLock fileLock;
+	private final MappedByteBuffer buffer;
+	private final int buckets;
+	private final StampedLock[] locks;
+	private final byte[] hands;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final boolean reattached;
+
+	/**
+	 * Open or create the cache file
+	 * @param fileName the cache file
+	 * @param maxSize the number of results the cache can hold, rounded up to a power of two of at least WAYS
+	 * @throws Exception if the file is open in another process or by another instance
+	 */
+	public MappedRuleResultCache(String fileName, int maxSize) throws Exception {
+
+		int bucketCount = 1;
+		while (bucketCount * WAYS < maxSize) {
+			bucketCount <<= 1;
+			if(bucketCount > (Integer.MAX_VALUE - HEADER_SIZE) / (WAYS * SLOT_SIZE)) throw new Exception("maxSize " + maxSize + " is too large for one cache file.");
+		}
+		this.buckets = bucketCount;
+		
+		int stripes = Math.min(buckets, 1024);
+		this.locks = new StampedLock[stripes];
+		for (int i = 0; i < stripes; i++) locks[i] = new StampedLock();
+		this.hands = new byte[buckets];
+		
+		long length = HEADER_SIZE + (long) buckets * WAYS * SLOT_SIZE;
+		this.file = new RandomAccessFile(fileName, "rw");
+		try {
+			this.fileLock = file.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			file.close();
+			throw new Exception("Cache file " + fileName + " is already open in this process.");
+		}
+		if(fileLock == null) {
+			file.close();
+			throw new Exception("Cache file " + fileName + " is open in another process.");
+		}
+		boolean matches = file.length() == length;
+		file.setLength(length);
+		this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		
+		matches = matches && buffer.getLong(0) == MAGIC && buffer.getInt(8) == FORMAT && buffer.getInt(12) == SLOT_SIZE 
+				&& buffer.getInt(16) == WAYS && buffer.getInt(20) == buckets;
+		this.reattached = matches;
+		if(!matches) initialize();
+		
+	}
+
+	/**
+	 * Returns "true" if the file already held a cache of this size when opened, so its unexpired results were kept
+	 */
+	public boolean isReattached() {
+		return reattached;
+	}
+
+	@Override
+	public Boolean get(String key) {
+
+		long hash1 = hash1(key);
+		long hash2 = hash2(key);
+		int bucket = bucket(hash1);
+		StampedLock lock = lock(bucket);
+		long now = System.currentTimeMillis();
+		
+		long stamp = lock.tryOptimisticRead();
+		int slot = find(bucket, hash1, hash2, now);
+		int state = (slot < 0) ? EMPTY : buffer.get(slot + STATE);
+		if(lock.validate(stamp)) {
+			if(slot >= 0) reference(slot);
+		}
+		else {
+			stamp = lock.readLock();
+			try {
+				slot = find(bucket, hash1, hash2, now);
+				state = (slot < 0) ? EMPTY : buffer.get(slot + STATE);
+				if(slot >= 0) reference(slot);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		
+		if(state == EMPTY) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return state == TRUE;
+		
+	}
+
+	@Override
+	public void put(String key, Boolean result, long ttlMillis) {
+
+		if(result == null) return;
+		
+		long hash1 = hash1(key);
+		long hash2 = hash2(key);
+		int bucket = bucket(hash1);
+		StampedLock lock = lock(bucket);
+		long now = System.currentTimeMillis();
+		
+		long stamp = lock.writeLock();
+		try {
+			int slot = choose(bucket, hash1, hash2, now);
+			int state = result ? TRUE : FALSE;
+			buffer.put(slot + STATE, (byte) EMPTY);
+			buffer.putLong(slot + HASH1, hash1);
+			buffer.putLong(slot + HASH2, hash2);
+			buffer.putLong(slot + EXPIRES, now + ttlMillis);
+			buffer.putInt(slot + CHECKSUM, checksum(hash1, hash2, now + ttlMillis, state));
+			buffer.put(slot + REFERENCED, (byte) 0);
+			buffer.put(slot + STATE, (byte) state);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+		
+	}
+
+	@Override
+	public void clear() {
+
+		long[] stamps = new long[locks.length];
+		for (int i = 0; i < locks.length; i++) stamps[i] = locks[i].writeLock();
+		try {
+			for (int slot = 0; slot < buckets * WAYS; slot++) buffer.put(HEADER_SIZE + slot * SLOT_SIZE + STATE, (byte) EMPTY);
+		} finally {
+			for (int i = 0; i < locks.length; i++) locks[i].unlockWrite(stamps[i]);
+		}
+		
+	}
+
+	/**
+	 * Returns the number of unexpired results.  This reads every slot.
+	 */
+	@Override
+	public int size() {
+		long now = System.currentTimeMillis();
+		int size = 0;
+		for (int slot = HEADER_SIZE; slot < HEADER_SIZE + buckets * WAYS * SLOT_SIZE; slot += SLOT_SIZE) {
+			if(buffer.get(slot + STATE) != EMPTY && buffer.getLong(slot + EXPIRES) > now && isIntact(slot)) size++;
+		}
+		return size;
+	}
+
+	public int getMaxSize() {
+		return buckets * WAYS;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of unexpired results replaced to make room for a new one
+	 */
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * Write the cached results to the file now rather than when the operating system gets to it
+	 */
+	public void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Write the cached results to the file, unlock it, and close it.  The cache must not be used after closing.
+	 */
+	public void close() throws IOException {
+		buffer.force();
+		fileLock.release();
+		file.close();
+	}
+
+	/**
+	 * Returns the unexpired, intact slot holding the key, or -1 if there is none.  This only reads, so it is safe under an optimistic read.
+	 */
+	private int find(int bucket, long hash1, long hash2, long now) {
+
+		int slot = HEADER_SIZE + bucket * WAYS * SLOT_SIZE;
+		for (int way = 0; way < WAYS; way++, slot += SLOT_SIZE) {
+			if(buffer.get(slot + STATE) == EMPTY) continue;
+			if(buffer.getLong(slot + HASH1) != hash1 || buffer.getLong(slot + HASH2) != hash2) continue;
+			if(buffer.getLong(slot + EXPIRES) <= now || !isIntact(slot)) return -1;
+			return slot;
+		}
+		return -1;
+		
+	}
+
+	/**
+	 * Give the slot a second chance at the next sweep.  After an optimistic read this is written without the lock, so a put to the same bucket
+	 * may overwrite it or replace the slot first; the bit is only a hint, so the cost is a result evicted early or kept one sweep longer.
+	 */
+	private void reference(int slot) {
+		if(buffer.get(slot + REFERENCED) == 0) buffer.put(slot + REFERENCED, (byte) 1);
+	}
+
+	private boolean isIntact(int slot) {
+		return buffer.getInt(slot + CHECKSUM) == checksum(buffer.getLong(slot + HASH1), buffer.getLong(slot + HASH2), buffer.getLong(slot + EXPIRES), 
+				buffer.get(slot + STATE));
+	}
+
+	private static int checksum(long hash1, long hash2, long expires, int state) {
+		long sum = hash1 * 0x9e3779b97f4a7c15L + hash2;
+		sum = (sum ^ (sum >>> 29)) * 0xbf58476d1ce4e5b9L + expires;
+		sum = (sum ^ (sum >>> 32)) * 0x94d049bb133111ebL + state;
+		return (int) (sum ^ (sum >>> 32));
+	}
+
+	/**
+	 * Returns the slot to write the key to: the slot already holding it, an empty or expired slot, or the slot the clock hand picks.  Called with
+	 * the bucket's write lock held.
+	 */
+	private int choose(int bucket, long hash1, long hash2, long now) {
+
+		int first = HEADER_SIZE + bucket * WAYS * SLOT_SIZE;
+		int free = -1;
+		for (int way = 0, slot = first; way < WAYS; way++, slot += SLOT_SIZE) {
+			int state = buffer.get(slot + STATE);
+			if(state != EMPTY && buffer.getLong(slot + HASH1) == hash1 && buffer.getLong(slot + HASH2) == hash2) return slot;
+			if(free < 0 && (state == EMPTY || buffer.getLong(slot + EXPIRES) <= now || !isIntact(slot))) free = slot;
+		}
+		if(free >= 0) return free;
+		
+		int hand = hands[bucket];
+		while (true) {
+			int slot = first + hand * SLOT_SIZE;
+			hand = (hand + 1) % WAYS;
+			if(buffer.get(slot + REFERENCED) != 0) {
+				buffer.put(slot + REFERENCED, (byte) 0);
+				continue;
+			}
+			hands[bucket] = (byte) hand;
+			evictions.increment();
+			return slot;
+		}
+		
+	}
+
+	private void initialize() {
+		for (int i = 0; i < buffer.capacity(); i += 4) buffer.putInt(i, 0);
+		buffer.putLong(0, MAGIC);
+		buffer.putInt(8, FORMAT);
+		buffer.putInt(12, SLOT_SIZE);
+		buffer.putInt(16, WAYS);
+		buffer.putInt(20, buckets);
+	}
+
+	private int bucket(long hash1) {
+		return (int) (hash1 ^ (hash1 >>> 32)) & (buckets - 1);
+	}
+
+	private StampedLock lock(int bucket) {
+		return locks[bucket & (locks.length - 1)];
+	}
+
+	/**
+	 * 64 bit FNV-1a of the key's characters
+	 */
+	private static long hash1(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * A second, independent 64 bit hash of the key, so two keys are only confused if both hashes collide
+	 */
+	private static long hash2(String key) {
+		long hash = 0x9e3779b97f4a7c15L;
+		for (int i = 0; i < key.length(); i++) hash = (hash + key.charAt(i)) * 0xc2b2ae3d27d4eb4fL;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}
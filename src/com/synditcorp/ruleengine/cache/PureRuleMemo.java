@@ -0,0 +1,227 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.cache;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A memo table for calc rules marked "pure", i.e. rules whose result depends only on the variables their expression reads.  Results are keyed by
+ * the rule number and the values of exactly those variables, so a result is reused whenever the same values come around again, across requests
+ * and RuleEvaluator instances.  The table holds at most about maxSize results; once full, results not used lately are dropped to make room, with
+ * a CLOCK sweep like RegexHandler's, so a hit takes no lock and only sets a flag on the result.
+ * A new table is made each time a document is loaded, so results never outlive the rules that produced them; a reload carries over the results of
+ * the rules that did not change (see copyResults).
+ * Keys hold the values themselves only when they can't change: strings, boxed primitives, BigDecimal, BigInteger, and enums.  A Date is copied.
+ * A rule is not memoized for values of any other type, since a caller could change such an object after its result was kept.
+ */
+public class PureRuleMemo {
+
+	private static final Object MISSING = new Object();
+
+	private final int maxSize;
+	private final TreeMap<Integer, String[]> inputs = new TreeMap<Integer, String[]>();
+	private final ConcurrentHashMap<Key, Result> results = new ConcurrentHashMap<Key, Result>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private static class Key {
+
+		private final int ruleNumber;
+		private final Object[] values;
+		private final int hash;
+
+		private Key(int ruleNumber, Object[] values) {
+			this.ruleNumber = ruleNumber;
+			this.values = values;
+			this.hash = 31 * ruleNumber + Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) return false;
+			Key key = (Key) obj;
+			return ruleNumber == key.ruleNumber && hash == key.hash && Arrays.equals(values, key.values);
+		}
+
+	}
+
+	private static class Result {
+
+		private final Boolean result;
+		private volatile boolean referenced;
+
+		private Result(Boolean result, boolean referenced) {
+			this.result = result;
+			this.referenced = referenced;
+		}
+
+	}
+
+	public PureRuleMemo(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Adds a pure rule and the names of the variables its expression reads.  This is done when the rules are loaded.
+	 */
+	public void addRule(Integer ruleNumber, String[] variableNames) {
+		inputs.put(ruleNumber, variableNames);
+	}
+
+	/**
+	 * Returns the names of the variables the rule's expression reads, or null if the rule is not memoized
+	 */
+	public String[] getVariableNames(Integer ruleNumber) {
+		return inputs.get(ruleNumber);
+	}
+
+	/**
+	 * Copies the results of the given rules from the table of a previous load of the document, up to maxSize, the ones used since the last sweep
+	 * first.  Only results of rules added to this table are copied.
+	 */
+	public void copyResults(PureRuleMemo previous, Set<Integer> ruleNumbers) {
+		if(maxSize <= 0) return;
+		for (int pass = 0; pass < 2; pass++) {
+			for (Map.Entry<Key, Result> entry : previous.results.entrySet()) {
+				if(results.size() >= maxSize) return;
+				Integer ruleNumber = entry.getKey().ruleNumber;
+				boolean referenced = entry.getValue().referenced;
+				if(referenced != (pass == 0) || !ruleNumbers.contains(ruleNumber) || !inputs.containsKey(ruleNumber)) continue;
+				results.put(entry.getKey(), new Result(entry.getValue().result, referenced));
+			}
+		}
+	}
+
+	/**
+	 * Returns "true" if the rule's results are memoized
+	 */
+	public boolean isPure(Integer ruleNumber) {
+		return maxSize > 0 && inputs.containsKey(ruleNumber);
+	}
+
+	/**
+	 * Returns the memoized result for the rule and the current values of its variables, or null if there is none
+	 */
+	public Boolean get(Integer ruleNumber, Map<String, Object> variables) {
+		Key key = getKey(ruleNumber, variables);
+		Result result = (key == null) ? null : results.get(key);
+		if(result == null) {
+			misses.increment();
+			return null;
+		}
+		if(!result.referenced) result.referenced = true;
+		hits.increment();
+		return result.result;
+	}
+
+	public void put(Integer ruleNumber, Map<String, Object> variables, Boolean result) {
+
+		if(result == null || maxSize <= 0) return;
+		Key key = getKey(ruleNumber, variables);
+		if(key == null) return;
+		if(results.size() >= maxSize) {
+			synchronized (this) {
+				evict();
+			}
+		}
+		results.put(key, new Result(result, false));
+
+	}
+
+	public void clear() {
+		results.clear();
+	}
+
+	public int size() {
+		return results.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of results dropped to stay within maxSize
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * CLOCK sweep, called with the table locked so only one thread sweeps: each result used since the last sweep is given a second chance, the 
+	 * others are removed until there is room for one more.  Threads adding results at the same time may take the table a little over maxSize.
+	 */
+	private void evict() {
+
+		int target = maxSize - 1;
+		for (int pass = 0; pass < 2 && results.size() > target; pass++) {
+			Iterator<Result> entries = results.values().iterator();
+			while (entries.hasNext() && results.size() > target) {
+				Result result = entries.next();
+				if(result.referenced) result.referenced = false;
+				else {
+					entries.remove();
+					evictions.increment();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Returns the key for the rule and the values of its variables, or null if a value can't safely be kept in a key
+	 */
+	private Key getKey(Integer ruleNumber, Map<String, Object> variables) {
+
+		String[] names = inputs.get(ruleNumber);
+		Object[] values = new Object[names.length];
+		for (int i = 0; i < names.length; i++) {
+			Object value = variables.get(names[i]);
+			if(value == null && !variables.containsKey(names[i])) value = MISSING;
+			else if(value != null && value.getClass() == Date.class) value = new Date(((Date) value).getTime());
+			else if(value != null && !isImmutable(value)) return null;
+			values[i] = value;
+		}
+		return new Key(ruleNumber, values);
+
+	}
+
+	private static boolean isImmutable(Object value) {
+		return value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Boolean 
+				|| value instanceof Float || value instanceof Short || value instanceof Byte || value instanceof Character || value instanceof BigDecimal 
+				|| value instanceof BigInteger || value instanceof Enum;
+	}
+
+}
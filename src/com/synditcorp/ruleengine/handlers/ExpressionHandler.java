@@ -11,12 +11,37 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 
 package com.synditcorp.ruleengine.handlers;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.mvel2.MVEL;
+import org.mvel2.ParserContext;
 
+/**
+ * Runs rule expressions with MVEL.  Compiled expressions are cached by their text and shared by every rule definition using the same expression.
+ * Definitions count a reference to each expression they use (see addReference), and an expression is removed from the cache, with the literal
+ * patterns only it used, when the last reference is released.
+ */
 public class ExpressionHandler {
 
+	/**
+	 * The rough number of bytes per character of expression text held by a compiled expression, see getEstimatedSize
+	 */
+	public static final int ESTIMATED_BYTES_PER_CHAR = 64;
+
+	private static final ConcurrentHashMap<String, Serializable> compiledExpressions = new ConcurrentHashMap<String, Serializable>();
+	private static final Set<String> compileOnFirstUse = ConcurrentHashMap.newKeySet();
+	private static final HashMap<String, Reference> references = new HashMap<String, Reference>();
+
+	private static class Reference {
+		private int count;
+		private ArrayList<String> regexes;
+	}
+
 	/**
 	 * Run expressions where a Boolean is returned, i.e. expressions that have '==', '>', '<', 'matches', 'contains', etc. 
 	 */
@@ -43,10 +68,140 @@ public class ExpressionHandler {
 
 	}
 	
+	/**
+	 * Compile an expression before it is run.  Literal regular expressions passed to matches(...) are precompiled and the expression is rewritten to
+	 * use them (see RegexHandler).  Expressions that are not compiled are interpreted at runtime.  The compiled form is only kept while the 
+	 * expression is referenced (see addReference), so an expression released while it was being compiled isn't left behind.
+	 * @throws Exception if the expression has an invalid regular expression literal
+	 */
+	public static void compileExpression(String expression) throws Exception {
+
+		if(expression == null || compiledExpressions.containsKey(expression)) return;
+
+		ArrayList<String> regexes = new ArrayList<String>();
+		String rewritten = RegexHandler.rewriteMatches(expression, regexes);
+
+		ParserContext context = new ParserContext();
+		context.addImport(RegexHandler.MATCHES_FUNCTION, RegexHandler.getMatchesMethod());
+		Serializable compiled;
+		try {
+			compiled = MVEL.compileExpression(rewritten, context);
+		} catch (Exception e) {
+			// leave it to the interpreter, which reports the error when the rule is evaluated
+			return;
+		}
+
+		synchronized (references) {
+			Reference reference = references.get(expression);
+			if(reference == null) return;
+			if(reference.regexes == null) {
+				reference.regexes = regexes;
+				RegexHandler.addReferences(regexes);
+			}
+			compiledExpressions.put(expression, compiled);
+		}
+
+	}
+
+	/**
+	 * Count a reference to an expression from a loaded rule definition.  Add the reference before compiling the expression, so the literal
+	 * patterns it compiles are counted too.
+	 */
+	public static void addReference(String expression) {
+		if(expression == null) return;
+		synchronized (references) {
+			Reference reference = references.get(expression);
+			if(reference == null) {
+				reference = new Reference();
+				references.put(expression, reference);
+			}
+			reference.count++;
+		}
+	}
+
+	/**
+	 * Release a reference counted by addReference.  When the last one is released, the compiled expression and the literal patterns no other
+	 * compiled expression uses are removed; the expression is interpreted if it is run again before being compiled again.
+	 */
+	public static void releaseReference(String expression) {
+		if(expression == null) return;
+		synchronized (references) {
+			Reference reference = references.get(expression);
+			if(reference == null || --reference.count > 0) return;
+			references.remove(expression);
+			compiledExpressions.remove(expression);
+			compileOnFirstUse.remove(expression);
+			if(reference.regexes != null) RegexHandler.releaseReferences(reference.regexes);
+		}
+	}
+
+	/**
+	 * Returns the number of expressions compiled now
+	 */
+	public static int getCompiledCount() {
+		return compiledExpressions.size();
+	}
+
+	/**
+	 * Returns a rough estimate of the bytes an expression holds once compiled, its MVEL node tree and the patterns of its regular expression 
+	 * literals, as ESTIMATED_BYTES_PER_CHAR bytes per character of the expression.
+	 */
+	public static long getEstimatedSize(String expression) {
+		return (expression == null) ? 0 : (long) expression.length() * ESTIMATED_BYTES_PER_CHAR;
+	}
+
+	/**
+	 * Leave an expression to be compiled the first time it is run, rather than when the rules are loaded.  Check its regular expression literals
+	 * with RegexHandler.rewriteMatches first, or an invalid one is only reported when the expression is run.
+	 */
+	public static void compileOnFirstUse(String expression) {
+		if(expression == null || compiledExpressions.containsKey(expression)) return;
+		compileOnFirstUse.add(expression);
+	}
+
+	/**
+	 * Returns "true" if the expression has been compiled.  Expressions that fail to compile are never compiled; they are interpreted.
+	 */
+	public static boolean isCompiled(String expression) {
+		return expression != null && compiledExpressions.containsKey(expression);
+	}
+
+	/**
+	 * Returns the names of the variables an expression reads, or null if they can't be worked out, e.g. when the expression declares its own
+	 * variables or functions.
+	 * @throws Exception if the expression has an invalid regular expression literal
+	 */
+	public static String[] getInputs(String expression) throws Exception {
+
+		if(expression == null) return null;
+
+		ParserContext context = new ParserContext();
+		context.addImport(RegexHandler.MATCHES_FUNCTION, RegexHandler.getMatchesMethod());
+		try {
+			MVEL.analysisCompile(RegexHandler.rewriteMatches(expression), context);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if(!context.getVariables().isEmpty()) return null;
+
+		return context.getInputs().keySet().toArray(new String[0]);
+
+	}
+
 	private static Object runExpression(String expression, TreeMap<String, Object> variables) {
 		/*
 		 * Implemented with MVEL here.
 		 */
+		Serializable compiled = compiledExpressions.get(expression);
+		if(compiled == null && compileOnFirstUse.remove(expression)) {
+			try {
+				compileExpression(expression);
+			} catch (Exception e) {
+				// the interpreter reports the invalid regular expression
+			}
+			compiled = compiledExpressions.get(expression);
+		}
+		if(compiled != null) return MVEL.executeExpression(compiled, variables);
 		return MVEL.eval(expression, variables);
 	}
 	
@@ -0,0 +1,233 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.handlers;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.mvel2.MVEL;
+
+/**
+ * This class holds the regular expressions used in rule expressions.  Literal patterns passed to matches(...), e.g. name1.matches('Buggs.*'),
+ * are found when the rules are loaded, compiled once, and shared by every expression that uses them.  String.matches compiles a new Pattern
+ * on every call, so matching through this class removes the Pattern.compile cost from rule evaluation.  The cache holds up to 10,000 patterns 
+ * (see setMaxPatterns); beyond that, patterns not used since the last sweep are evicted and compiled again if they come back.  Literal patterns
+ * are also removed when the last compiled expression using them is released (see ExpressionHandler.releaseReference).
+ */
+public class RegexHandler {
+
+	/**
+	 * The function name that rewritten expressions use in place of the String.matches method
+	 */
+	public static final String MATCHES_FUNCTION = "regexMatches";
+
+	private static final ConcurrentHashMap<String, CachedPattern> patterns = new ConcurrentHashMap<String, CachedPattern>();
+	private static volatile int maxPatterns = 10000;
+	private static final HashMap<String, Integer> references = new HashMap<String, Integer>();
+
+	/*
+	 * A variable or property reference, e.g. name1 or customer.name, followed by .matches() with a single string literal argument
+	 */
+	private static final Pattern MATCHES_CALL = Pattern.compile(
+			"(?<![\\w$.)\\]])([A-Za-z_$][\\w$]*(?:\\.[A-Za-z_$][\\w$]*)*)\\.matches\\(\\s*('(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\")\\s*\\)");
+
+	private static Method matchesMethod;
+
+	private static class CachedPattern {
+
+		private final Pattern pattern;
+		private volatile boolean referenced = true;
+
+		private CachedPattern(Pattern pattern) {
+			this.pattern = pattern;
+		}
+
+	}
+
+	/**
+	 * Sets the number of compiled patterns kept
+	 */
+	public static void setMaxPatterns(int maxPatterns) {
+		RegexHandler.maxPatterns = maxPatterns;
+	}
+
+	public static int getMaxPatterns() {
+		return maxPatterns;
+	}
+
+	/**
+	 * Returns the number of compiled patterns kept now
+	 */
+	public static int getPatternCount() {
+		return patterns.size();
+	}
+
+	/**
+	 * Returns true if the whole value matches the regular expression.  The compiled Pattern is taken from the shared cache.
+	 */
+	public static boolean matches(CharSequence value, String regex) {
+		return getPattern(regex).matcher(value).matches();
+	}
+
+	/**
+	 * Returns the compiled Pattern for a regular expression, compiling and caching it on first use.
+	 */
+	public static Pattern getPattern(String regex) {
+
+		CachedPattern cached = patterns.get(regex);
+		if(cached != null) {
+			if(!cached.referenced) cached.referenced = true;
+			return cached.pattern;
+		}
+
+		Pattern pattern = Pattern.compile(regex);
+		synchronized (patterns) {
+			cached = patterns.get(regex);
+			if(cached != null) return cached.pattern;
+			if(patterns.size() >= maxPatterns) evict();
+			patterns.put(regex, new CachedPattern(pattern));
+		}
+		return pattern;
+
+	}
+
+	/**
+	 * CLOCK sweep, called with the patterns locked: each pattern used since the last sweep is given a second chance, the others are removed until
+	 * there is room for one more.  Lookups only set the referenced flag, so a use racing with the sweep may be missed, which costs a recompile.
+	 */
+	private static void evict() {
+
+		int target = Math.max(0, maxPatterns - 1);
+		for (int pass = 0; pass < 2 && patterns.size() > target; pass++) {
+			Iterator<Map.Entry<String, CachedPattern>> entries = patterns.entrySet().iterator();
+			while (entries.hasNext() && patterns.size() > target) {
+				CachedPattern cached = entries.next().getValue();
+				if(cached.referenced) cached.referenced = false;
+				else entries.remove();
+			}
+		}
+
+	}
+
+	/**
+	 * Count a reference to each pattern, one per literal in a compiled expression
+	 */
+	static void addReferences(List<String> regexes) {
+		synchronized (patterns) {
+			for (String regex : regexes) references.merge(regex, 1, Integer::sum);
+		}
+	}
+
+	/**
+	 * Release references counted by addReferences, removing the patterns no compiled expression refers to any more
+	 */
+	static void releaseReferences(List<String> regexes) {
+		synchronized (patterns) {
+			for (String regex : regexes) {
+				Integer count = references.get(regex);
+				if(count == null) continue;
+				if(count > 1) {
+					references.put(regex, count - 1);
+					continue;
+				}
+				references.remove(regex);
+				patterns.remove(regex);
+			}
+		}
+	}
+
+	/**
+	 * Rewrites each value.matches('literal') in the expression to regexMatches(value, 'literal') and precompiles the literal patterns.
+	 * Matches calls that don't use a string literal, and text inside string literals, are left as they are.
+	 * @throws Exception if a literal is not a valid regular expression
+	 */
+	public static String rewriteMatches(String expression) throws Exception {
+		return rewriteMatches(expression, null);
+	}
+
+	/**
+	 * Same as rewriteMatches(expression), adding each literal pattern to regexes if not null
+	 */
+	static String rewriteMatches(String expression, List<String> regexes) throws Exception {
+
+		Matcher m = MATCHES_CALL.matcher(expression);
+		boolean found = m.find();
+		if(!found) return expression;
+
+		boolean[] quoted = getQuoted(expression);
+		StringBuilder rewritten = new StringBuilder();
+		int copied = 0;
+		while (found) {
+			if(quoted[m.start()]) {
+				//a match can start inside a literal and overlap a real call after it, so look again from the next character
+				found = m.find(m.start() + 1);
+				continue;
+			}
+			String literal = m.group(2);
+			String regex = (String) MVEL.eval(literal);
+			try {
+				getPattern(regex);
+			} catch (PatternSyntaxException e) {
+				throw new Exception("Invalid regular expression " + literal + " in expression: \"" + expression + "\". " + e.getDescription());
+			}
+			if(regexes != null) regexes.add(regex);
+			rewritten.append(expression, copied, m.start()).append(MATCHES_FUNCTION).append('(').append(m.group(1)).append(", ").append(literal).append(')');
+			copied = m.end();
+			found = m.find();
+		}
+		if(copied == 0) return expression;
+		rewritten.append(expression, copied, expression.length());
+
+		return rewritten.toString();
+
+	}
+
+	/**
+	 * Marks the characters of the expression that are inside a '...' or "..." string literal, quotes included
+	 */
+	private static boolean[] getQuoted(String expression) {
+
+		boolean[] quoted = new boolean[expression.length()];
+		char quote = 0;
+		for (int i = 0; i < expression.length(); i++) {
+			char c = expression.charAt(i);
+			if(quote == 0) {
+				if(c == '\'' || c == '"') {
+					quote = c;
+					quoted[i] = true;
+				}
+				continue;
+			}
+			quoted[i] = true;
+			if(c == '\\' && i + 1 < expression.length()) quoted[++i] = true;
+			else if(c == quote) quote = 0;
+		}
+		return quoted;
+
+	}
+
+	/**
+	 * Returns the matches method so it can be imported into an expression parser context as MATCHES_FUNCTION
+	 */
+	public static Method getMatchesMethod() throws Exception {
+		if(matchesMethod == null) matchesMethod = RegexHandler.class.getMethod("matches", CharSequence.class, String.class);
+		return matchesMethod;
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.handlers;
+
+import java.io.Serializable;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.mvel2.MVEL;
+import org.mvel2.compiler.ExecutableLiteral;
+
+/**
+ * A passScore or failScore expression classified when it is compiled.  Constant expressions, like "1" or "-3*10", are folded to a double,
+ * a single variable, like "passScore_1", is read straight from the variables, and anything else is run as a compiled MVEL expression.
+ * Scores are returned as primitive doubles, with Double.NaN meaning the expression did not produce a number.  An expression that has not
+ * been compiled yet (see DefaultRuleDefinition.setCompilationPolicy) is interpreted.
+ */
+public class ScoreExpression {
+
+	public static final int CONSTANT = 0;
+	public static final int VARIABLE = 1;
+	public static final int EXPRESSION = 2;
+
+	private static final Pattern VARIABLE_NAME = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+	private final String expression;
+	private final boolean compileOnFirstUse;
+	private volatile Form form;
+
+	private static class Form {
+		private int kind;
+		private double constant = Double.NaN;
+		private Serializable compiled;
+	}
+
+	/**
+	 * Classifies and compiles the expression now.
+	 */
+	public ScoreExpression(String expression) {
+		this.expression = expression.trim();
+		this.compileOnFirstUse = false;
+		compile();
+	}
+
+	/**
+	 * Leaves the expression to be compiled later.  Until it is, it is compiled on first use if compileOnFirstUse is "true", and interpreted otherwise.
+	 */
+	public ScoreExpression(String expression, boolean compileOnFirstUse) {
+		this.expression = expression.trim();
+		this.compileOnFirstUse = compileOnFirstUse;
+	}
+
+	/**
+	 * Classifies and compiles the expression, if not done already.
+	 */
+	public void compile() {
+
+		if(form != null) return;
+
+		Serializable s = null;
+		try {
+			s = MVEL.compileExpression(this.expression);
+		} catch (Exception e) {
+			// left to the interpreter, which reports the error when the score is evaluated
+		}
+
+		Form f = new Form();
+		if(s instanceof ExecutableLiteral) {
+			f.kind = CONSTANT;
+			f.constant = toDouble(((ExecutableLiteral) s).getLiteral());
+		}
+		else if(VARIABLE_NAME.matcher(this.expression).matches() && s != null) {
+			f.kind = VARIABLE;
+		}
+		else {
+			f.kind = EXPRESSION;
+			f.compiled = s;
+		}
+		form = f;
+
+	}
+
+	public boolean isCompiled() {
+		return form != null;
+	}
+
+	/**
+	 * Returns the score for the variables, or Double.NaN if the expression does not return a number
+	 */
+	public double getScore(TreeMap<String, Object> variables) {
+
+		Form f = form;
+		if(f == null) {
+			if(!compileOnFirstUse) return toDouble(MVEL.eval(expression, variables));
+			compile();
+			f = form;
+		}
+
+		switch (f.kind) {
+		case CONSTANT:
+			return f.constant;
+		case VARIABLE:
+			Object value = variables.get(expression);
+			if(value == null && !variables.containsKey(expression)) {
+				return toDouble(MVEL.eval(expression, variables)); // let MVEL report the unresolvable variable
+			}
+			return toDouble(value);
+		default:
+			if(f.compiled != null) return toDouble(MVEL.executeExpression(f.compiled, variables));
+			return toDouble(MVEL.eval(expression, variables));
+		}
+
+	}
+
+	/**
+	 * Returns CONSTANT, VARIABLE, or EXPRESSION.  The expression is compiled if it wasn't already.
+	 */
+	public int getKind() {
+		compile();
+		return form.kind;
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	private static double toDouble(Object obj) {
+		if(obj instanceof Number) return ((Number) obj).doubleValue();
+		return Double.NaN;
+	}
+
+}
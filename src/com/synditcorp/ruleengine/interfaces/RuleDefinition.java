@@ -13,6 +13,10 @@ package com.synditcorp.ruleengine.interfaces;
 
 import java.util.ArrayList;
 
+/**
+ * The rules of one document.  DefaultRuleDefinition is the engine's implementation; it also implements CompiledRuleDefinition, which gives the 
+ * evaluator the state worked out when the rules were loaded.
+ */
 public interface RuleDefinition {
 
 	public String getDocumentId();
@@ -53,4 +57,32 @@ public interface RuleDefinition {
 	public ArrayList<Integer>  getCompositePassActionsList(Integer ruleNumber) throws Exception;
 	public ArrayList<Integer>  getCompositeFailActionsList(Integer ruleNumber) throws Exception;
 
+	/**
+	 * Returns "true" if the rule is in force now, based on its active, effectiveDate, and expirationDate fields.  A rule number that is not in the
+	 * definition is left for the evaluation to report.  DefaultRuleDefinition looks this up in the schedule it made when the rules were loaded.
+	 */
+	public default boolean isInForce(Integer ruleNumber) throws Exception {
+		Rule rule = getRule(ruleNumber);
+		if(rule == null) return true;
+		long now = System.currentTimeMillis();
+		if(Boolean.FALSE.equals(rule.getActive())) return false;
+		if(rule.getEffectiveDate() != null && now < rule.getEffectiveDate().getTime()) return false;
+		if(rule.getExpirationDate() != null && now >= rule.getExpirationDate().getTime()) return false;
+		return true;
+	}
+
+	/**
+	 * Gets the composite rule numbers for a particular composite rule, as getCompositeRulesList does, without making a list.  Don't change the array.
+	 */
+	public default int[] getCompositeRulesArray(Integer ruleNumber) throws Exception {
+		ArrayList<Integer> list = getCompositeRulesList(ruleNumber);
+		if(list == null) return null;
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			if(list.get(i) == null) throw new Exception("Rule number " + ruleNumber + " compositeRules has a null rule number.");
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
 }
@@ -0,0 +1,31 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.interfaces;
+
+/**
+ * Interface for caches that keep calc rule results across requests.  The rule engine builds the keys; see the resultCacheKeys and resultCacheTtl
+ * calc rule fields.  Implementations must be safe for use by multiple RuleEvaluator instances at once.
+ */
+public interface RuleResultCache {
+
+	/**
+	 * Returns the cached result, or null if there is none or it has expired
+	 */
+	public Boolean get(String key);
+	public void put(String key, Boolean result, long ttlMillis);
+	public void clear();
+	public int size();
+	public long getHits();
+	public long getMisses();
+	public long getEvictions();
+	
+}
@@ -11,14 +11,43 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 
 package com.synditcorp.ruleengine.logging;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 
 public class RuleLogger {
 
 	public static Logger logger;
 
+	private static final ThreadLocal<Boolean> suppressed = new ThreadLocal<Boolean>();
+	private static final AtomicInteger suppressingThreads = new AtomicInteger();
+
+	/**
+	 * Turn logging off, or back on, for the calling thread only, e.g. while warming up evaluators that must not fill the logs (see RuleWarmUp).
+	 */
+	public static void setSuppressed(boolean suppress) {
+		if(suppress == isSuppressed()) return;
+		if(suppress) {
+			suppressed.set(Boolean.TRUE);
+			suppressingThreads.incrementAndGet();
+		}
+		else {
+			suppressed.remove();
+			suppressingThreads.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns "true" if logging is turned off for the calling thread
+	 */
+	public static boolean isSuppressed() {
+		return suppressingThreads.get() > 0 && suppressed.get() != null;
+	}
+
 	public static void log(String format, Object... args) {
 
+		if(isSuppressed()) return;
+		
 		if(logger.isDebugEnabled()) {
 			  debug(format, args);
 		}
@@ -41,6 +70,7 @@ public class RuleLogger {
 	}
 	
 	public static void debug(String format, Object... args) {
+		if(isSuppressed()) return;
 		if(logger == null) {
 			System.out.println("No Logger injected.");
 			return;
@@ -49,6 +79,7 @@ public class RuleLogger {
 	}
 
 	public static void info(String format, Object... args) {
+		if(isSuppressed()) return;
 		if(logger == null) {
 			System.out.println("No Logger injected.");
 			return;
@@ -57,6 +88,7 @@ public class RuleLogger {
 	}
 
 	public static void warn(String format, Object... args) {
+		if(isSuppressed()) return;
 		if(logger == null) {
 			System.out.println("No Logger injected.");
 			return;
@@ -65,6 +97,7 @@ public class RuleLogger {
 	}
 
 	public static void error(String format, Object... args) {
+		if(isSuppressed()) return;
 		if(logger == null) {
 			System.out.println("No Logger injected.");
 			return;
@@ -73,6 +106,7 @@ public class RuleLogger {
 	}
 
 	public static void trace(String format, Object... args) {
+		if(isSuppressed()) return;
 		if(logger == null) {
 			System.out.println("No Logger injected.");
 			return;
@@ -0,0 +1,262 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.logging;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.synditcorp.ruleengine.RuleIndex;
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+
+/**
+ * Counts, for each rule of a document, how many times it was evaluated, passed, failed, and was skipped by and/or short-circuiting, and the
+ * nanoseconds spent evaluating it, both in total (including the rules it calls) and by itself (excluding them).  Give the same profiler to each 
+ * RuleEvaluator of the document with setProfiler; the counters are LongAdders, so evaluators on many threads can update them without contending.  
+ * The report lists every rule, the most self time first, so a composite rule isn't ranked above the calc rule that takes its time, and rules 
+ * that are never evaluated, always pass, or always fail stand out.
+ */
+public class RuleProfiler {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	
+	private final RuleDefinition ruleDefinition;
+	private final RuleIndex ruleIndex;
+	private final LongAdder[] evaluations;
+	private final LongAdder[] passes;
+	private final LongAdder[] fails;
+	private final LongAdder[] skips;
+	private final LongAdder[] nanos;
+	private final LongAdder[] selfNanos;
+
+	public RuleProfiler(RuleDefinition ruleDefinition) throws Exception {
+		this.ruleDefinition = ruleDefinition;
+		this.ruleIndex = RuleIndex.of(ruleDefinition);
+		int size = ruleIndex.size();
+		evaluations = newCounters(size);
+		passes = newCounters(size);
+		fails = newCounters(size);
+		skips = newCounters(size);
+		nanos = newCounters(size);
+		selfNanos = newCounters(size);
+	}
+
+	/**
+	 * Count an evaluation of a rule that calls no other rules, and its result
+	 */
+	public void evaluated(Integer ruleNumber, boolean result, long elapsedNanos) {
+		evaluated(ruleNumber, result, elapsedNanos, elapsedNanos);
+	}
+
+	/**
+	 * Count an evaluation of the rule and its result.  elapsedNanos includes the rules it called, and elapsedSelfNanos doesn't.
+	 */
+	public void evaluated(Integer ruleNumber, boolean result, long elapsedNanos, long elapsedSelfNanos) {
+		int i = ruleIndex.indexOf(ruleNumber);
+		if(i < 0) return;
+		evaluations[i].increment();
+		if(result) passes[i].increment();
+		else fails[i].increment();
+		nanos[i].add(elapsedNanos);
+		selfNanos[i].add(elapsedSelfNanos);
+	}
+
+	/**
+	 * Count the rules of a composite rule list, from the index on, that were not evaluated because the composite rule's result was already known
+	 */
+	public void skipped(int[] compositeRules, int from) {
+		for (int j = from; j < compositeRules.length; j++) {
+			int i = ruleIndex.indexOf(Math.abs(compositeRules[j]));
+			if(i >= 0) skips[i].increment();
+		}
+	}
+
+	/**
+	 * Set all the counters to zero
+	 */
+	public void reset() {
+		for (int i = 0; i < ruleIndex.size(); i++) {
+			evaluations[i].reset();
+			passes[i].reset();
+			fails[i].reset();
+			skips[i].reset();
+			nanos[i].reset();
+			selfNanos[i].reset();
+		}
+	}
+
+	public long getEvaluations(Integer ruleNumber) {
+		return get(evaluations, ruleNumber);
+	}
+
+	public long getPasses(Integer ruleNumber) {
+		return get(passes, ruleNumber);
+	}
+
+	public long getFails(Integer ruleNumber) {
+		return get(fails, ruleNumber);
+	}
+
+	public long getSkips(Integer ruleNumber) {
+		return get(skips, ruleNumber);
+	}
+
+	/**
+	 * Returns the nanoseconds spent evaluating the rule, including the rules it calls
+	 */
+	public long getNanos(Integer ruleNumber) {
+		return get(nanos, ruleNumber);
+	}
+
+	/**
+	 * Returns the nanoseconds spent evaluating the rule, not counting the rules it calls
+	 */
+	public long getSelfNanos(Integer ruleNumber) {
+		return get(selfNanos, ruleNumber);
+	}
+
+	/**
+	 * Writes the report as a JSON object: {"documentId":"TESTXXX","version":"0.0.1","rules":[{"rule":1,"type":"calc","evaluations":3,"passes":0,
+	 * "fails":3,"skips":0,"nanos":2155000,"averageNanos":718333,"selfNanos":2155000,"averageSelfNanos":718333},...]}, the rules sorted by 
+	 * selfNanos, highest first.
+	 */
+	public void writeJson(JsonGenerator generator) throws IOException {
+
+		generator.writeStartObject();
+		generator.writeStringField("documentId", ruleDefinition.getDocumentId());
+		generator.writeStringField("version", ruleDefinition.getVersion());
+		generator.writeArrayFieldStart("rules");
+		for (Row row : getRows()) {
+			generator.writeStartObject();
+			generator.writeNumberField("rule", row.ruleNumber);
+			generator.writeStringField("type", row.type);
+			generator.writeNumberField("evaluations", row.evaluations);
+			generator.writeNumberField("passes", row.passes);
+			generator.writeNumberField("fails", row.fails);
+			generator.writeNumberField("skips", row.skips);
+			generator.writeNumberField("nanos", row.nanos);
+			generator.writeNumberField("averageNanos", row.getAverage(row.nanos));
+			generator.writeNumberField("selfNanos", row.selfNanos);
+			generator.writeNumberField("averageSelfNanos", row.getAverage(row.selfNanos));
+			generator.writeEndObject();
+		}
+		generator.writeEndArray();
+		generator.writeEndObject();
+		
+	}
+
+	/**
+	 * Returns the report as JSON.  See writeJson.
+	 */
+	public String toJson() throws IOException {
+		StringWriter writer = new StringWriter();
+		JsonGenerator generator = jsonFactory.createGenerator(writer);
+		writeJson(generator);
+		generator.close();
+		return writer.toString();
+	}
+
+	/**
+	 * Writes the report as CSV with a header line, the rules sorted by selfNanos, highest first
+	 */
+	public void writeCsv(Writer writer) throws IOException {
+		writer.write("rule,type,evaluations,passes,fails,skips,nanos,averageNanos,selfNanos,averageSelfNanos\n");
+		for (Row row : getRows()) {
+			writer.write(row.ruleNumber + "," + row.type + "," + row.evaluations + "," + row.passes + "," + row.fails + "," + row.skips + "," 
+					+ row.nanos + "," + row.getAverage(row.nanos) + "," + row.selfNanos + "," + row.getAverage(row.selfNanos) + "\n");
+		}
+	}
+
+	/**
+	 * Returns the report as CSV.  See writeCsv.
+	 */
+	public String toCsv() throws IOException {
+		StringWriter writer = new StringWriter();
+		writeCsv(writer);
+		return writer.toString();
+	}
+
+	private ArrayList<Row> getRows() {
+
+		ArrayList<Row> rows = new ArrayList<Row>();
+		for (int i = 0; i < ruleIndex.size(); i++) {
+			Row row = new Row();
+			row.ruleNumber = ruleIndex.getRuleNumber(i);
+			row.type = getType(row.ruleNumber);
+			row.evaluations = evaluations[i].sum();
+			row.passes = passes[i].sum();
+			row.fails = fails[i].sum();
+			row.skips = skips[i].sum();
+			row.nanos = nanos[i].sum();
+			row.selfNanos = selfNanos[i].sum();
+			rows.add(row);
+		}
+		
+		Collections.sort(rows, new Comparator<Row>() {
+			@Override
+			public int compare(Row a, Row b) {
+				if(a.selfNanos != b.selfNanos) return (a.selfNanos > b.selfNanos) ? -1 : 1;
+				if(a.nanos != b.nanos) return (a.nanos > b.nanos) ? -1 : 1;
+				return Integer.compare(a.ruleNumber, b.ruleNumber);
+			}
+		});
+		return rows;
+		
+	}
+
+	private String getType(Integer ruleNumber) {
+		try {
+			if(ruleDefinition.isCalcRule(ruleNumber)) return "calc";
+			if(ruleDefinition.isAndRule(ruleNumber)) return "and";
+			if(ruleDefinition.isOrRule(ruleNumber)) return "or";
+			if(ruleDefinition.isAllRule(ruleNumber)) return "all";
+		} catch (Exception e) {
+			// the rules were reloaded without this rule
+		}
+		return "";
+	}
+
+	private long get(LongAdder[] counters, Integer ruleNumber) {
+		int i = ruleIndex.indexOf(ruleNumber);
+		return (i < 0) ? 0 : counters[i].sum();
+	}
+
+	private static LongAdder[] newCounters(int size) {
+		LongAdder[] counters = new LongAdder[size];
+		for (int i = 0; i < size; i++) counters[i] = new LongAdder();
+		return counters;
+	}
+
+	private static class Row {
+
+		private int ruleNumber;
+		private String type;
+		private long evaluations;
+		private long passes;
+		private long fails;
+		private long skips;
+		private long nanos;
+		private long selfNanos;
+
+		private long getAverage(long total) {
+			return (evaluations == 0) ? 0 : total / evaluations;
+		}
+
+	}
+
+}
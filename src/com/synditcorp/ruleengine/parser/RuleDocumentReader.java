@@ -0,0 +1,321 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.parser;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import com.synditcorp.ruleengine.beans.AllRule;
+import com.synditcorp.ruleengine.beans.AndRule;
+import com.synditcorp.ruleengine.beans.BaseRule;
+import com.synditcorp.ruleengine.beans.BaseRules;
+import com.synditcorp.ruleengine.beans.CalcRule;
+import com.synditcorp.ruleengine.beans.CompositeRule;
+import com.synditcorp.ruleengine.beans.OrRule;
+
+/**
+ * Reads a rule definition document straight from Jackson's JsonParser tokens into BaseRules, without ObjectMapper or bean introspection.
+ * Values are coerced the way ObjectMapper's defaults coerce them, so "1" is read as the integer 1 and "true" as true, dates may be 
+ * ISO-8601 strings or epoch milliseconds, and unknown fields are errors.  Errors name the field and its line and column in the document.
+ */
+public class RuleDocumentReader {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final JsonParser parser;
+	private final StdDateFormat dateFormat = new StdDateFormat();
+
+	private RuleDocumentReader(JsonParser parser) {
+		this.parser = parser;
+	}
+
+	public static BaseRules read(byte[] json) throws Exception {
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			return new RuleDocumentReader(parser).readDocument();
+		}
+	}
+
+	public static BaseRules read(byte[] json, int offset, int length) throws Exception {
+		try (JsonParser parser = jsonFactory.createParser(json, offset, length)) {
+			return new RuleDocumentReader(parser).readDocument();
+		}
+	}
+
+	/**
+	 * Reads the remaining bytes of the buffer without moving its position.  Heap buffers are parsed in place; direct and memory-mapped 
+	 * buffers are streamed from.
+	 */
+	public static BaseRules read(ByteBuffer json) throws Exception {
+		if(json.hasArray()) return read(json.array(), json.arrayOffset() + json.position(), json.remaining());
+		return read(new ByteBufferBackedInputStream(json.duplicate()));
+	}
+
+	public static BaseRules read(InputStream json) throws Exception {
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			return new RuleDocumentReader(parser).readDocument();
+		}
+	}
+
+	public static BaseRules read(Reader json) throws Exception {
+		try (JsonParser parser = jsonFactory.createParser(json)) {
+			return new RuleDocumentReader(parser).readDocument();
+		}
+	}
+
+	private BaseRules readDocument() throws Exception {
+		
+		if(parser.nextToken() != JsonToken.START_OBJECT) throw error("document", "expected an object");
+		
+		BaseRules rules = new BaseRules();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			parser.nextToken();
+			switch (field) {
+				case "documentId": rules.setDocumentId(readString(field)); break;
+				case "description": rules.setDescription(readString(field)); break;
+				case "version": rules.setVersion(readString(field)); break;
+				case "startRule": rules.setStartRule(readInteger(field)); break;
+				case "documentTags": rules.setDocumentTags(readStrings(field)); break;
+				case "calcRules": rules.setCalcRules(readCalcRules(field)); break;
+				case "andRules": rules.setAndRules(readCompositeRules(field, AndRule::new)); break;
+				case "orRules": rules.setOrRules(readCompositeRules(field, OrRule::new)); break;
+				case "allRules": rules.setAllRules(readCompositeRules(field, AllRule::new)); break;
+				default: throw error(field, "unknown field");
+			}
+		}
+		
+		return rules;
+	}
+
+	private ArrayList<CalcRule> readCalcRules(String path) throws Exception {
+		
+		if(parser.currentToken() == JsonToken.VALUE_NULL) return null;
+		if(parser.currentToken() != JsonToken.START_ARRAY) throw error(path, "expected an array of rules");
+		
+		ArrayList<CalcRule> rules = new ArrayList<CalcRule>();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			String rulePath = path + "[" + rules.size() + "]";
+			if(parser.currentToken() != JsonToken.START_OBJECT) throw error(rulePath, "expected a rule object");
+			CalcRule rule = new CalcRule();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if(readBaseField(rule, field, rulePath)) continue;
+				String fieldPath = rulePath + "." + field;
+				switch (field) {
+					case "expression": rule.setExpression(readString(fieldPath)); break;
+					case "handlerClass": rule.setHandlerClass(readString(fieldPath)); break;
+					case "resultCacheKeys": rule.setResultCacheKeys(readStrings(fieldPath)); break;
+					case "resultCacheTtl": rule.setResultCacheTtl(readLong(fieldPath)); break;
+					case "pure": rule.setPure(readBoolean(fieldPath)); break;
+					case "timeout": rule.setTimeout(readLong(fieldPath)); break;
+					default: throw error(fieldPath, "unknown field");
+				}
+			}
+			rules.add(rule);
+		}
+		
+		return rules;
+	}
+
+	private <T extends CompositeRule> ArrayList<T> readCompositeRules(String path, Supplier<T> newRule) throws Exception {
+		
+		if(parser.currentToken() == JsonToken.VALUE_NULL) return null;
+		if(parser.currentToken() != JsonToken.START_ARRAY) throw error(path, "expected an array of rules");
+		
+		ArrayList<T> rules = new ArrayList<T>();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			String rulePath = path + "[" + rules.size() + "]";
+			if(parser.currentToken() != JsonToken.START_OBJECT) throw error(rulePath, "expected a rule object");
+			T rule = newRule.get();
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if(readBaseField(rule, field, rulePath)) continue;
+				String fieldPath = rulePath + "." + field;
+				switch (field) {
+					case "compositeRules": rule.setCompositeRules(readIntegers(fieldPath)); break;
+					case "compositePassKeys": rule.setCompositePassKeys(readIntegers(fieldPath)); break;
+					case "compositeFailKeys": rule.setCompositeFailKeys(readIntegers(fieldPath)); break;
+					case "compositePassScore": rule.setCompositePassScore(readIntegers(fieldPath)); break;
+					case "compositeFailScore": rule.setCompositeFailScore(readIntegers(fieldPath)); break;
+					case "compositePassFlags": rule.setCompositePassFlags(readIntegers(fieldPath)); break;
+					case "compositeFailFlags": rule.setCompositeFailFlags(readIntegers(fieldPath)); break;
+					case "compositePassReasons": rule.setCompositePassReasons(readIntegers(fieldPath)); break;
+					case "compositeFailReasons": rule.setCompositeFailReasons(readIntegers(fieldPath)); break;
+					case "compositePassActions": rule.setCompositePassActions(readIntegers(fieldPath)); break;
+					case "compositeFailActions": rule.setCompositeFailActions(readIntegers(fieldPath)); break;
+					case "parallel": rule.setParallel(readBoolean(fieldPath)); break;
+					default: throw error(fieldPath, "unknown field");
+				}
+			}
+			rules.add(rule);
+		}
+		
+		return rules;
+	}
+
+	/**
+	 * Reads a field every rule type has.  Returns false if the field is not one of them.
+	 */
+	private boolean readBaseField(BaseRule rule, String field, String rulePath) throws Exception {
+		
+		String fieldPath = rulePath + "." + field;
+		switch (field) {
+			case "ruleNumber": rule.setRuleNumber(readInteger(fieldPath)); return true;
+			case "ruleType": rule.setRuleType(readString(fieldPath)); return true;
+			case "ruleTags": rule.setRuleTags(readStrings(fieldPath)); return true;
+			case "description": rule.setDescription(readString(fieldPath)); return true;
+			case "active": rule.setActive(readBoolean(fieldPath)); return true;
+			case "effectiveDate": rule.setEffectiveDate(readDate(fieldPath)); return true;
+			case "expirationDate": rule.setExpirationDate(readDate(fieldPath)); return true;
+			case "passKey": rule.setPassKey(readString(fieldPath)); return true;
+			case "failKey": rule.setFailKey(readString(fieldPath)); return true;
+			case "passScore": rule.setPassScore(readString(fieldPath)); return true;
+			case "failScore": rule.setFailScore(readString(fieldPath)); return true;
+			case "passFlag": rule.setPassFlag(readString(fieldPath)); return true;
+			case "failFlag": rule.setFailFlag(readString(fieldPath)); return true;
+			case "passReason": rule.setPassReason(readString(fieldPath)); return true;
+			case "failReason": rule.setFailReason(readString(fieldPath)); return true;
+			case "passAction": rule.setPassAction(readString(fieldPath)); return true;
+			case "failAction": rule.setFailAction(readString(fieldPath)); return true;
+			case "timeoutOutcome": rule.setTimeoutOutcome(readString(fieldPath)); return true;
+			default: return false;
+		}
+	}
+
+	private String readString(String path) throws Exception {
+		switch (parser.currentToken()) {
+			case VALUE_NULL: return null;
+			case VALUE_STRING:
+			case VALUE_NUMBER_INT:
+			case VALUE_NUMBER_FLOAT:
+			case VALUE_TRUE:
+			case VALUE_FALSE: return parser.getText();
+			default: throw error(path, "expected a string");
+		}
+	}
+
+	private Integer readInteger(String path) throws Exception {
+		switch (parser.currentToken()) {
+			case VALUE_NULL: return null;
+			case VALUE_NUMBER_INT:
+				if(parser.getNumberType() != JsonParser.NumberType.INT) throw error(path, "integer out of range");
+				return parser.getIntValue();
+			case VALUE_NUMBER_FLOAT: return (int) parser.getDoubleValue();
+			case VALUE_STRING:
+				String text = parser.getText().trim();
+				if(text.isEmpty()) return null;
+				try {
+					return Integer.valueOf(text);
+				} catch (NumberFormatException e) {
+					throw error(path, "\"" + text + "\" is not an integer");
+				}
+			default: throw error(path, "expected an integer");
+		}
+	}
+
+	private Long readLong(String path) throws Exception {
+		switch (parser.currentToken()) {
+			case VALUE_NULL: return null;
+			case VALUE_NUMBER_INT:
+				if(parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) throw error(path, "integer out of range");
+				return parser.getLongValue();
+			case VALUE_NUMBER_FLOAT: return (long) parser.getDoubleValue();
+			case VALUE_STRING:
+				String text = parser.getText().trim();
+				if(text.isEmpty()) return null;
+				try {
+					return Long.valueOf(text);
+				} catch (NumberFormatException e) {
+					throw error(path, "\"" + text + "\" is not an integer");
+				}
+			default: throw error(path, "expected an integer");
+		}
+	}
+
+	private Boolean readBoolean(String path) throws Exception {
+		switch (parser.currentToken()) {
+			case VALUE_NULL: return null;
+			case VALUE_TRUE: return Boolean.TRUE;
+			case VALUE_FALSE: return Boolean.FALSE;
+			case VALUE_NUMBER_INT: return parser.getLongValue() != 0;
+			case VALUE_STRING:
+				String text = parser.getText().trim();
+				if(text.isEmpty()) return null;
+				if(text.equalsIgnoreCase("true")) return Boolean.TRUE;
+				if(text.equalsIgnoreCase("false")) return Boolean.FALSE;
+				throw error(path, "\"" + text + "\" is not true or false");
+			default: throw error(path, "expected true or false");
+		}
+	}
+
+	private Date readDate(String path) throws Exception {
+		switch (parser.currentToken()) {
+			case VALUE_NULL: return null;
+			case VALUE_NUMBER_INT: return new Date(parser.getLongValue());
+			case VALUE_STRING:
+				String text = parser.getText().trim();
+				if(text.isEmpty()) return null;
+				try {
+					return dateFormat.parse(text);
+				} catch (ParseException e) {
+					throw error(path, "\"" + text + "\" is not an ISO-8601 date");
+				}
+			default: throw error(path, "expected a date");
+		}
+	}
+
+	private ArrayList<String> readStrings(String path) throws Exception {
+		
+		if(parser.currentToken() == JsonToken.VALUE_NULL) return null;
+		if(parser.currentToken() != JsonToken.START_ARRAY) throw error(path, "expected an array");
+		
+		ArrayList<String> values = new ArrayList<String>();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			values.add(readString(path + "[" + values.size() + "]"));
+		}
+		return values;
+	}
+
+	private ArrayList<Integer> readIntegers(String path) throws Exception {
+		
+		if(parser.currentToken() == JsonToken.VALUE_NULL) return null;
+		if(parser.currentToken() != JsonToken.START_ARRAY) throw error(path, "expected an array");
+		
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			String valuePath = path + "[" + values.size() + "]";
+			Integer value = readInteger(valuePath);
+			if(value == null) throw error(valuePath, "expected a rule number");
+			values.add(value);
+		}
+		return values;
+	}
+
+	private Exception error(String path, String message) {
+		JsonLocation location = parser.getTokenLocation();
+		return new Exception("Rule document error at line " + location.getLineNr() + ", column " + location.getColumnNr() + ", " + path + ": " + message);
+	}
+
+}
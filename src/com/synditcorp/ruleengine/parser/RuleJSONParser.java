@@ -11,15 +11,17 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 
 package com.synditcorp.ruleengine.parser;
 
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.synditcorp.ruleengine.beans.BaseRules;
 import com.synditcorp.ruleengine.interfaces.RuleParser;
 
 /**
- * This class implements RulesParser and uses the Jackson JSON parser (com.fasterxml.jackson.core)
+ * This class implements RulesParser and uses the Jackson JSON parser (com.fasterxml.jackson.core) through RuleDocumentReader
  */
 public class RuleJSONParser implements RuleParser {
 
@@ -32,18 +34,29 @@ public class RuleJSONParser implements RuleParser {
 	public void loadRules(String jsonFileName) throws Exception {
 
 		byte[] jsonData = Files.readAllBytes(Paths.get(jsonFileName));
-		ObjectMapper objectMapper = new ObjectMapper();
 		
-		rules = objectMapper.readValue(jsonData, BaseRules.class);
+		rules = RuleDocumentReader.read(jsonData);
 		
 	}
 
 	/**
-	 * Use this for getting definitions from resources like MongoDB.  See test.java.verifyRulesDefinitions.json for supported JSON file format.
+	 * Use this for getting definitions from resources like MongoDB or memory.  Pass one byte[], ByteBuffer, InputStream, or Reader holding the 
+	 * JSON document; it is parsed directly, without a temporary file or copy.  A ByteBuffer is read from its position to its limit and its position 
+	 * is left unchanged, so the same buffer can be loaded again.  An InputStream or Reader is closed when the document has been read.  
+	 * See test.java.verifyRulesDefinitions.json for supported JSON file format.
 	 */
 	@Override
 	public void loadRules(Object... arguments) throws Exception {
-		// TODO Auto-generated method stub
+
+		if(arguments == null || arguments.length != 1 || arguments[0] == null) throw new Exception("RuleJSONParser.loadRules expects one byte[], ByteBuffer, InputStream, or Reader argument");
+		
+		Object source = arguments[0];
+		if(source instanceof byte[]) rules = RuleDocumentReader.read((byte[]) source);
+		else if(source instanceof ByteBuffer) rules = RuleDocumentReader.read((ByteBuffer) source);
+		else if(source instanceof InputStream) rules = RuleDocumentReader.read((InputStream) source);
+		else if(source instanceof Reader) rules = RuleDocumentReader.read((Reader) source);
+		else throw new Exception("RuleJSONParser.loadRules cannot read rules from " + source.getClass().getName() + ", expected a byte[], ByteBuffer, InputStream, or Reader");
+		
 	}
 	
 	@Override
@@ -0,0 +1,313 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.pipeline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.synditcorp.ruleengine.EvaluationResult;
+import com.synditcorp.ruleengine.RuleEvaluator;
+import com.synditcorp.ruleengine.interfaces.RuleDefinition;
+
+/**
+ * Evaluates newline delimited JSON records, one JSON object of variables per line, on a pool of worker threads and writes one JSON result per line.
+ * Records are read with a streaming Jackson reader into a bounded queue, and results go through a bounded queue to a single writer.  At most 
+ * queueSize records are between being read and having their result written, so reading waits when the workers or the writer fall behind, even 
+ * when ordered results are held back behind a slow record.  Results are written in the order of the records unless ordered is set to false, in 
+ * which case they are written as soon as they are ready.
+ * <p>
+ * Each result line is {"record":1,"evaluation":{...}}, the evaluation being written by EvaluationResult.writeJson, or {"record":1,"error":"..."}
+ * if the record couldn't be evaluated.  Every record gets a line, whatever its evaluation throws.  Records are numbered from 1.
+ */
+public class NdjsonPipeline {
+
+	private final RuleDefinition ruleDefinition;
+	private final Logger logger;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private Integer startRule;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int queueSize = 1024;
+	private boolean ordered = true;
+
+	public NdjsonPipeline(RuleDefinition ruleDefinition, Logger logger) {
+		this.ruleDefinition = ruleDefinition;
+		this.logger = logger;
+	}
+
+	/**
+	 * Sets the rule evaluated for each record.  The document's start rule is used if not set.
+	 */
+	public void setStartRule(Integer startRule) {
+		this.startRule = startRule;
+	}
+
+	public void setWorkers(int workers) {
+		if(workers < 1) throw new IllegalArgumentException("workers must be at least 1");
+		this.workers = workers;
+	}
+
+	/**
+	 * Sets the size of the record and result queues, which is also the most records between being read and being written
+	 */
+	public void setQueueSize(int queueSize) {
+		if(queueSize < 1) throw new IllegalArgumentException("queueSize must be at least 1");
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Set to false to write results as soon as they are ready instead of in the order of the records
+	 */
+	public void setOrdered(boolean ordered) {
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Evaluate every record of the input and write the results to the output, which is flushed but not closed
+	 * @throws Exception if the input can't be read as JSON objects or the output can't be written.  Records read before the problem are evaluated
+	 * and written first.
+	 */
+	public PipelineStats run(InputStream input, OutputStream output) throws Exception {
+
+		final Integer ruleNumber = (startRule == null) ? ruleDefinition.getStartRule() : startRule;
+		if(ruleNumber == null) throw new Exception("No start rule to evaluate.");
+		
+		final ArrayBlockingQueue<Task> records = new ArrayBlockingQueue<Task>(queueSize);
+		final ArrayBlockingQueue<Task> results = new ArrayBlockingQueue<Task>(queueSize);
+		final Semaphore window = new Semaphore(queueSize);
+		
+		long start = System.nanoTime();
+		
+		Thread[] workerThreads = new Thread[workers];
+		for (int i = 0; i < workers; i++) {
+			workerThreads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					evaluate(ruleNumber, records, results);
+				}
+			}, "ndjson-pipeline-worker-" + (i + 1));
+			workerThreads[i].setDaemon(true);
+			workerThreads[i].start();
+		}
+		
+		Writer writer = new Writer(output, results, window);
+		Thread writerThread = new Thread(writer, "ndjson-pipeline-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+		
+		Exception readFailure = null;
+		long sequence = 0;
+		try {
+			MappingIterator<TreeMap<String, Object>> iterator = objectMapper.readerFor(TreeMap.class).readValues(input);
+			while (writer.failure == null) {
+				TreeMap<String, Object> variables;
+				try {
+					if(!iterator.hasNextValue()) break;
+					variables = iterator.nextValue();
+				} catch (IOException e) {
+					readFailure = new Exception("Record " + (sequence + 1) + " could not be read: " + e.getMessage(), e);
+					break;
+				}
+				window.acquire();
+				records.put(new Task(++sequence, System.nanoTime(), variables));
+			}
+		} finally {
+			for (int i = 0; i < workers; i++) records.put(Task.END);
+			for (int i = 0; i < workers; i++) workerThreads[i].join();
+			results.put(Task.END);
+			writerThread.join();
+		}
+		
+		if(writer.failure != null) throw writer.failure;
+		if(readFailure != null) throw readFailure;
+		
+		return new PipelineStats(writer.written, writer.errors, System.nanoTime() - start, writer.latencies);
+		
+	}
+
+	/**
+	 * Take records from the queue until the end, evaluating each with this thread's own RuleEvaluator.  Anything thrown by an evaluation, errors
+	 * included, becomes the record's error line, so the writer is never left waiting for a record.
+	 */
+	private void evaluate(Integer ruleNumber, ArrayBlockingQueue<Task> records, ArrayBlockingQueue<Task> results) {
+
+		RuleEvaluator evaluator = new RuleEvaluator(ruleDefinition, logger);
+		
+		try {
+			while (true) {
+				Task task = records.take();
+				if(task == Task.END) return;
+				
+				try {
+					evaluator.putVariables(task.variables);
+					task.line = getEvaluationLine(task.sequence, evaluator.evaluateRuleForResult(ruleNumber));
+				} catch (Throwable e) {
+					task.failed = true;
+					task.line = getErrorLine(task.sequence, e);
+				} finally {
+					try {
+						evaluator.reset();
+					} catch (Throwable e) {
+						evaluator = new RuleEvaluator(ruleDefinition, logger);
+					}
+				}
+				
+				task.variables = null;
+				results.put(task);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+	}
+
+	private byte[] getEvaluationLine(long sequence, EvaluationResult result) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+		JsonGenerator generator = objectMapper.getFactory().createGenerator(line);
+		generator.writeStartObject();
+		generator.writeNumberField("record", sequence);
+		generator.writeFieldName("evaluation");
+		result.writeJson(generator);
+		generator.writeEndObject();
+		generator.close();
+		line.write('\n');
+		return line.toByteArray();
+	}
+
+	/**
+	 * The error line is written with a new generator, since the failure may have left the evaluation line half written
+	 */
+	private byte[] getErrorLine(long sequence, Throwable e) {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		try {
+			JsonGenerator generator = objectMapper.getFactory().createGenerator(line);
+			generator.writeStartObject();
+			generator.writeNumberField("record", sequence);
+			generator.writeStringField("error", (e.getMessage() == null) ? e.toString() : e.getMessage());
+			generator.writeEndObject();
+			generator.close();
+		} catch (IOException x) {
+			//writing to a ByteArrayOutputStream doesn't fail
+			throw new RuntimeException(x);
+		}
+		line.write('\n');
+		return line.toByteArray();
+	}
+
+	/**
+	 * Writes the results, holding back those that are early when ordered, and gives the reader a permit for each result it takes.  The reader 
+	 * is never more than queueSize records ahead of the next record to write, so each early result has a slot of its own in the early array.
+	 */
+	private class Writer implements Runnable {
+
+		private final OutputStream output;
+		private final ArrayBlockingQueue<Task> results;
+		private final Semaphore window;
+		private final Task[] early = new Task[queueSize];
+		private long next = 1;
+		private long written = 0;
+		private long errors = 0;
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private volatile Exception failure;
+
+		private Writer(OutputStream output, ArrayBlockingQueue<Task> results, Semaphore window) {
+			this.output = output;
+			this.results = results;
+			this.window = window;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				while (true) {
+					Task task = results.take();
+					if(task == Task.END) break;
+					if(failure != null) {
+						window.release();
+						continue;
+					}
+					try {
+						if(!ordered) {
+							write(task);
+							continue;
+						}
+						early[slot(task.sequence)] = task;
+						while ((task = early[slot(next)]) != null && task.sequence == next) {
+							early[slot(next)] = null;
+							write(task);
+							next++;
+						}
+					} catch (IOException e) {
+						//keep taking results so the workers don't wait on a full queue, and give back the permits of the results held back
+						failure = new Exception("Results could not be written: " + e.getMessage(), e);
+						for (int i = 0; i < early.length; i++) {
+							if(early[i] == null) continue;
+							early[i] = null;
+							window.release();
+						}
+					}
+				}
+				if(failure == null) output.flush();
+			} catch (IOException e) {
+				failure = new Exception("Results could not be written: " + e.getMessage(), e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			
+		}
+
+		private void write(Task task) throws IOException {
+			try {
+				output.write(task.line);
+			} finally {
+				window.release();
+			}
+			latencies.record(System.nanoTime() - task.readNanos);
+			written++;
+			if(task.failed) errors++;
+		}
+
+		private int slot(long sequence) {
+			return (int) (sequence % early.length);
+		}
+
+	}
+
+	private static class Task {
+
+		private static final Task END = new Task(0, 0, null);
+		
+		private final long sequence;
+		private final long readNanos;
+		private TreeMap<String, Object> variables;
+		private byte[] line;
+		private boolean failed = false;
+
+		private Task(long sequence, long readNanos, TreeMap<String, Object> variables) {
+			this.sequence = sequence;
+			this.readNanos = readNanos;
+			this.variables = variables;
+		}
+
+	}
+
+}
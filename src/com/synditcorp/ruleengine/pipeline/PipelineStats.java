@@ -0,0 +1,76 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.pipeline;
+
+/**
+ * Throughput and latency of an NdjsonPipeline run.  Latency is the time from when a record is read to when its result is written, so it includes
+ * the time spent waiting in the queues.  Latencies are counted in a fixed-size histogram, so percentiles are within about 3%, and the maximum is exact.
+ */
+public class PipelineStats {
+
+	private final long records;
+	private final long errors;
+	private final long elapsedNanos;
+	private final LatencyHistogram latencies;
+
+	PipelineStats(long records, long errors, long elapsedNanos, LatencyHistogram latencies) {
+		this.records = records;
+		this.errors = errors;
+		this.elapsedNanos = elapsedNanos;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Returns the number of records written, including those whose evaluation failed
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Returns the number of records whose evaluation failed
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Returns records per second
+	 */
+	public double getThroughput() {
+		if(elapsedNanos == 0) return 0;
+		return records * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * Returns the latency in nanoseconds that the percentile (0 to 100) of records were written within
+	 */
+	public long getLatencyPercentile(double percentile) {
+		return latencies.getPercentile(percentile);
+	}
+
+	public long getMaxLatency() {
+		return latencies.getMax();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d records (%d errors) in %.1f ms, %.0f records/second, latency ms p50 %.3f, p90 %.3f, p99 %.3f, max %.3f", 
+				records, errors, elapsedNanos / 1e6, getThroughput(), getLatencyPercentile(50) / 1e6, getLatencyPercentile(90) / 1e6, 
+				getLatencyPercentile(99) / 1e6, getMaxLatency() / 1e6);
+	}
+
+}
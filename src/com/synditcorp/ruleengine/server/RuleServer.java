@@ -0,0 +1,590 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package com.synditcorp.ruleengine.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.synditcorp.ruleengine.EvaluationResult;
+import com.synditcorp.ruleengine.RuleEvaluator;
+import com.synditcorp.ruleengine.RuleEvaluatorPool;
+import com.synditcorp.ruleengine.RuleRegistry;
+import com.synditcorp.ruleengine.beans.BaseRules;
+import com.synditcorp.ruleengine.logging.MinimalLogger;
+import com.synditcorp.ruleengine.parser.RuleJSONParser;
+
+/**
+ * A small evaluation server for the documents in a RuleRegistry.  It uses one NIO selector thread for the connections and a pool of worker 
+ * threads, one per core by default, for the evaluations.
+ * <p>
+ * Each request and response is a frame: a 4 byte big endian length followed by that many bytes of UTF-8 JSON.  A request is an object like
+ * <pre>
+ * {"id":1, "documentId":"TESTXXX", "version":"0.0.1", "ruleNumber":14, "variables":{"amount1":1000.00, "name1":"John Doe"}}
+ * </pre>
+ * where id is optional and returned as is, version defaults to the document's current version, and ruleNumber defaults to the start rule.  The 
+ * response is {"id":1, "evaluation":{...}}, the evaluation being written by EvaluationResult.writeJson, or {"id":1, "error":"..."}.  A frame
+ * may also hold a batch, a JSON array of requests, answered by an array of responses in the same order.
+ * <p>
+ * Requests are pipelined: a client can send many frames without waiting, and they are evaluated concurrently.  Responses are sent in the order
+ * the requests were received.  A connection stops being read while it has maxInFlight frames being evaluated or waiting to be written, so a 
+ * client that doesn't read its responses can't make the server hold more than that for it.
+ * <p>
+ * The server listens on the loopback address unless given another with setBindAddress.
+ */
+public class RuleServer {
+
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 1024;
+	
+	private final RuleRegistry registry;
+	private final Logger logger;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ConcurrentLinkedQueue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private int workers = Runtime.getRuntime().availableProcessors();
+	private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private long borrowTimeout = 30000;
+	private long evaluationTimeout = 0;
+	private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+	private volatile boolean running = false;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private ExecutorService workerPool;
+	private Thread selectorThread;
+
+	public RuleServer(RuleRegistry registry, Logger logger) {
+		this.registry = registry;
+		this.logger = logger;
+	}
+
+	/**
+	 * Start listening on the port, zero for any free port (see getPort)
+	 */
+	public synchronized void start(int port) throws Exception {
+
+		if(running) throw new Exception("The server is already running.");
+		
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(new InetSocketAddress(bindAddress, port));
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		workerPool = Executors.newFixedThreadPool(workers, new NamedThreadFactory("rule-server-worker-"));
+		running = true;
+		selectorThread = new NamedThreadFactory("rule-server-selector-").newThread(new Runnable() {
+			@Override
+			public void run() {
+				select();
+			}
+		});
+		selectorThread.start();
+		
+	}
+
+	/**
+	 * Stop accepting connections, close the open connections, and wait for evaluations in progress to finish
+	 */
+	public synchronized void stop() throws Exception {
+
+		if(!running) return;
+		running = false;
+		selector.wakeup();
+		selectorThread.join();
+		workerPool.shutdown();
+		workerPool.awaitTermination(borrowTimeout, TimeUnit.MILLISECONDS);
+		
+	}
+
+	/**
+	 * Returns the port the server is listening on
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Sets the address to listen on, or null for every address of the machine.  By default only the loopback address is used, so only clients
+	 * on the same machine can connect.  This takes effect when the server is next started.
+	 */
+	public void setBindAddress(InetAddress bindAddress) {
+		this.bindAddress = bindAddress;
+	}
+
+	public InetAddress getBindAddress() {
+		return bindAddress;
+	}
+
+	/**
+	 * Sets the number of worker threads.  This takes effect when the server is next started.
+	 */
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public void setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Sets the number of frames of one connection that can be evaluating or waiting to be written before the server stops reading it
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Sets the milliseconds a request waits for a RuleEvaluator from the document's pool before failing
+	 */
+	public void setBorrowTimeout(long borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	/**
+	 * Sets the milliseconds a request's rule may take, or 0 for no limit.  A request's own "timeout" can only shorten it.  See
+	 * RuleEvaluator.evaluateRule with a timeout.
+	 */
+	public void setEvaluationTimeout(long evaluationTimeout) {
+		this.evaluationTimeout = evaluationTimeout;
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	public long getFrames() {
+		return frames.get();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	private void select() {
+
+		try {
+			
+			while (running) {
+				
+				selector.select();
+				
+				Connection connection;
+				while ((connection = completed.poll()) != null) {
+					if(!connection.channel.isOpen()) continue;
+					try {
+						write(connection);
+					} catch (IOException e) {
+						close(connection);
+					}
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if(!key.isValid()) continue;
+						if(key.isAcceptable()) accept();
+						else {
+							if(key.isReadable()) read((Connection) key.attachment());
+							if(key.isValid() && key.isWritable()) write((Connection) key.attachment());
+						}
+					} catch (IOException e) {
+						if(key.attachment() != null) close((Connection) key.attachment());
+					}
+				}
+				
+			}
+			
+		} catch (Exception e) {
+			logger.error("Rule server stopped: " + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if(key.attachment() != null) close((Connection) key.attachment());
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException e) {
+				logger.error("Rule server failed to close: " + e.getMessage());
+			}
+		}
+		
+	}
+
+	private void accept() throws IOException {
+
+		SocketChannel channel = serverChannel.accept();
+		if(channel == null) return;
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		connections.incrementAndGet();
+		
+	}
+
+	private void read(Connection connection) throws IOException {
+
+		int count = connection.channel.read(connection.readBuffer);
+		if(count < 0) {
+			close(connection);
+			return;
+		}
+		readFrames(connection);
+		
+	}
+
+	/**
+	 * Hand each complete frame in the read buffer to the workers, growing the buffer if the next frame won't fit
+	 */
+	private void readFrames(Connection connection) throws IOException {
+
+		ByteBuffer buffer = connection.readBuffer;
+		buffer.flip();
+		
+		while (buffer.remaining() >= 4 && connection.inFlight.get() < maxInFlight) {
+			int length = buffer.getInt(buffer.position());
+			if(length < 0 || length > maxFrameSize) throw new IOException("Frame of " + length + " bytes is not allowed");
+			if(buffer.remaining() < 4 + length) break;
+			buffer.getInt();
+			byte[] frame = new byte[length];
+			buffer.get(frame);
+			submit(connection, connection.nextSequence++, frame);
+		}
+		
+		if(buffer.remaining() >= 4) {
+			int needed = 4 + buffer.getInt(buffer.position());
+			if(needed > buffer.capacity()) {
+				ByteBuffer larger = ByteBuffer.allocate(needed);
+				larger.put(buffer);
+				connection.readBuffer = larger;
+				buffer = null;
+			}
+		}
+		if(buffer != null) buffer.compact();
+		
+		setInterest(connection);
+		
+	}
+
+	private void submit(final Connection connection, final long sequence, final byte[] frame) {
+
+		frames.incrementAndGet();
+		connection.inFlight.incrementAndGet();
+		workerPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				//every sequence gets a response, whatever the evaluation throws, or the responses after it would be held back for good
+				byte[] response;
+				try {
+					response = evaluateFrame(frame);
+				} catch (Throwable e) {
+					errors.incrementAndGet();
+					response = getErrorFrame(e);
+				}
+				synchronized (connection) {
+					connection.completed.put(sequence, response);
+				}
+				completed.add(connection);
+				selector.wakeup();
+			}
+		});
+		
+	}
+
+	/**
+	 * Queue the responses that are next in order and write as much as the socket will take.  A frame stops counting as in flight once its 
+	 * response has been written to the socket.
+	 */
+	private void write(Connection connection) throws IOException {
+
+		synchronized (connection) {
+			byte[] response;
+			while ((response = connection.completed.remove(connection.nextWrite)) != null) {
+				connection.writes.add(ByteBuffer.wrap(response));
+				connection.nextWrite++;
+			}
+		}
+		
+		while (!connection.writes.isEmpty()) {
+			ByteBuffer buffer = connection.writes.peek();
+			connection.channel.write(buffer);
+			if(buffer.hasRemaining()) break;
+			connection.writes.poll();
+			connection.inFlight.decrementAndGet();
+		}
+		
+		boolean wasPaused = (connection.key.interestOps() & SelectionKey.OP_READ) == 0;
+		if(wasPaused && connection.inFlight.get() < maxInFlight) readFrames(connection);
+		else setInterest(connection);
+		
+	}
+
+	private void setInterest(Connection connection) {
+		int ops = 0;
+		if(connection.inFlight.get() < maxInFlight) ops |= SelectionKey.OP_READ;
+		if(!connection.writes.isEmpty()) ops |= SelectionKey.OP_WRITE;
+		connection.key.interestOps(ops);
+	}
+
+	private void close(Connection connection) {
+		if(!connection.channel.isOpen()) return;
+		connections.decrementAndGet();
+		connection.key.cancel();
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			logger.error("Rule server failed to close a connection: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Evaluate the request or batch of requests in the frame and return the response frame
+	 */
+	private byte[] evaluateFrame(byte[] frame) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		
+		try {
+			
+			JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+			try {
+				JsonNode node = objectMapper.readTree(frame);
+				if(node != null && node.isArray()) {
+					generator.writeStartArray();
+					for (JsonNode request : node) evaluateRequest(request, generator);
+					generator.writeEndArray();
+				}
+				else evaluateRequest(node, generator);
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				generator.writeStartObject();
+				generator.writeStringField("error", "Request is not valid JSON: " + e.getMessage());
+				generator.writeEndObject();
+			}
+			generator.close();
+			
+		} catch (IOException e) {
+			//writing to a ByteArrayOutputStream doesn't fail
+			throw new RuntimeException(e);
+		}
+		
+		byte[] response = out.toByteArray();
+		ByteBuffer.wrap(response).putInt(0, response.length - 4);
+		return response;
+		
+	}
+
+	/**
+	 * Returns a response frame with just the error, written with a new generator since the failure may have left a response half written
+	 */
+	private byte[] getErrorFrame(Throwable e) {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		out.write(0);
+		
+		try {
+			JsonGenerator generator = objectMapper.getFactory().createGenerator(out);
+			generator.writeStartObject();
+			generator.writeStringField("error", (e.getMessage() == null) ? e.toString() : e.getMessage());
+			generator.writeEndObject();
+			generator.close();
+		} catch (IOException x) {
+			//writing to a ByteArrayOutputStream doesn't fail
+			throw new RuntimeException(x);
+		}
+		
+		byte[] response = out.toByteArray();
+		ByteBuffer.wrap(response).putInt(0, response.length - 4);
+		return response;
+		
+	}
+
+	private void evaluateRequest(JsonNode request, JsonGenerator generator) throws IOException {
+
+		requests.incrementAndGet();
+		JsonNode id = (request == null) ? null : request.get("id");
+		
+		EvaluationResult result = null;
+		String error = null;
+		try {
+			result = evaluate(request);
+		} catch (Exception e) {
+			errors.incrementAndGet();
+			error = (e.getMessage() == null) ? e.toString() : e.getMessage();
+		}
+		
+		generator.writeStartObject();
+		if(id != null) {
+			generator.writeFieldName("id");
+			generator.writeTree(id);
+		}
+		if(result != null) {
+			generator.writeFieldName("evaluation");
+			result.writeJson(generator);
+		}
+		else generator.writeStringField("error", error);
+		generator.writeEndObject();
+		
+	}
+
+	@SuppressWarnings("unchecked")
+	private EvaluationResult evaluate(JsonNode request) throws Exception {
+
+		if(request == null || !request.isObject()) throw new Exception("Request must be a JSON object.");
+		
+		JsonNode documentId = request.get("documentId");
+		if(documentId == null || !documentId.isTextual()) throw new Exception("documentId is required.");
+		JsonNode version = request.get("version");
+		
+		RuleEvaluatorPool pool = (version == null || version.isNull()) ? registry.getEvaluatorPool(documentId.asText()) 
+				: registry.getEvaluatorPool(documentId.asText(), version.asText());
+		
+		RuleEvaluator evaluator = pool.borrow(borrowTimeout, TimeUnit.MILLISECONDS);
+		try {
+			JsonNode variables = request.get("variables");
+			if(variables != null && !variables.isNull()) {
+				if(!variables.isObject()) throw new Exception("variables must be a JSON object.");
+				evaluator.putVariables(objectMapper.convertValue(variables, TreeMap.class));
+			}
+			JsonNode ruleNumber = request.get("ruleNumber");
+			Integer rule = (ruleNumber == null || ruleNumber.isNull()) ? evaluator.getStartRule() : Integer.valueOf(ruleNumber.asInt());
+			//a request can shorten the server's limit, but not lift it
+			JsonNode timeout = request.get("timeout");
+			long requested = (timeout == null || timeout.isNull()) ? 0 : timeout.asLong();
+			long timeoutMillis = evaluationTimeout;
+			if(requested > 0 && (timeoutMillis <= 0 || requested < timeoutMillis)) timeoutMillis = requested;
+			if(timeoutMillis > 0) return evaluator.evaluateRuleForResult(rule, timeoutMillis, TimeUnit.MILLISECONDS);
+			return evaluator.evaluateRuleForResult(rule);
+		} finally {
+			pool.release(evaluator);
+		}
+		
+	}
+
+	private static class Connection {
+
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+		private long nextSequence = 0;
+		private long nextWrite = 0;
+		private final AtomicInteger inFlight = new AtomicInteger();
+		private final TreeMap<Long, byte[]> completed = new TreeMap<Long, byte[]>();
+		private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+	}
+
+	private static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		private NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+	/**
+	 * Run a server for one or more JSON rule definition documents: RuleServer [address:]port file1.json [file2.json ...].  Without an address, 
+	 * the server listens on the loopback address.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		if(args.length < 2) {
+			System.out.println("Usage: RuleServer [address:]port rules1.json [rules2.json ...]");
+			return;
+		}
+		
+		Logger logger = new MinimalLogger(MinimalLogger.ERROR);
+		RuleRegistry registry = new RuleRegistry(logger, Runtime.getRuntime().availableProcessors(), 0);
+		
+		for (int i = 1; i < args.length; i++) {
+			RuleJSONParser parser = new RuleJSONParser();
+			parser.loadRules(args[i]);
+			BaseRules rules = parser.getRules();
+			registry.register(rules.getDocumentId(), rules.getVersion(), parser, args[i]);
+			registry.getRuleDefinition(rules.getDocumentId());
+			System.out.println("Loaded document " + rules.getDocumentId() + " version " + rules.getVersion() + " from " + args[i]);
+		}
+		
+		final RuleServer server = new RuleServer(registry, logger);
+		int colon = args[0].lastIndexOf(':');
+		if(colon >= 0) server.setBindAddress(InetAddress.getByName(args[0].substring(0, colon)));
+		server.start(Integer.parseInt(args[0].substring(colon + 1)));
+		System.out.println("Listening on " + server.getBindAddress().getHostAddress() + " port " + server.getPort());
+		
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.stop();
+				} catch (Exception e) {
+					System.out.println("Failed to stop: " + e.getMessage());
+				}
+			}
+		});
+		server.selectorThread.join();
+		
+	}
+
+}
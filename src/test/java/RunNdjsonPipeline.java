@@ -0,0 +1,78 @@
+/*
+The MIT License (MIT)
+Copyright © 2021 Syndit Business Solutions, Inc. 
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+*/
+
+package test.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+
+import com.synditcorp.ruleengine.DefaultRuleDefinition;
+import com.synditcorp.ruleengine.logging.MinimalLogger;
+import com.synditcorp.ruleengine.parser.RuleJSONParser;
+import com.synditcorp.ruleengine.pipeline.NdjsonPipeline;
+import com.synditcorp.ruleengine.pipeline.PipelineStats;
+
+/**
+ * Evaluate a file of newline delimited JSON records:
+ * RunNdjsonPipeline rules.json records.ndjson results.ndjson [-workers n] [-queue n] [-rule n] [-unordered]
+ * Use - as the records file to read standard input.  The statistics are written to standard error.
+ */
+public class RunNdjsonPipeline {
+
+	public static void main(String[] args) {
+		
+		try {
+
+			if(args.length < 3) {
+				System.err.println("Usage: RunNdjsonPipeline rules.json records.ndjson results.ndjson [-workers n] [-queue n] [-rule n] [-unordered]");
+				return;
+			}
+			
+			RuleJSONParser parser = new RuleJSONParser();
+			parser.loadRules(args[0]);
+			
+			DefaultRuleDefinition rules = new DefaultRuleDefinition();
+			rules.loadRules(parser);
+			
+			Logger logger = new MinimalLogger(MinimalLogger.ERROR);
+			
+			NdjsonPipeline pipeline = new NdjsonPipeline(rules, logger);
+			for (int i = 3; i < args.length; i++) {
+				if(args[i].equals("-workers")) pipeline.setWorkers(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-queue")) pipeline.setQueueSize(Integer.parseInt(args[++i]));
+				else if(args[i].equals("-rule")) pipeline.setStartRule(Integer.valueOf(args[++i]));
+				else if(args[i].equals("-unordered")) pipeline.setOrdered(false);
+				else throw new Exception("Unknown option " + args[i]);
+			}
+			
+			InputStream input = args[1].equals("-") ? System.in : new BufferedInputStream(new FileInputStream(args[1]), 65536);
+			OutputStream output = new BufferedOutputStream(new FileOutputStream(args[2]), 65536);
+			try {
+				PipelineStats stats = pipeline.run(input, output);
+				System.err.println(stats);
+			} finally {
+				output.close();
+				input.close();
+			}
+			
+		} catch (Exception e) {
+			System.err.println("RuleEngine exception: " + e );
+		}
+
+	}
+
+}
@@ -11,8 +11,33 @@ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLI
 
 package test.java;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 
@@ -22,9 +47,41 @@ import com.synditcorp.ruleengine.logging.TimeTrack;
 import com.synditcorp.ruleengine.DefaultRuleDefinition;
 import com.synditcorp.ruleengine.RuleEvaluator;
 import com.synditcorp.ruleengine.parser.RuleJSONParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.synditcorp.ruleengine.CalcRuleProcessor;
+import com.synditcorp.ruleengine.EvaluationResult;
+import com.synditcorp.ruleengine.RuleBulkhead;
+import com.synditcorp.ruleengine.RuleEvaluatorPool;
+import com.synditcorp.ruleengine.RuleGraphValidator;
+import com.synditcorp.ruleengine.RuleRegistry;
+import com.synditcorp.ruleengine.RuleWarmUp;
+import com.synditcorp.ruleengine.batch.BatchEvaluator;
+import com.synditcorp.ruleengine.batch.RecordBatch;
+import com.synditcorp.ruleengine.beans.BaseRules;
+import com.synditcorp.ruleengine.beans.CalcRule;
+import com.synditcorp.ruleengine.beans.CompositeRule;
+import com.synditcorp.ruleengine.beans.OrRule;
+import com.synditcorp.ruleengine.cache.LocalRuleResultCache;
+import com.synditcorp.ruleengine.cache.MappedRuleResultCache;
+import com.synditcorp.ruleengine.cache.PureRuleMemo;
+import com.synditcorp.ruleengine.handlers.ExpressionHandler;
+import com.synditcorp.ruleengine.handlers.ExpressionRuleHandler;
+import com.synditcorp.ruleengine.handlers.RegexHandler;
+import com.synditcorp.ruleengine.handlers.ScoreExpression;
+import com.synditcorp.ruleengine.interfaces.AsyncRuleClassHandler;
+import com.synditcorp.ruleengine.interfaces.RuleClassHandler;
+import com.synditcorp.ruleengine.logging.RuleProfiler;
+import com.synditcorp.ruleengine.parser.RuleDocumentReader;
+import com.synditcorp.ruleengine.pipeline.NdjsonPipeline;
+import com.synditcorp.ruleengine.pipeline.PipelineStats;
+import com.synditcorp.ruleengine.server.RuleServer;
 
 public class VerifyRuleDefinition {
 
+	private static final Logger logger = new MinimalLogger(MinimalLogger.ERROR);
+	private static int failures = 0;
+
 	public static void main(String[] args) {
 		
 		try {
@@ -33,6 +90,34 @@ public class VerifyRuleDefinition {
 			
 			verifyRules(jsonFileName);
 			
+			verifyRegexLiterals(jsonFileName);
+			verifyScoreFolding(jsonFileName);
+			verifySchedule(jsonFileName);
+			verifyAsyncRules(jsonFileName);
+			verifyResultCache(jsonFileName);
+			verifyPureRules(jsonFileName);
+			verifyEvaluatorPool(jsonFileName);
+			verifyEvaluationResult(jsonFileName);
+			verifyRegistry(jsonFileName);
+			verifyServer(jsonFileName);
+			verifyBatch(jsonFileName);
+			verifyPipeline(jsonFileName);
+			verifyProfiler(jsonFileName);
+			verifyGraphValidator(jsonFileName);
+			verifyMappedCache(jsonFileName);
+			verifyCompositeArrays(jsonFileName);
+			verifyDocumentReader(jsonFileName);
+			verifyLoadFromMemory(jsonFileName);
+			verifyReload(jsonFileName);
+			verifyCompilationPolicies(jsonFileName);
+			verifyWarmUp(jsonFileName);
+			verifyParallelLoad(jsonFileName);
+			verifyParallelRules(jsonFileName);
+			verifyTimeouts(jsonFileName);
+			verifyBulkheads(jsonFileName);
+			
+			if(failures > 0) throw new Exception(failures + " verifications failed.");
+			
 		} catch (Exception e) {
 			System.out.println("RuleEngine exception: " + e );
 		}
@@ -106,6 +191,851 @@ public class VerifyRuleDefinition {
 		
 	}
 
+	/**
+	 * Log the outcome of one verification, counting the failures
+	 */
+	private static void verify(String description, boolean verified) {
+		if(verified) RuleLogger.log("Verify " + description + " was successful!");
+		else {
+			failures++;
+			RuleLogger.log("Verify " + description + " failed.");
+		}
+	}
+
+	private static RuleJSONParser loadParser(String jsonFileName) throws Exception {
+		RuleJSONParser parser = new RuleJSONParser();
+		parser.loadRules(jsonFileName);
+		return parser;
+	}
+
+	private static DefaultRuleDefinition loadDefinition(RuleJSONParser parser) throws Exception {
+		DefaultRuleDefinition rules = new DefaultRuleDefinition();
+		rules.loadRules(parser);
+		return rules;
+	}
+
+	/**
+	 * Returns the message of the exception thrown by loading the rules, or "" if they load
+	 */
+	private static String getLoadError(RuleJSONParser parser) {
+		try {
+			loadDefinition(parser);
+			return "";
+		} catch (Exception e) {
+			return String.valueOf(e.getMessage());
+		}
+	}
+
+	/**
+	 * The variables of verifyRules, for which the start rule passes
+	 */
+	private static TreeMap<String, Object> newVariables() {
+		TreeMap<String, Object> variables = new TreeMap<String, Object>();
+		variables.put("amount1", 1.50);
+		variables.put("amount2", 5.00);
+		variables.put("name1", "Buggs Bunny");
+		variables.put("ID", "987654321");
+		variables.put("phone", "724.555.1027");
+		return variables;
+	}
+
+	private static RuleEvaluator newEvaluator(DefaultRuleDefinition rules) {
+		RuleEvaluator eval = new RuleEvaluator(rules, logger);
+		eval.setVariables(newVariables());
+		return eval;
+	}
+
+	private static CalcRule getCalcRule(RuleJSONParser parser, Integer ruleNumber) throws Exception {
+		for (CalcRule calcRule : parser.getRules().getCalcRules()) {
+			if(calcRule.getRuleNumber().equals(ruleNumber)) return calcRule;
+		}
+		throw new Exception("Rule number " + ruleNumber + " is not a calc rule.");
+	}
+
+	private static CompositeRule getCompositeRule(RuleJSONParser parser, Integer ruleNumber) throws Exception {
+		ArrayList<CompositeRule> compositeRules = new ArrayList<CompositeRule>();
+		if(parser.getRules().getOrRules() != null) compositeRules.addAll(parser.getRules().getOrRules());
+		if(parser.getRules().getAndRules() != null) compositeRules.addAll(parser.getRules().getAndRules());
+		if(parser.getRules().getAllRules() != null) compositeRules.addAll(parser.getRules().getAllRules());
+		for (CompositeRule compositeRule : compositeRules) {
+			if(compositeRule.getRuleNumber().equals(ruleNumber)) return compositeRule;
+		}
+		throw new Exception("Rule number " + ruleNumber + " is not a composite rule.");
+	}
+
+	/**
+	 * Adds a calc rule, not referenced by other rules, to the parsed document
+	 */
+	private static CalcRule addCalcRule(RuleJSONParser parser, Integer ruleNumber, String expression, String handlerClass) throws Exception {
+		CalcRule calcRule = new CalcRule();
+		calcRule.setRuleType("calc");
+		calcRule.setRuleNumber(ruleNumber);
+		calcRule.setExpression(expression);
+		calcRule.setHandlerClass(handlerClass);
+		calcRule.setActive(true);
+		parser.getRules().getCalcRules().add(calcRule);
+		return calcRule;
+	}
+
+	/**
+	 * Literal patterns passed to matches(...) are rewritten to use the precompiled patterns, text inside string literals is left alone, and an
+	 * invalid literal fails the load
+	 */
+	private static void verifyRegexLiterals(String jsonFileName) throws Exception {
+
+		verify("rewriting a regular expression literal", 
+				RegexHandler.rewriteMatches("name1.matches('Buggs.*')").equals(RegexHandler.MATCHES_FUNCTION + "(name1, 'Buggs.*')"));
+		verify("leaving matches in a string literal alone", RegexHandler.rewriteMatches("name1 == 'x.matches(\"y\")'").equals("name1 == 'x.matches(\"y\")'"));
+		
+		RuleJSONParser parser = loadParser(jsonFileName);
+		getCalcRule(parser, 1).setExpression("amount1 >= 1 && name1.matches('[Buggs')");
+		verify("rejecting an invalid regular expression literal", getLoadError(parser).contains("'[Buggs'"));
+
+	}
+
+	/**
+	 * Constant scores are folded to doubles when compiled, and scores that read other rules' values are still computed from them
+	 */
+	private static void verifyScoreFolding(String jsonFileName) throws Exception {
+
+		DefaultRuleDefinition rules = loadDefinition(loadParser(jsonFileName));
+		
+		ScoreExpression passScore = rules.getCompiledPassScore(3);
+		verify("folding a constant score", passScore.getKind() == ScoreExpression.CONSTANT && passScore.getScore(new TreeMap<String, Object>()) == 33);
+		
+		ScoreExpression failScore = rules.getCompiledFailScore(2);
+		TreeMap<String, Object> variables = new TreeMap<String, Object>();
+		variables.put("failScore_1", -1.0);
+		verify("computing a score from another rule's score", failScore.getKind() != ScoreExpression.CONSTANT && failScore.getScore(variables) == -8);
+		
+		verify("reading a score variable", new ScoreExpression("passScore_1").getKind() == ScoreExpression.VARIABLE);
+
+	}
+
+	/**
+	 * Rules are in force from their effectiveDate until their expirationDate, and composite rules leave out the rules not in force
+	 */
+	private static void verifySchedule(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		long boundary = System.currentTimeMillis() + 500;
+		getCalcRule(parser, 3).setEffectiveDate(new Date(boundary));
+		getCalcRule(parser, 4).setExpirationDate(new Date(boundary));
+		getCalcRule(parser, 5).setActive(false);
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		
+		verify("a rule before its effective date", !rules.isInForce(3));
+		verify("a rule before its expiration date", rules.isInForce(4));
+		verify("an inactive rule", !rules.isInForce(5));
+		
+		//rule 11 is 1 and 2 and not 3, and is evaluated without rule 3 until it is in force
+		RuleEvaluator eval = newEvaluator(rules);
+		verify("leaving a rule not in force out of a composite rule", eval.evaluateRule(11) && !eval.getVariables().containsKey("failScore_3"));
+		
+		while (System.currentTimeMillis() <= boundary) Thread.sleep(boundary + 1 - System.currentTimeMillis());
+		verify("a rule from its effective date", rules.isInForce(3));
+		verify("a rule from its expiration date", !rules.isInForce(4));
+		
+		eval.reset();
+		eval.setVariables(newVariables());
+		verify("adding a rule to a composite rule once in force", eval.evaluateRule(11) && eval.getVariables().containsKey("failScore_3"));
+
+	}
+
+	/**
+	 * Completes "pass" with true and "fail" with false on another thread, and fails for anything else
+	 */
+	public static class AsyncHandler implements AsyncRuleClassHandler {
+
+		@Override
+		public CompletableFuture<Boolean> processCalcRuleAsync(String ruleExpression, TreeMap<String, Object> variables) throws Exception {
+			return CompletableFuture.supplyAsync(() -> {
+				if(ruleExpression.equals("pass") || ruleExpression.equals("fail")) return ruleExpression.equals("pass");
+				throw new IllegalArgumentException("Unknown expression " + ruleExpression);
+			});
+		}
+
+	}
+
+	/**
+	 * Rules using an AsyncRuleClassHandler are started together by evaluateRuleAsync, a failed handler fails the future, and the evaluator can
+	 * be used again after a failure
+	 */
+	private static void verifyAsyncRules(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		addCalcRule(parser, 101, "fail", AsyncHandler.class.getName());
+		addCalcRule(parser, 102, "pass", AsyncHandler.class.getName());
+		addCalcRule(parser, 103, "error", AsyncHandler.class.getName());
+		OrRule orRule = new OrRule();
+		orRule.setRuleType("or");
+		orRule.setRuleNumber(104);
+		orRule.setCompositeRules(new ArrayList<Integer>(Arrays.asList(101, 102)));
+		parser.getRules().getOrRules().add(orRule);
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		
+		RuleEvaluator eval = newEvaluator(rules);
+		verify("evaluating async rules", eval.evaluateRuleAsync(104).get());
+		
+		eval.reset();
+		eval.setVariables(newVariables());
+		boolean failed = false;
+		try {
+			eval.evaluateRuleAsync(103).get();
+		} catch (ExecutionException e) {
+			failed = true;
+		}
+		verify("failing an async rule whose handler failed", failed);
+		
+		eval.reset();
+		eval.setVariables(newVariables());
+		verify("evaluating async rules after a failure", eval.evaluateRuleAsync(102).get() && !eval.evaluateRuleAsync(101).get());
+
+	}
+
+	/**
+	 * Passes for "pass", fails otherwise, and counts its calls
+	 */
+	public static class CountingHandler implements RuleClassHandler {
+
+		private static final AtomicInteger calls = new AtomicInteger();
+
+		@Override
+		public Boolean processCalcRule(String ruleExpression, TreeMap<String, Object> variables) throws Exception {
+			calls.incrementAndGet();
+			return ruleExpression.equals("pass");
+		}
+
+	}
+
+	/**
+	 * A rule with a resultCacheTtl gets its result from the cache for the same resultCacheKeys values, but not for a value of another type, or 
+	 * once the rule has been edited
+	 */
+	private static void verifyResultCache(String jsonFileName) throws Exception {
 
+		RuleJSONParser parser = loadParser(jsonFileName);
+		CalcRule calcRule = addCalcRule(parser, 105, "pass", CountingHandler.class.getName());
+		calcRule.setResultCacheTtl(60000L);
+		calcRule.setResultCacheKeys(new ArrayList<String>(Arrays.asList("amount1")));
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		LocalRuleResultCache cache = new LocalRuleResultCache(100);
+		
+		RuleEvaluator eval = newEvaluator(rules);
+		eval.setResultCache(cache);
+		int calls = CountingHandler.calls.get();
+		eval.evaluateRule(105);
+		eval.reset();
+		eval.setVariables(newVariables());
+		verify("getting a result from the result cache", eval.evaluateRule(105) && CountingHandler.calls.get() == calls + 1 && cache.getHits() == 1);
+		
+		eval.reset();
+		TreeMap<String, Object> variables = newVariables();
+		variables.put("amount1", "1.5");
+		eval.setVariables(variables);
+		eval.evaluateRule(105);
+		verify("keying cached results by the type of each value", CountingHandler.calls.get() == calls + 2);
+		
+		calcRule.setDescription("Edited");
+		RuleEvaluator edited = newEvaluator(loadDefinition(parser));
+		edited.setResultCache(cache);
+		edited.evaluateRule(105);
+		verify("keying cached results by the content of the rule", CountingHandler.calls.get() == calls + 3);
+
+	}
+
+	/**
+	 * The result of a pure rule is reused by later requests with the same values of the variables its expression reads
+	 */
+	private static void verifyPureRules(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		getCalcRule(parser, 3).setPure(true);
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		PureRuleMemo memo = rules.getPureRuleMemo();
+		
+		RuleEvaluator eval = newEvaluator(rules);
+		boolean first = eval.evaluateRule(3);
+		eval.reset();
+		eval.setVariables(newVariables());
+		boolean second = eval.evaluateRule(3);
+		verify("reusing the result of a pure rule", !first && !second && memo.getHits() == 1 && memo.getMisses() == 1);
+		
+		eval.reset();
+		TreeMap<String, Object> variables = newVariables();
+		variables.put("amount1", 5.00);
+		eval.setVariables(variables);
+		verify("evaluating a pure rule for new values", eval.evaluateRule(3) && memo.getHits() == 1 && memo.getMisses() == 2);
+
+	}
+
+	/**
+	 * A released evaluator is reset and handed out again
+	 */
+	private static void verifyEvaluatorPool(String jsonFileName) throws Exception {
+
+		RuleEvaluatorPool pool = new RuleEvaluatorPool(loadDefinition(loadParser(jsonFileName)), logger, 2);
+		RuleEvaluator first = pool.borrow();
+		first.setVariables(newVariables());
+		boolean result = first.evaluateRule(14);
+		pool.release(first);
+		
+		RuleEvaluator second = pool.borrow();
+		verify("reusing a pooled evaluator", result && second == first && pool.getCreated() == 1 && second.getVariables().isEmpty());
+		second.putVariables(newVariables());
+		verify("evaluating with a reused evaluator", second.evaluateRule(14));
+		pool.release(second);
+
+	}
+
+	/**
+	 * evaluateRuleForResult returns every rule that passed or failed with its score and strings
+	 */
+	private static void verifyEvaluationResult(String jsonFileName) throws Exception {
+
+		RuleEvaluator eval = newEvaluator(loadDefinition(loadParser(jsonFileName)));
+		EvaluationResult result = eval.evaluateRuleForResult(14);
+		verify("the result of an evaluation", result.getResult() && result.getRuleNumber() == 14 && result.isPass(1) && result.isFail(3));
+		verify("the scores and strings of an evaluation", result.getPassScore(1) == 1 && result.getFailScore(3) == -30 
+				&& "1FlagP".equals(result.getPassFlag(1)) && "3ReasonF".equals(result.getFailReason(3)));
+		verify("writing an evaluation as JSON", result.toJson().startsWith("{\"ruleNumber\":14,\"result\":true,\"passes\":[{\"rule\":1,\"score\":1.0,"));
+
+	}
+
+	/**
+	 * Documents are loaded on first use, and the least recently used are unloaded when the loaded documents go over the memory budget
+	 */
+	private static void verifyRegistry(String jsonFileName) throws Exception {
+
+		RuleRegistry registry = new RuleRegistry(logger, 2, 0);
+		registry.register("TESTXXX", "0.0.1", new RuleJSONParser(), jsonFileName);
+		registry.register("TESTREG", "1", new RuleJSONParser(), Paths.get(jsonFileName).resolveSibling("verifyRegistry.json").toString());
+		verify("registering documents without loading them", registry.getLoadedCount() == 0);
+		
+		RuleEvaluatorPool pool = registry.getEvaluatorPool("TESTXXX");
+		RuleEvaluator eval = pool.borrow();
+		eval.putVariables(newVariables());
+		verify("evaluating a registered document", eval.evaluateRule(14) && registry.isLoaded("TESTXXX", "0.0.1"));
+		pool.release(eval);
+		
+		registry.setMemoryBudget(registry.getLoadedSize());
+		pool = registry.getEvaluatorPool("TESTREG");
+		verify("unloading the least recently used document", registry.isLoaded("TESTREG", "1") && !registry.isLoaded("TESTXXX", "0.0.1") 
+				&& registry.getEvictions() == 1);
+		
+		eval = pool.borrow();
+		eval.putVariables(newVariables());
+		verify("evaluating the second document", eval.evaluateRule(1));
+		pool.release(eval);
+		
+		registry.getEvaluatorPool("TESTXXX");
+		verify("loading an unloaded document again", registry.isLoaded("TESTXXX", "0.0.1") && registry.getLoads() == 3);
+
+	}
+
+	/**
+	 * Requests pipelined on one connection are answered in order, each with its evaluation or its error
+	 */
+	private static void verifyServer(String jsonFileName) throws Exception {
+
+		RuleRegistry registry = new RuleRegistry(logger, 2, 0);
+		registry.register("TESTXXX", "0.0.1", new RuleJSONParser(), jsonFileName);
+		RuleServer server = new RuleServer(registry, logger);
+		server.setBindAddress(InetAddress.getLoopbackAddress());
+		server.start(0);
+		
+		ObjectMapper objectMapper = new ObjectMapper();
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+			
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			String variables = objectMapper.writeValueAsString(newVariables());
+			String[] requests = {
+					"{\"id\":1,\"documentId\":\"TESTXXX\",\"variables\":" + variables + "}",
+					"{\"id\":2,\"documentId\":\"NOTREGISTERED\"}",
+					"{\"id\":3,\"documentId\":\"TESTXXX\",\"ruleNumber\":3,\"variables\":" + variables + ",\"timeout\":60000}" };
+			for (String request : requests) {
+				byte[] frame = request.getBytes("UTF-8");
+				out.writeInt(frame.length);
+				out.write(frame);
+			}
+			out.flush();
+			
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			JsonNode[] responses = new JsonNode[requests.length];
+			for (int i = 0; i < responses.length; i++) {
+				byte[] frame = new byte[in.readInt()];
+				in.readFully(frame);
+				responses[i] = objectMapper.readTree(frame);
+			}
+			
+			verify("answering pipelined requests in order", responses[0].get("id").asInt() == 1 && responses[1].get("id").asInt() == 2 
+					&& responses[2].get("id").asInt() == 3);
+			verify("answering a request with its evaluation", responses[0].get("evaluation").get("result").asBoolean() 
+					&& !responses[2].get("evaluation").get("result").asBoolean());
+			verify("answering a request with its error", responses[1].has("error") && !responses[1].has("evaluation"));
+			
+		} finally {
+			server.stop();
+		}
+
+	}
+
+	/**
+	 * A rule evaluated for a batch of records gives the same result for each record as evaluating the records one by one, whether its calc rules
+	 * run over the columns, run record by record, or assign variables that later rules read
+	 */
+	private static void verifyBatch(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		addCalcRule(parser, 106, "total = amount1 + amount2; total > 0", ExpressionRuleHandler.class.getName());
+		addCalcRule(parser, 107, "total > 6", ExpressionRuleHandler.class.getName());
+		CompositeRule andRule = getCompositeRule(parser, 11);
+		andRule.setCompositeRules(new ArrayList<Integer>(Arrays.asList(1, 2, -3, 106, 107)));
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		
+		double[] amount1 = {1.50, 0.50, 1.00, 2.00};
+		double[] amount2 = {5.00, 5.00, 5.00, 4.00};
+		String[] name1 = {"Buggs Bunny", "Buggs Bunny", "Buggsy", "Daffy Duck"};
+		RecordBatch records = new RecordBatch(amount1.length);
+		records.addColumn("amount1", amount1);
+		records.addColumn("amount2", amount2);
+		records.addColumn("name1", name1);
+		records.addColumn("ID", new String[] {"987654321", "987654321", "654", "987654321"});
+		records.addColumn("phone", new String[] {"724.555.1027", "724.555.1027", "724.555.1027", "724.556.1027"});
+		
+		BatchEvaluator batchEvaluator = new BatchEvaluator(rules, logger);
+		RuleEvaluator eval = new RuleEvaluator(rules, logger);
+		for (int ruleNumber : new int[] {1, 3, 11, 106}) {
+			BitSet passed = batchEvaluator.evaluateRule(ruleNumber, records);
+			boolean same = true;
+			for (int record = 0; record < records.size(); record++) {
+				eval.reset();
+				TreeMap<String, Object> variables = new TreeMap<String, Object>();
+				records.putRecord(variables, record, null);
+				eval.setVariables(variables);
+				if(eval.evaluateRule(ruleNumber) != passed.get(record)) same = false;
+			}
+			verify("evaluating rule " + ruleNumber + " for a batch of records", same);
+		}
+		verify("evaluating rules that assign variables record by record", batchEvaluator.getRecordFallbacks() > 0);
+
+	}
+
+	/**
+	 * Records read as newline-delimited JSON are evaluated on several threads and written back in the order they were read, a record whose
+	 * evaluation fails getting an error line
+	 */
+	private static void verifyPipeline(String jsonFileName) throws Exception {
+
+		NdjsonPipeline pipeline = new NdjsonPipeline(loadDefinition(loadParser(jsonFileName)), logger);
+		pipeline.setWorkers(4);
+		pipeline.setOrdered(true);
+		
+		ObjectMapper objectMapper = new ObjectMapper();
+		String record = objectMapper.writeValueAsString(newVariables());
+		TreeMap<String, Object> variables = newVariables();
+		variables.put("amount2", 4.00);
+		String error = objectMapper.writeValueAsString(variables);
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 20; i++) input.append((i == 9) ? error : record).append('\n');
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PipelineStats stats = pipeline.run(new ByteArrayInputStream(input.toString().getBytes("UTF-8")), output);
+		
+		String[] lines = output.toString("UTF-8").split("\n");
+		boolean ordered = lines.length == 20;
+		for (int i = 0; ordered && i < lines.length; i++) {
+			ordered = lines[i].startsWith("{\"record\":" + (i + 1) + ",") && lines[i].contains((i == 9) ? "\"error\":" : "\"result\":true");
+		}
+		verify("writing evaluated records in the order they were read", ordered);
+		verify("counting the records of a pipeline", stats.getRecords() == 20 && stats.getErrors() == 1);
+
+	}
+
+	/**
+	 * The profiler counts each rule evaluated, with its passes and fails, and the rules skipped by short-circuiting
+	 */
+	private static void verifyProfiler(String jsonFileName) throws Exception {
+
+		DefaultRuleDefinition rules = loadDefinition(loadParser(jsonFileName));
+		RuleProfiler profiler = new RuleProfiler(rules);
+		RuleEvaluator eval = newEvaluator(rules);
+		eval.setProfiler(profiler);
+		eval.evaluateRule(14);
+		eval.reset();
+		eval.setVariables(newVariables());
+		eval.putVariable("amount1", 0.50);
+		eval.evaluateRule(11);
+		
+		verify("profiling the rules evaluated", profiler.getEvaluations(14) == 1 && profiler.getPasses(14) == 1 && profiler.getEvaluations(11) == 2 
+				&& profiler.getPasses(11) == 1 && profiler.getFails(11) == 1);
+		verify("profiling the rules skipped", profiler.getSkips(2) >= 1 && profiler.getNanos(14) >= profiler.getSelfNanos(14));
+
+	}
+
+	/**
+	 * A document referring to a rule that doesn't exist, or with a cycle of composite rules, fails the load
+	 */
+	private static void verifyGraphValidator(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		verify("validating the rule graph", !new RuleGraphValidator(parser.getRules()).hasErrors());
+		
+		getCompositeRule(parser, 11).setCompositeRules(new ArrayList<Integer>(Arrays.asList(1, 2, -3, 99)));
+		verify("rejecting a reference to a missing rule", getLoadError(parser).contains("refers to rule 99"));
+		
+		parser = loadParser(jsonFileName);
+		getCompositeRule(parser, 10).setCompositeRules(new ArrayList<Integer>(Arrays.asList(1, 2, 13)));
+		RuleGraphValidator validator = new RuleGraphValidator(parser.getRules());
+		verify("rejecting a cycle of composite rules", validator.hasErrors() && !getLoadError(parser).isEmpty());
+
+	}
+
+	/**
+	 * Results put in a memory-mapped cache are still there when the file is opened again
+	 */
+	private static void verifyMappedCache(String jsonFileName) throws Exception {
+
+		File file = File.createTempFile("verifyRuleDefinition", ".cache");
+		try {
+			MappedRuleResultCache cache = new MappedRuleResultCache(file.getPath(), 64);
+			cache.put("TESTXXX|0.0.1|1|1.5", Boolean.TRUE, 60000);
+			cache.put("TESTXXX|0.0.1|1|0.5", Boolean.FALSE, 60000);
+			cache.close();
+			
+			cache = new MappedRuleResultCache(file.getPath(), 64);
+			verify("reopening a memory-mapped cache", cache.isReattached() && Boolean.TRUE.equals(cache.get("TESTXXX|0.0.1|1|1.5")) 
+					&& Boolean.FALSE.equals(cache.get("TESTXXX|0.0.1|1|0.5")) && cache.get("TESTXXX|0.0.1|1|2.5") == null);
+			cache.close();
+		} finally {
+			file.delete();
+		}
+
+	}
+
+	/**
+	 * Composite rule lists are held as arrays, rejecting null rule numbers, and equal strings of a document are shared once it is loaded
+	 */
+	private static void verifyCompositeArrays(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		CompositeRule compositeRule = getCompositeRule(parser, 14);
+		compositeRule.getCompositeRules().add(99);
+		verify("copying composite rules from their array", Arrays.equals(compositeRule.getCompositeRulesArray(), new int[] {13, 12, -4, 5, 6, 7, -15, -8, 9, 16}));
+		
+		boolean rejected = false;
+		try {
+			compositeRule.setCompositeRules(new ArrayList<Integer>(Arrays.asList(13, null)));
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		verify("rejecting a null composite rule number", rejected);
+		
+		getCalcRule(parser, 4).setFailFlag(new String("3FlagF"));
+		getCalcRule(parser, 5).setFailFlag(new String("3FlagF"));
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		verify("sharing equal strings of a document", rules.getFailFlag(4) == rules.getFailFlag(5) && newEvaluator(rules).evaluateRule(14));
+
+	}
+
+	/**
+	 * Numbers and booleans written as strings are read as numbers and booleans, and a value that can't be read is reported with its line, 
+	 * column, and path
+	 */
+	private static void verifyDocumentReader(String jsonFileName) throws Exception {
+
+		CalcRule calcRule = getCalcRule(loadParser(jsonFileName), 1);
+		verify("reading numbers and booleans written as strings", calcRule.getRuleNumber() == 1 && Boolean.TRUE.equals(calcRule.getActive()));
+		
+		BaseRules rules = RuleDocumentReader.read("{\"documentId\": \"TESTRDR\", \"startRule\": 7, \"calcRules\": [{\"ruleNumber\": 7.0, \"resultCacheTtl\": \"250\"}]}".getBytes("UTF-8"));
+		verify("reading numbers of another type", rules.getStartRule() == 7 && rules.getCalcRules().get(0).getRuleNumber() == 7 
+				&& rules.getCalcRules().get(0).getResultCacheTtl() == 250L);
+		
+		String error = "";
+		try {
+			RuleDocumentReader.read("{\"documentId\": \"TESTRDR\",\n\"calcRules\": [{\"ruleNumber\": 1},\n{\"ruleNumber\": 2, \"active\": \"yes\"}]}".getBytes("UTF-8"));
+		} catch (Exception e) {
+			error = e.getMessage();
+		}
+		verify("reporting where a value can't be read", error.startsWith("Rule document error at line 3, column ") && error.contains("calcRules[1].active"));
+
+	}
+
+	/**
+	 * A document can be loaded from a byte[], a ByteBuffer, which is left unchanged, or an InputStream
+	 */
+	private static void verifyLoadFromMemory(String jsonFileName) throws Exception {
+
+		byte[] json = Files.readAllBytes(Paths.get(jsonFileName));
+		RuleJSONParser parser = new RuleJSONParser();
+		parser.loadRules((Object) json);
+		verify("loading rules from a byte array", newEvaluator(loadDefinition(parser)).evaluateRule(14));
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(json.length + 1);
+		buffer.put((byte) ' ').put(json).flip();
+		buffer.position(1);
+		parser.loadRules(buffer);
+		verify("loading rules from a byte buffer", buffer.position() == 1 && newEvaluator(loadDefinition(parser)).evaluateRule(14));
+		parser.loadRules(buffer);
+		verify("loading rules from the same byte buffer again", newEvaluator(loadDefinition(parser)).evaluateRule(14));
+		
+		parser.loadRules(new ByteArrayInputStream(json));
+		verify("loading rules from an input stream", "TESTXXX".equals(parser.getRules().getDocumentId()) && newEvaluator(loadDefinition(parser)).evaluateRule(14));
+
+	}
+
+	/**
+	 * Reloading rules only compiles those added or changed, unless an unchanged rule's expression is no longer compiled
+	 */
+	private static void verifyReload(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		String expression = "amount1 >= 1 && name1.matches('Buggs.*') && 1044 > 0";
+		getCalcRule(parser, 1).setExpression(expression);
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		Object passScore = rules.getCompiledPassScore(2);
+		
+		rules.reloadRules(parser);
+		verify("reloading unchanged rules", rules.getChangedRules().isEmpty() && rules.getCompiledPassScore(2) == passScore);
+		
+		getCalcRule(parser, 3).setFailScore("-3*11");
+		rules.reloadRules(parser);
+		verify("reloading a changed rule", rules.getChangedRules().equals(new TreeSet<Integer>(Arrays.asList(3))) 
+				&& rules.getCompiledPassScore(2) == passScore && newEvaluator(rules).evaluateRuleForResult(14).getFailScore(3) == -33);
+		
+		rules.release();
+		verify("releasing the expressions of a definition", !ExpressionHandler.isCompiled(expression));
+		rules.reloadRules(parser);
+		verify("compiling unchanged rules whose expressions were released", rules.getChangedRules().isEmpty() && ExpressionHandler.isCompiled(expression));
+
+	}
+
+	/**
+	 * Under the LAZY policy an expression is compiled when it is first run, under BACKGROUND it is compiled after the load, and under both an 
+	 * invalid regular expression literal fails the load
+	 */
+	private static void verifyCompilationPolicies(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		String expression = "amount1 >= 1 && name1.matches('Buggs.*') && 1045 > 0";
+		getCalcRule(parser, 1).setExpression(expression);
+		DefaultRuleDefinition rules = new DefaultRuleDefinition();
+		rules.setCompilationPolicy(DefaultRuleDefinition.LAZY);
+		rules.loadRules(parser);
+		boolean compiledOnLoad = ExpressionHandler.isCompiled(expression);
+		verify("compiling an expression when it is first run", !compiledOnLoad && newEvaluator(rules).evaluateRule(14) && ExpressionHandler.isCompiled(expression));
+		rules.release();
+		
+		rules = new DefaultRuleDefinition();
+		rules.setCompilationPolicy(DefaultRuleDefinition.BACKGROUND);
+		rules.loadRules(parser);
+		rules.getCompilation().get();
+		verify("compiling expressions after the load", ExpressionHandler.isCompiled(expression) && newEvaluator(rules).evaluateRule(14));
+		rules.release();
+		
+		getCalcRule(parser, 1).setExpression("amount1 >= 1 && name1.matches('[Buggs')");
+		for (int policy : new int[] {DefaultRuleDefinition.LAZY, DefaultRuleDefinition.BACKGROUND}) {
+			rules = new DefaultRuleDefinition();
+			rules.setCompilationPolicy(policy);
+			String error = "";
+			try {
+				rules.loadRules(parser);
+			} catch (Exception e) {
+				error = String.valueOf(e.getMessage());
+			}
+			verify("rejecting an invalid regular expression literal under policy " + policy, error.contains("'[Buggs'"));
+		}
+
+	}
+
+	/**
+	 * Warm-up evaluates the rules for a number of rounds without calling the handlers of calc rules other than expression rules
+	 */
+	private static void verifyWarmUp(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		addCalcRule(parser, 105, "pass", CountingHandler.class.getName());
+		CompositeRule andRule = getCompositeRule(parser, 14);
+		andRule.setCompositeRules(new ArrayList<Integer>(Arrays.asList(13, 12, -4, 5, 6, 7, -15, -8, 9, 16, 105)));
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		
+		int calls = CountingHandler.calls.get();
+		RuleWarmUp warmUp = new RuleWarmUp(rules, logger);
+		warmUp.setSamples(Collections.singletonList(newVariables()));
+		warmUp.setMaxRounds(10);
+		warmUp.run();
+		verify("warming up a document", warmUp.isDone() && warmUp.getRounds() > 0 && warmUp.getRounds() <= 10 && CountingHandler.calls.get() == calls);
+		verify("evaluating a warmed up document", newEvaluator(rules).evaluateRule(14) && CountingHandler.calls.get() == calls + 1);
+
+	}
+
+	/**
+	 * A large document is loaded on the load pool, and when several of its expressions are invalid the error is the first of them, as for a 
+	 * load on one thread
+	 */
+	private static void verifyParallelLoad(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		for (int ruleNumber = 1000; ruleNumber < 1300; ruleNumber++) {
+			addCalcRule(parser, ruleNumber, "amount1 >= 1 && name1.matches('Buggs.*" + ruleNumber + "')", ExpressionRuleHandler.class.getName());
+		}
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			DefaultRuleDefinition rules = new DefaultRuleDefinition();
+			rules.setLoadPool(pool);
+			rules.loadRules(parser);
+			RuleEvaluator eval = newEvaluator(rules);
+			verify("loading a large document in parallel", eval.evaluateRule(14) && !eval.evaluateRule(1100));
+			rules.release();
+			
+			getCalcRule(parser, 1200).setExpression("name1.matches('[1200')");
+			getCalcRule(parser, 1100).setExpression("name1.matches('[1100')");
+			rules = new DefaultRuleDefinition();
+			rules.setLoadPool(pool);
+			String error = "";
+			try {
+				rules.loadRules(parser);
+			} catch (Exception e) {
+				error = String.valueOf(e.getMessage());
+			}
+			verify("reporting the first invalid expression of a parallel load", error.contains("'[1100'"));
+		} finally {
+			pool.shutdown();
+		}
+
+	}
+
+	/**
+	 * Sleeps for the milliseconds after "pass" or "fail", then passes or fails
+	 */
+	public static class SleepingHandler implements RuleClassHandler {
+
+		@Override
+		public Boolean processCalcRule(String ruleExpression, TreeMap<String, Object> variables) throws Exception {
+			String[] words = ruleExpression.split(" ");
+			Thread.sleep(Long.parseLong(words[1]));
+			return words[0].equals("pass");
+		}
+
+	}
+
+	/**
+	 * A rule marked parallel gives the same result and runtime values as when its rules are evaluated one after the other, and an or rule 
+	 * doesn't wait for the handlers it no longer needs
+	 */
+	private static void verifyParallelRules(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		addCalcRule(parser, 108, "fail 50", SleepingHandler.class.getName());
+		addCalcRule(parser, 109, "pass 100", SleepingHandler.class.getName());
+		addCalcRule(parser, 110, "pass 10000", SleepingHandler.class.getName());
+		OrRule orRule = new OrRule();
+		orRule.setRuleType("or");
+		orRule.setRuleNumber(111);
+		orRule.setCompositeRules(new ArrayList<Integer>(Arrays.asList(108, 1, 109, 110)));
+		parser.getRules().getOrRules().add(orRule);
+		getCompositeRule(parser, 10).setCompositeRules(new ArrayList<Integer>(Arrays.asList(1, 108, 2)));
+		getCompositeRule(parser, 12).setCompositeRules(new ArrayList<Integer>(Arrays.asList(108, 10, 11)));
+		
+		RuleEvaluator sequential = newEvaluator(loadDefinition(parser));
+		boolean sequentialResult = sequential.evaluateRule(12);
+		
+		getCompositeRule(parser, 10).setParallel(true);
+		getCompositeRule(parser, 12).setParallel(true);
+		orRule.setParallel(true);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			RuleEvaluator parallel = newEvaluator(loadDefinition(parser));
+			parallel.setParallelExecutor(executor);
+			boolean parallelResult = parallel.evaluateRule(12);
+			verify("evaluating parallel rules", parallelResult == sequentialResult 
+					&& parallel.getVariables().toString().equals(sequential.getVariables().toString()));
+			
+			parallel.reset();
+			parallel.setVariables(newVariables());
+			long start = System.nanoTime();
+			boolean result = parallel.evaluateRule(111);
+			verify("not waiting for handlers an or rule no longer needs", result && System.nanoTime() - start < 5000000000L);
+		} finally {
+			executor.shutdownNow();
+		}
+
+	}
+
+	/**
+	 * A rule that runs out of time evaluates to its timeoutOutcome, and expression rules run with a time limit still set the variables
+	 */
+	private static void verifyTimeouts(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		addCalcRule(parser, 112, "pass 2000", SleepingHandler.class.getName()).setTimeoutOutcome("fail");
+		addCalcRule(parser, 113, "pass 2000", SleepingHandler.class.getName()).setTimeout(100L);
+		addCalcRule(parser, 114, "doubled = amount1 * 2; doubled > 0", ExpressionRuleHandler.class.getName());
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		
+		RuleEvaluator eval = newEvaluator(rules);
+		long start = System.nanoTime();
+		boolean result = eval.evaluateRule(112, 100, TimeUnit.MILLISECONDS);
+		verify("evaluating a rule that ran out of time to its timeoutOutcome", !result && eval.getTimedOutRules().contains(112) 
+				&& System.nanoTime() - start < 1500000000L);
+		
+		eval.reset();
+		eval.setVariables(newVariables());
+		boolean aborted = false;
+		try {
+			eval.evaluateRule(113);
+		} catch (Exception e) {
+			aborted = eval.getTimedOutRules().contains(113);
+		}
+		verify("aborting a rule that ran out of its own time", aborted);
+		
+		eval.reset();
+		eval.setVariables(newVariables());
+		verify("setting variables from expressions run with a time limit", eval.evaluateRule(114, 1, TimeUnit.SECONDS) 
+				&& Double.valueOf(3.0).equals(eval.getVariables().get("doubled")));
+
+	}
+
+	/**
+	 * Passes once the latch is counted down
+	 */
+	public static class LatchHandler implements RuleClassHandler {
+
+		private static final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		public Boolean processCalcRule(String ruleExpression, TreeMap<String, Object> variables) throws Exception {
+			latch.await();
+			return true;
+		}
+
+	}
+
+	/**
+	 * A call to a handler whose bulkhead is full is rejected, evaluating to the bulkhead's rejectionOutcome, while the calls it let in go on
+	 */
+	private static void verifyBulkheads(String jsonFileName) throws Exception {
+
+		RuleJSONParser parser = loadParser(jsonFileName);
+		addCalcRule(parser, 115, "pass", LatchHandler.class.getName());
+		DefaultRuleDefinition rules = loadDefinition(parser);
+		RuleBulkhead bulkhead = new RuleBulkhead(1, 0);
+		bulkhead.setRejectionOutcome("fail");
+		CalcRuleProcessor.setBulkhead(LatchHandler.class.getName(), bulkhead);
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> first = executor.submit(() -> newEvaluator(rules).evaluateRule(115));
+			while (bulkhead.getActive() == 0 && !first.isDone()) Thread.sleep(1);
+			boolean second = newEvaluator(rules).evaluateRule(115);
+			verify("rejecting a call to a full bulkhead", !second && bulkhead.getRejectedCalls() == 1);
+			LatchHandler.latch.countDown();
+			verify("completing the calls a bulkhead let in", first.get() && bulkhead.getActive() == 0 && bulkhead.getCalls() == 2);
+		} finally {
+			LatchHandler.latch.countDown();
+			CalcRuleProcessor.setBulkhead(LatchHandler.class.getName(), null);
+			executor.shutdownNow();
+		}
+
+	}
 
 }